@@ -0,0 +1,94 @@
+// Copyright 2013 by Chris Dyer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Ported to Java by Lane Schwartz
+// Modifications by John Hewitt
+//
+package edu.upenn.cis;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The diagonal prior for one m x n sentence: the partition function and
+ * its derivative for every target position, and the full normalized prior
+ * matrix computed from scratch or taken from a {@link DiagonalPrior}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DiagonalAlignmentBenchmark {
+
+	@Param({"10", "25", "60"})
+	public int m;
+
+	public int n;
+	public double tension = 4.0;
+	private final DiagonalPrior cache = new DiagonalPrior();
+
+	@Setup
+	public void setUp() {
+		n = m - 2;
+		cache.reset(tension, 0.92);
+	}
+
+	@Benchmark
+	public double computeZ() {
+		double z = 0;
+		for (int j = 1; j <= m; ++j) z += DiagonalAlignment.computeZ(j, m, n, tension);
+		return z;
+	}
+
+	@Benchmark
+	public double computeDLogZ() {
+		double z = 0;
+		for (int j = 1; j <= m; ++j) z += DiagonalAlignment.computeDLogZ(j, m, n, tension);
+		return z;
+	}
+
+	/** What the E-step did for each sentence before the prior was cached. */
+	@Benchmark
+	public double priorUncached() {
+		double sum = 0;
+		for (int j = 0; j < m; ++j) {
+			final double az = DiagonalAlignment.computeZ(j+1, m, n, tension) / 0.92;
+			for (int i = 1; i <= n; ++i)
+				sum += DiagonalAlignment.unnormalizedProb(j + 1, i, m, n, tension) / az;
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public double priorCached() {
+		cache.lookup(m, n);
+		final double[] prior = cache.prior;
+		double sum = 0;
+		for (int k = 0; k < m * n; ++k) sum += prior[k];
+		return sum;
+	}
+}
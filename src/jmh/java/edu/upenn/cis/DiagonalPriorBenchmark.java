@@ -0,0 +1,99 @@
+// Copyright 2013 by Chris Dyer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Ported to Java by Lane Schwartz
+// Modifications by John Hewitt
+//
+package edu.upenn.cis;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The diagonal priors of one E-step over a synthetic corpus. Each call
+ * changes the tension, as an iteration with -o does, and looks up the
+ * prior of every sentence. The expCalls and expCallsUncached counters
+ * give the Math.exp calls made by the {@link DiagonalPrior} and those
+ * that computing every prior from scratch would have made.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DiagonalPriorBenchmark {
+
+	private static final int kSentences = 20000;
+
+	/** Math.exp calls summed over the calls of a measurement iteration. */
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class ExpCalls {
+		public long expCalls;
+		public long expCallsUncached;
+
+		@Setup(Level.Iteration)
+		public void clear() {
+			expCalls = 0;
+			expCallsUncached = 0;
+		}
+	}
+
+	private int[] trg_lengths;
+	private int[] src_lengths;
+	private long uncached;
+	private final DiagonalPrior cache = new DiagonalPrior();
+	private double tension = 4.0;
+
+	@Setup
+	public void setUp() throws IOException {
+		Corpus corpus = new ZipfBitext(20000, 1.0, 17).corpus(new Dict(), kSentences);
+		trg_lengths = new int[kSentences];
+		src_lengths = new int[kSentences];
+		for (int s = 0; s < kSentences; ++s) {
+			trg_lengths[s] = corpus.trgLength(s);
+			src_lengths[s] = corpus.srcLength(s);
+			uncached += DiagonalPrior.uncachedExpCalls(trg_lengths[s], src_lengths[s]);
+		}
+	}
+
+	@Benchmark
+	public double estepPriors(ExpCalls counters) {
+		tension += 0.01;
+		cache.reset(tension, 0.92);
+		final long before = cache.exp_calls;
+		double sum = 0;
+		for (int s = 0; s < kSentences; ++s) {
+			cache.lookup(trg_lengths[s], src_lengths[s]);
+			sum += cache.prior[0];
+		}
+		counters.expCalls += cache.exp_calls - before;
+		counters.expCallsUncached += uncached;
+		return sum;
+	}
+}
@@ -0,0 +1,78 @@
+// Copyright 2013 by Chris Dyer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Ported to Java by Lane Schwartz
+// Modifications by John Hewitt
+//
+package edu.upenn.cis;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Integerizing bitext lines against a dictionary that already knows every word. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DictBenchmark {
+
+	private String[] lines;
+	private byte[][] bytes;
+	private Dict d;
+	private Tokenizer tok;
+	private final ArrayList<Integer> out = new ArrayList<Integer>();
+	private int next = 0;
+
+	@Setup
+	public void setUp() {
+		List<String> text = new ZipfBitext(50000, 1.0, 42).lines(10000);
+		lines = text.toArray(new String[text.size()]);
+		d = new Dict();
+		for (String line : lines) d.ConvertWhitespaceDelimitedLine(line, out);
+		bytes = new byte[lines.length][];
+		for (int k = 0; k < lines.length; ++k) bytes[k] = lines[k].getBytes(StandardCharsets.UTF_8);
+		tok = new Tokenizer(d, false);
+	}
+
+	/** One line of 10 to 80 tokens. */
+	@Benchmark
+	public ArrayList<Integer> convertLine() {
+		d.ConvertWhitespaceDelimitedLine(lines[next], out);
+		if (++next == lines.length) next = 0;
+		return out;
+	}
+
+	/** The same line from its UTF-8 bytes, as Corpus.read does. */
+	@Benchmark
+	public int tokenizeBytes() {
+		tok.parse(bytes[next], 0, bytes[next].length);
+		if (++next == lines.length) next = 0;
+		return tok.src_len + tok.trg_len;
+	}
+}
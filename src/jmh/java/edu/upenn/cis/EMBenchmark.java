@@ -0,0 +1,73 @@
+// Copyright 2013 by Chris Dyer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Ported to Java by Lane Schwartz
+// Modifications by John Hewitt
+//
+package edu.upenn.cis;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End to end training on 20000 synthetic Zipfian sentence pairs with -d -v.
+ * The last training iteration only aligns, so one EM iteration costs
+ * emIteration minus viterbi.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class EMBenchmark {
+
+	private Aligner em;
+	private Aligner viterbi;
+	private Corpus corpus;
+
+	@Setup
+	public void setUp() throws IOException {
+		AlignerConfig config = new AlignerConfig().setFavorDiagonal(true).setVariationalBayes(true);
+		em = new Aligner(new AlignerConfig(config).setIterations(2));
+		corpus = new ZipfBitext(50000, 1.0, 42).corpus(em.dict(), 20000);
+		em.train(corpus);
+		viterbi = new Aligner(config, em.dict(), em.table());
+	}
+
+	/** One EM update of the table followed by the alignment pass. */
+	@Benchmark
+	public Aligner emIteration() {
+		em.train(corpus);
+		return em;
+	}
+
+	/** The alignment pass alone. */
+	@Benchmark
+	public Aligner viterbi() {
+		viterbi.align(corpus);
+		return viterbi;
+	}
+}
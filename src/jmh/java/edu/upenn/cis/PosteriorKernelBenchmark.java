@@ -0,0 +1,99 @@
+// Copyright 2013 by Chris Dyer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Ported to Java by Lane Schwartz
+// Modifications by John Hewitt
+//
+package edu.upenn.cis;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The E-step arithmetic of one n x n sentence with the diagonal prior,
+ * after the translation probabilities have been gathered: weighting,
+ * summing, normalizing and the feature expectation (posterior), or
+ * weighting and the argmax (viterbi). The vector kernel needs -Pvector
+ * and -jvmArgsAppend --add-modules=jdk.incubator.vector.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PosteriorKernelBenchmark {
+
+	@Param({"10", "25", "50", "100"})
+	public int n;
+
+	@Param({"scalar", "vector"})
+	public String kernel;
+
+	private PosteriorKernel k;
+	private double[] gathered;
+	private double[] probs;
+	private final DiagonalPrior cache = new DiagonalPrior();
+
+	@Setup
+	public void setUp() {
+		k = kernel.equals("vector") ? PosteriorKernel.vector() : PosteriorKernel.kScalar;
+		if (k == null) throw new IllegalStateException("Vector API kernel not available");
+		Random rnd = new Random(42);
+		gathered = new double[n * (n + 1)];
+		for (int c = 0; c < gathered.length; ++c) gathered[c] = rnd.nextDouble();
+		probs = new double[n + 1];
+		cache.reset(4.0, 0.92);
+		cache.lookup(n, n);
+	}
+
+	@Benchmark
+	public double posterior() {
+		final double[] prior = cache.prior;
+		final double[] feature = cache.feature;
+		double emp_feat = 0;
+		for (int j = 0; j < n; ++j) {
+			System.arraycopy(gathered, j * (n + 1), probs, 0, n + 1);
+			final double sum = k.weightedSum(probs, 1, n, prior, j * n, probs[0] * 0.08);
+			k.divide(probs, 1, n, sum);
+			emp_feat = k.dot(feature, j * n, probs, 1, n, emp_feat);
+		}
+		return emp_feat;
+	}
+
+	@Benchmark
+	public int viterbi() {
+		final double[] prior = cache.prior;
+		int links = 0;
+		for (int j = 0; j < n; ++j) {
+			System.arraycopy(gathered, j * (n + 1), probs, 0, n + 1);
+			probs[0] *= 0.08;
+			k.weightedSum(probs, 1, n, prior, j * n, probs[0]);
+			links += k.argmax(probs, 0, n + 1);
+		}
+		return links;
+	}
+}
@@ -0,0 +1,145 @@
+// Copyright 2013 by Chris Dyer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Ported to Java by Lane Schwartz
+// Modifications by John Hewitt
+//
+package edu.upenn.cis;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Translation table operations on a Model 1 style table: every source word
+ * of a sentence co-occurs with every target word, over 5000 Zipfian
+ * sentence pairs. Lookups and increments replay (e, f) pairs in corpus
+ * order, so frequent words are hit as often as they are during training.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class TTableBenchmark {
+
+	static final int kPairs = 1 << 20;
+
+	private final TTable table = new TTable();
+	// holds the co-occurrence counts that Normalize turns into probabilities
+	private final TTable cooc = new TTable();
+	private final int[] es = new int[kPairs];
+	private final int[] fs = new int[kPairs];
+	private int next = 0;
+
+	@Setup
+	public void setUp() throws IOException {
+		Corpus corpus = new ZipfBitext(50000, 1.0, 42).corpus(new Dict(), 5000);
+		int[] src = new int[64];
+		int[] trg = new int[64];
+		int k = 0;
+		for (int s = 0; s < corpus.size(); ++s) {
+			corpus.src(s, src);
+			corpus.trg(s, trg);
+			for (int i = 0; i < corpus.srcLength(s); ++i) {
+				for (int j = 0; j < corpus.trgLength(s); ++j) {
+					cooc.Increment(src[i], trg[j]);
+					if (k < kPairs) {
+						es[k] = src[i];
+						fs[k++] = trg[j];
+					}
+				}
+			}
+		}
+		table.add(cooc);
+		table.Normalize();
+	}
+
+	private int next() {
+		final int k = next;
+		next = (k + 1) & (kPairs - 1);
+		return k;
+	}
+
+	@Benchmark
+	public double prob() {
+		final int k = next();
+		return table.prob(es[k], fs[k]);
+	}
+
+	@Benchmark
+	public void increment() {
+		final int k = next();
+		table.Increment(es[k], fs[k], 0.25);
+	}
+
+	/**
+	 * Normalize and NormalizeVB consume the counts, so each call gets a
+	 * fresh copy. They run on this many threads.
+	 */
+	@State(Scope.Thread)
+	public static class Counts {
+		@Param({"1", "4"})
+		public int threads;
+
+		final TTable table = new TTable();
+		ExecutorService pool;
+
+		@Setup
+		public void start() {
+			pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+		}
+
+		@TearDown
+		public void stop() {
+			if (pool != null) pool.shutdown();
+		}
+
+		@Setup(Level.Invocation)
+		public void refill(TTableBenchmark b) {
+			table.clearCounts();
+			table.add(b.cooc);
+		}
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public TTable normalize(Counts counts) {
+		counts.table.Normalize(counts.pool, counts.threads);
+		return counts.table;
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public TTable normalizeVB(Counts counts) {
+		counts.table.NormalizeVB(0.01, counts.pool, counts.threads);
+		return counts.table;
+	}
+}
@@ -0,0 +1,90 @@
+// Copyright 2013 by Chris Dyer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Ported to Java by Lane Schwartz
+// Modifications by John Hewitt
+//
+package edu.upenn.cis;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic bitext for the benchmarks. Source words are drawn from a Zipf
+ * distribution over a fixed vocabulary; each target word translates the
+ * source word at the same position ("s17" -> "t17") with probability 0.8
+ * and is otherwise another Zipfian draw. Sentence lengths are uniform in
+ * [5, 40]. The same seed always gives the same text.
+ */
+final class ZipfBitext {
+
+	private final double[] cdf;
+	private final Random rnd;
+
+	ZipfBitext(int vocabulary, double exponent, long seed) {
+		cdf = new double[vocabulary];
+		double total = 0;
+		for (int r = 0; r < vocabulary; ++r) {
+			total += 1.0 / Math.pow(r + 1, exponent);
+			cdf[r] = total;
+		}
+		for (int r = 0; r < vocabulary; ++r) cdf[r] /= total;
+		rnd = new Random(seed);
+	}
+
+	/** A word rank in [0, vocabulary), 0 being the most frequent. */
+	int word() {
+		int r = Arrays.binarySearch(cdf, rnd.nextDouble());
+		return r < 0 ? Math.min(-r - 1, cdf.length - 1) : r;
+	}
+
+	/** One "source ||| target" line. */
+	String line() {
+		final int n = 5 + rnd.nextInt(36);
+		final int m = Math.max(1, n + rnd.nextInt(7) - 3);
+		int[] src = new int[n];
+		StringBuilder b = new StringBuilder();
+		for (int i = 0; i < n; ++i) {
+			src[i] = word();
+			b.append('s').append(src[i]).append(' ');
+		}
+		b.append("|||");
+		for (int j = 0; j < m; ++j) {
+			final int w = j < n && rnd.nextDouble() < 0.8 ? src[j] : word();
+			b.append(" t").append(w);
+		}
+		return b.toString();
+	}
+
+	List<String> lines(int count) {
+		List<String> lines = new ArrayList<String>(count);
+		for (int k = 0; k < count; ++k) lines.add(line());
+		return lines;
+	}
+
+	/** Integerizes count lines with d, which gets "<eps>" as word 1 first, as in training. */
+	Corpus corpus(Dict d, int count) throws IOException {
+		d.Convert("<eps>");
+		Corpus.Builder builder = new Corpus.Builder();
+		Tokenizer tok = new Tokenizer(d, false);
+		for (int k = 0; k < count; ++k) {
+			tok.parse(line());
+			builder.add(tok.src, tok.src_len, tok.trg, tok.trg_len);
+		}
+		return builder.build();
+	}
+}
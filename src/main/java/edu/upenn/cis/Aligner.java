@@ -0,0 +1,868 @@
+// Copyright 2013 by Chris Dyer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Ported to Java by Lane Schwartz
+// Modifications by John Hewitt
+//
+package edu.upenn.cis;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A fast_align model together with its dictionary: trains the translation
+ * table with EM and aligns sentence pairs against it.
+ *
+ * An Aligner can be reused for any number of corpora in the same JVM.
+ * {@link #align(int[], int[])} may be called from several threads at once
+ * as long as no training is in progress.
+ */
+public class Aligner {
+
+	static class Pair {
+		final int first;
+		final int second;
+
+		Pair(int first, int second) {
+			this.first = first;
+			this.second = second;
+		}
+
+		public boolean equals(Object o) {
+			if (o instanceof Pair) {
+				Pair other = (Pair) o;
+				return this.first==other.first && this.second==other.second;
+			} else {
+				return false;
+			}
+		}
+
+		@Override
+		public int hashCode() {
+			return first << 16 | second;
+		}
+	}
+
+	// Sentences handed to each worker per batch in multi-threaded mode.
+	static final int kBatchSentences = 2000;
+
+	private final AlignerConfig config;
+	private final Dict d; // integerization map
+	private final TTable s2t;
+	private final int kNULL;
+	private final PosteriorKernel kernel;
+	private double diagonal_tension;
+	private double mean_srclen_multiplier = 0;
+	private int steps = 0; // stepwise EM updates so far
+	private boolean pruned = false; // since the last normalization
+	private final Map<Pair, Integer> size_counts = new HashMap<Pair, Integer>();
+	private AlignmentSink alignmentSink = new AlignmentSink() {
+		public void alignment(int[] links, int length) {}
+	};
+	private PosteriorSink posteriorSink = null;
+	private StatisticsSink statisticsSink = new StatisticsSink() {};
+	private ExecutorService pool;
+	private String checkpoint_filename = null;
+	private ExecutorService checkpointer;
+	private Future<Long> checkpoint; // nanoseconds taken by the last checkpoint write
+	private Checkpoint resumed; // applied by the next train()
+	private final ThreadLocal<Worker> local = new ThreadLocal<Worker>() {
+		@Override
+		protected Worker initialValue() {
+			return new Worker(null);
+		}
+	};
+
+	public Aligner(AlignerConfig config) {
+		this(config, new Dict(), new TTable());
+	}
+
+	/**
+	 * Creates an aligner over an existing dictionary and translation table.
+	 * @throws IllegalArgumentException if the config is inconsistent
+	 */
+	public Aligner(AlignerConfig config, Dict d, TTable s2t) {
+		config.validate();
+		this.config = new AlignerConfig(config);
+		this.d = d;
+		this.s2t = s2t;
+		if (config.isSinglePrecision()) s2t.setSinglePrecision(true);
+		this.kNULL = d.Convert("<eps>");
+		this.kernel = PosteriorKernel.get(config.isVectorKernel());
+		this.diagonal_tension = config.getDiagonalTension();
+	}
+
+	/**
+	 * Loads a model saved with {@link #save(String, boolean)} in binary form.
+	 * The model's options override those of config; only the number of
+	 * threads and the training options are taken from config.
+	 */
+	public static Aligner load(String model, AlignerConfig config) throws IOException {
+		ModelParams params = ModelParams.read(model);
+		if (params == null)
+			throw new IOException("Can't read model parameters from " + model);
+		Dict d = new Dict();
+		TTable s2t = new TTable();
+		if (!s2t.ImportFromFile(model, '\t', d))
+			throw new IOException("Can't read table " + model);
+		return new Aligner(new AlignerConfig(config).apply(params), d, s2t);
+	}
+
+	/** The dictionary that maps words to the ids used by this aligner. */
+	public Dict dict() { return d; }
+
+	public TTable table() { return s2t; }
+
+	public AlignerConfig config() { return new AlignerConfig(config); }
+
+	/** Current diagonal tension (changes during training with optimizeTension). */
+	public double getDiagonalTension() { return diagonal_tension; }
+
+	public ModelParams params() {
+		return new ModelParams(diagonal_tension, config.getProbAlignNull(),
+				config.isFavorDiagonal(), config.isNoNullWord(), config.isReverse());
+	}
+
+	/** Sink for the alignments produced by the final training iteration and by align(Corpus). */
+	public void setAlignmentSink(AlignmentSink sink) { this.alignmentSink = sink; }
+
+	/**
+	 * Sink for the link posteriors of the same sentences, or null for none.
+	 * Only links with a posterior of at least the configured threshold, and
+	 * with the top-k option only the k most probable links of each target
+	 * word, are given to it.
+	 */
+	public void setPosteriorSink(PosteriorSink sink) { this.posteriorSink = sink; }
+
+	public void setStatisticsSink(StatisticsSink sink) { this.statisticsSink = sink; }
+
+	/** Starts from an existing conditional probability table (text or binary). */
+	public void importTable(String filename) throws IOException {
+		if (!s2t.ImportFromFile(filename, '\t', d))
+			throw new IOException("Can't read table " + filename);
+		pruned = false;
+	}
+
+	/**
+	 * Writes a {@link Checkpoint} to this file after each iteration that
+	 * updates the model, on a background thread while the next iteration
+	 * runs; null for none.
+	 */
+	public void setCheckpointFile(String filename) { this.checkpoint_filename = filename; }
+
+	/**
+	 * Continues training from a checkpoint written during an earlier run on
+	 * the same corpus: the next {@link #train(Corpus)} restores the model and
+	 * starts with the iteration after the checkpoint's. The final iteration
+	 * is always run, even if the checkpoint is from a later one.
+	 * @throws IllegalArgumentException if the checkpoint is for the other
+	 *         direction or another vocabulary
+	 * @return the last iteration completed before the checkpoint, from 0
+	 */
+	public int resume(String filename) throws IOException {
+		final Checkpoint c = Checkpoint.read(new File(filename));
+		if (c.params.is_reverse != config.isReverse())
+			throw new IllegalArgumentException(filename + " was trained " + (c.params.is_reverse ? "with" : "without") + " -r");
+		boolean same = c.words.length == d.max();
+		for (int w = 0; same && w < c.words.length; ++w) same = c.words[w].equals(d.Convert(w + 1));
+		if (!same)
+			throw new IllegalArgumentException(filename + " was written for another corpus (vocabulary differs)");
+		resumed = c;
+		return c.iteration;
+	}
+
+	/** Number of stepwise EM updates made to the model, including those of a loaded state. */
+	public int getSteps() { return steps; }
+
+	/**
+	 * Writes the running expected counts of stepwise EM together with the
+	 * model parameters and number of updates, so that {@link #loadState} can
+	 * continue training on new data.
+	 */
+	public void saveState(String filename) throws IOException {
+		s2t.ExportStatistics(filename, d, params(), steps);
+	}
+
+	/**
+	 * Continues stepwise EM from a state written by {@link #saveState}. The
+	 * translation table is rebuilt from the saved counts and the diagonal
+	 * tension is restored; the schedule resumes at the saved step.
+	 * @throws IllegalArgumentException if the state is for the other direction
+	 */
+	public void loadState(String filename) throws IOException {
+		ModelParams params = ModelParams.read(filename);
+		if (params == null)
+			throw new IOException("Can't read model parameters from " + filename);
+		if (params.is_reverse != config.isReverse())
+			throw new IllegalArgumentException(filename + " was trained " + (params.is_reverse ? "with" : "without") + " -r");
+		steps = s2t.ImportStatistics(filename, d);
+		diagonal_tension = params.diagonal_tension;
+		s2t.interpolate(0);
+		normalize();
+	}
+
+	/**
+	 * Writes the translation table, pruned as configured; a binary table
+	 * also stores the model parameters.
+	 * @throws IOException if a binary table can't be written
+	 */
+	public void save(String filename, boolean binary) throws IOException {
+		final long start = System.nanoTime();
+		prune();
+		if (binary)
+			s2t.ExportToBinaryFile(filename, d, params());
+		else
+			s2t.ExportToFile(filename, d);
+		statisticsSink.phaseFinished("export", System.nanoTime() - start);
+	}
+
+	/** Trains on integerized sentence pairs; see {@link #train(Corpus)}. */
+	public void train(Iterable<SentencePair> pairs) {
+		Corpus.Builder builder = new Corpus.Builder();
+		try {
+			for (SentencePair p : pairs) builder.add(p.getSource(), p.getTarget());
+			train(builder.build());
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Runs the configured number of EM iterations over the corpus. The last
+	 * iteration does not update the model; it sends the Viterbi alignment of
+	 * every sentence to the alignment sink instead. In stepwise mode each
+	 * other iteration is one pass that updates the model after every
+	 * mini-batch.
+	 */
+	public void train(Corpus corpus) {
+		train(corpus, lengthCounts(corpus));
+	}
+
+	/**
+	 * Counts the (source length, target length) pairs of a corpus, in input
+	 * orientation and in order of first occurrence.
+	 * @throws IllegalArgumentException if a sentence has an empty side
+	 */
+	static Map<Pair, Integer> lengthCounts(Corpus corpus) {
+		return lengthCounts(corpus, 0, corpus.size());
+	}
+
+	/** Counts the length pairs of sentences [from, to); see {@link #lengthCounts(Corpus)}. */
+	static Map<Pair, Integer> lengthCounts(Corpus corpus, int from, int to) {
+		Map<Pair, Integer> counts = new LinkedHashMap<Pair, Integer>();
+		for (int s = from; s < to; ++s) {
+			if (corpus.srcLength(s) == 0 || corpus.trgLength(s) == 0)
+				throw new IllegalArgumentException("Empty side in sentence " + (s + 1));
+			Pair pair = new Pair(corpus.srcLength(s), corpus.trgLength(s));
+			Integer value = counts.get(pair);
+			if (value==null) value=0;
+			counts.put(pair, value+1);
+		}
+		return counts;
+	}
+
+	/**
+	 * Trains with the length histogram of the corpus, as computed by
+	 * {@link #lengthCounts}, so that both directions can share one.
+	 */
+	void train(Corpus corpus, Map<Pair, Integer> length_counts) {
+		final boolean is_reverse = config.isReverse();
+		final int threads = config.getThreads();
+		final ExecutorService pool = pool();
+		final List<Worker> workers = new ArrayList<Worker>();
+		if (pool == null) {
+			workers.add(new Worker(s2t));
+		} else {
+			for (int t = 0; t < threads; ++t)
+				workers.add(new Worker(new TTable()));
+		}
+		final int batch_size = kBatchSentences * threads;
+		final Links[] out = new Links[batch_size];
+		for (int k = 0; k < batch_size; ++k) out[k] = new Links();
+		double prob_align_not_null = 1.0 - config.getProbAlignNull();
+		double tot_len_ratio = 0;
+		// (target length, source length) in model orientation; inserted in
+		// first-occurrence order so the tension sums do not depend on direction
+		size_counts.clear();
+		for (Map.Entry<Pair, Integer> e : length_counts.entrySet()) {
+			final Pair p = e.getKey();
+			size_counts.put(is_reverse ? new Pair(p.first, p.second) : new Pair(p.second, p.first), e.getValue());
+		}
+		final int iterations = config.getIterations();
+		final int mini_batch = config.getMiniBatch();
+		int first = 0;
+		if (resumed != null) {
+			final Checkpoint c = resumed;
+			resumed = null;
+			if (!c.size_counts.equals(size_counts))
+				throw new IllegalArgumentException("Checkpoint was written for another corpus (sentence lengths differ)");
+			c.restore(s2t);
+			diagonal_tension = c.params.diagonal_tension;
+			mean_srclen_multiplier = c.mean_srclen_multiplier;
+			steps = c.steps;
+			pruned = c.pruned;
+			first = Math.min(c.iteration + 1, Math.max(iterations - 1, 0));
+		}
+		// E-M Iterations Loop
+		for (int iter = first; iter < iterations || (iter==0 && iterations==0); ++iter) {
+			final boolean final_iteration = (iter >= (iterations - 1));
+			final boolean stepwise = config.isStepwise() && !final_iteration;
+			statisticsSink.iterationStarted(iter, final_iteration);
+			final long estep_start = System.nanoTime();
+
+			double likelihood = 0;
+			double denom = 0.0;
+			int lc = 0;
+			double c0 = 0;
+			double emp_feat = 0;
+			double toks = 0;
+			for (Worker w : workers) w.reset(kNULL, final_iteration, prob_align_not_null);
+			int batch_start = 0;
+			long normalize_nanos = 0;
+			// Iterate over each sentence pair of the corpus
+			for (int s = 0; s < corpus.size(); ++s) {
+				++lc;
+				if (lc % 1000 == 0) statisticsSink.progress(lc);
+				final int src_len = is_reverse ? corpus.trgLength(s) : corpus.srcLength(s);
+				final int trg_len = is_reverse ? corpus.srcLength(s) : corpus.trgLength(s);
+				if (iter == 0) {
+					tot_len_ratio += ((double) trg_len) / ((double) src_len);
+				}
+				denom += trg_len;
+				toks += trg_len;
+				final boolean step_end = stepwise && (s + 1) % mini_batch == 0;
+				if (s + 1 - batch_start == batch_size || step_end) {
+					runBatch(pool, workers, corpus, batch_start, s + 1, out, final_iteration);
+					batch_start = s + 1;
+					if (step_end) normalize_nanos += step(workers);
+				}
+			}
+			runBatch(pool, workers, corpus, batch_start, corpus.size(), out, final_iteration);
+			if (stepwise && corpus.size() % mini_batch != 0) normalize_nanos += step(workers);
+			// Sum per-worker statistics in a fixed order and fold their counts into s2t.
+			for (Worker w : workers) {
+				likelihood += w.likelihood;
+				c0 += w.c0;
+				emp_feat += w.emp_feat;
+			}
+			fold(workers);
+
+			if (iter == 0) {
+				mean_srclen_multiplier = tot_len_ratio / lc;
+			}
+			emp_feat /= toks;
+			final IterationStats stats = new IterationStats(iter, final_iteration, lc, likelihood, denom,
+					c0, emp_feat, size_counts.size(), mean_srclen_multiplier);
+			// stepwise updates are counted as normalization
+			final long estep_nanos = System.nanoTime() - estep_start - normalize_nanos;
+			statisticsSink.iterationFinished(stats);
+			long tension_nanos = 0;
+			if (!final_iteration) {
+				final long tension_start = System.nanoTime();
+				if (config.isFavorDiagonal() && config.isOptimizeTension() && iter > 0) {
+					diagonal_tension = optimizeTension(size_counts, emp_feat, toks, diagonal_tension, statisticsSink);
+				}
+				final long normalize_start = System.nanoTime();
+				tension_nanos = normalize_start - tension_start;
+				if (!stepwise) normalize();
+				if (!config.isPruneOnExportOnly()) prune();
+				normalize_nanos += System.nanoTime() - normalize_start;
+				if (checkpoint_filename != null) checkpoint(iter);
+				//prob_align_null *= 0.8; // XXX
+				//prob_align_null += (c0 / toks) * 0.2;
+				prob_align_not_null = 1.0 - config.getProbAlignNull();
+			}
+			statisticsSink.iterationCompleted(new IterationMetrics(stats, estep_nanos,
+					tension_nanos, normalize_nanos, diagonal_tension, s2t.rows(), s2t.size(), s2t.bytes(),
+					d.max(), IterationMetrics.heapUsed()));
+		}
+		awaitCheckpoint();
+	}
+
+	/** Starts writing a checkpoint of the model after iteration iter. */
+	private void checkpoint(int iter) {
+		awaitCheckpoint();
+		final Checkpoint c = new Checkpoint(iter, steps, params(), pruned, mean_srclen_multiplier,
+				size_counts, d, s2t);
+		final File file = new File(checkpoint_filename);
+		if (checkpointer == null) {
+			checkpointer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "fast_align-checkpoint");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		checkpoint = checkpointer.submit(new Callable<Long>() {
+			public Long call() throws IOException {
+				final long start = System.nanoTime();
+				c.write(file);
+				return System.nanoTime() - start;
+			}
+		});
+	}
+
+	/**
+	 * Waits for the checkpoint being written, if any. Called before the
+	 * table it refers to is changed.
+	 */
+	private void awaitCheckpoint() {
+		if (checkpoint == null) return;
+		try {
+			final long nanos = checkpoint.get();
+			statisticsSink.phaseFinished("checkpoint", nanos);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			checkpoint = null;
+		}
+	}
+
+	/**
+	 * Moves the diagonal tension so that the expected value of the diagonal
+	 * feature under the model approaches its empirical value emp_feat.
+	 * @param size_counts  (target length, source length) histogram in model orientation
+	 * @param toks  number of target tokens
+	 * @return the new tension
+	 */
+	static double optimizeTension(Map<Pair, Integer> size_counts, double emp_feat, double toks,
+			double diagonal_tension, StatisticsSink statisticsSink) {
+		for (int ii = 0; ii < 8; ++ii) {
+			double mod_feat = 0;
+			Iterator<Map.Entry<Pair,Integer>> it = size_counts.entrySet().iterator();
+			for(; it.hasNext(); ) {
+				Map.Entry<Pair,Integer> entry = it.next();
+				final Pair p = entry.getKey();
+				for (int j = 1; j <= p.first; ++j)
+					mod_feat += entry.getValue() * DiagonalAlignment.computeDLogZ(j, p.first, p.second, diagonal_tension);
+			}
+			mod_feat /= toks;
+			statisticsSink.tensionStep(ii, mod_feat, diagonal_tension);
+			diagonal_tension += (emp_feat - mod_feat) * 20.0;
+			if (diagonal_tension <= 0.1) diagonal_tension = 0.1;
+			if (diagonal_tension > 14) diagonal_tension = 14;
+		}
+		statisticsSink.tensionOptimized(diagonal_tension);
+		return diagonal_tension;
+	}
+
+	/** Folds the workers' private counts into s2t. */
+	private void fold(List<Worker> workers) {
+		for (Worker w : workers) {
+			if (w.counts != s2t) {
+				s2t.add(w.counts);
+				w.counts.clearCounts();
+			}
+		}
+	}
+
+	/** Turns the counts of s2t into its probability table. */
+	private void normalize() {
+		awaitCheckpoint();
+		pruned = false;
+		if (config.isVariationalBayes())
+			s2t.NormalizeVB(config.getAlpha(), pool(), config.getThreads());
+		else
+			s2t.Normalize(pool(), config.getThreads());
+	}
+
+	/**
+	 * Prunes the probability table as configured and reports the change,
+	 * unless it was already pruned since it was last normalized.
+	 */
+	private void prune() {
+		if (!config.isPruning() || pruned) return;
+		pruned = true;
+		final long entries = s2t.size();
+		final long bytes = s2t.bytes();
+		final int rows = s2t.rows();
+		final double removed = s2t.prune(config.getPruneThreshold(), config.getPruneTopK(), config.getPruneMass());
+		statisticsSink.tablePruned(entries, s2t.size(), bytes, s2t.bytes(), rows == 0 ? 0 : removed / rows);
+	}
+
+	/**
+	 * Stepwise EM update after a mini-batch: interpolates the mini-batch's
+	 * expected counts into the running counts with step size
+	 * (steps + offset)^-decay and renormalizes.
+	 * @return the time taken, in nanoseconds
+	 */
+	private long step(List<Worker> workers) {
+		final long start = System.nanoTime();
+		awaitCheckpoint();
+		fold(workers);
+		s2t.interpolate(Math.pow(steps + config.getStepOffset(), -config.getStepDecay()));
+		++steps;
+		normalize();
+		return System.nanoTime() - start;
+	}
+
+	/** Totals of an E-step over part of a corpus, see {@link #estep}. */
+	static final class EStepTotals {
+		int sentences = 0;
+		double likelihood = 0;
+		double c0 = 0;
+		double emp_feat = 0; // not yet divided by toks
+		double toks = 0; // target tokens, in model orientation
+		double len_ratio = 0; // sum of target to source length ratios
+	}
+
+	/**
+	 * One E-step over sentences [from, to) of the corpus against the current
+	 * table with the given tension, for a shard of a multi-process run. The
+	 * expected counts are left in the count rows of the table; in the final
+	 * iteration the alignments go to the alignment sink instead.
+	 */
+	EStepTotals estep(Corpus corpus, int from, int to, double tension, boolean final_iteration) {
+		diagonal_tension = tension;
+		final boolean is_reverse = config.isReverse();
+		final ExecutorService pool = pool();
+		final List<Worker> workers = new ArrayList<Worker>();
+		if (pool == null) {
+			workers.add(new Worker(s2t));
+		} else {
+			for (int t = 0; t < config.getThreads(); ++t)
+				workers.add(new Worker(new TTable()));
+		}
+		final int batch_size = kBatchSentences * config.getThreads();
+		final Links[] out = new Links[batch_size];
+		for (int k = 0; k < batch_size; ++k) out[k] = new Links();
+		final EStepTotals totals = new EStepTotals();
+		for (Worker w : workers) w.reset(kNULL, final_iteration, 1.0 - config.getProbAlignNull());
+		for (int s = from; s < to; ++s) {
+			final int src_len = is_reverse ? corpus.trgLength(s) : corpus.srcLength(s);
+			final int trg_len = is_reverse ? corpus.srcLength(s) : corpus.trgLength(s);
+			totals.len_ratio += ((double) trg_len) / ((double) src_len);
+			totals.toks += trg_len;
+		}
+		for (int b = from; b < to; b += batch_size)
+			runBatch(pool, workers, corpus, b, Math.min(to, b + batch_size), out, final_iteration);
+		for (Worker w : workers) {
+			totals.likelihood += w.likelihood;
+			totals.c0 += w.c0;
+			totals.emp_feat += w.emp_feat;
+		}
+		fold(workers);
+		totals.sentences = to - from;
+		return totals;
+	}
+
+	/**
+	 * Aligns every sentence of the corpus against the current model, without
+	 * updating it, and sends the alignments to the alignment sink.
+	 */
+	public void align(Corpus corpus) {
+		final int threads = config.getThreads();
+		final ExecutorService pool = pool();
+		final List<Worker> workers = new ArrayList<Worker>();
+		for (int t = 0; t < threads; ++t) {
+			Worker w = new Worker(null);
+			w.reset(kNULL, true, 1.0 - config.getProbAlignNull());
+			workers.add(w);
+		}
+		final int batch_size = kBatchSentences * threads;
+		final Links[] out = new Links[batch_size];
+		for (int k = 0; k < batch_size; ++k) out[k] = new Links();
+		for (int from = 0; from < corpus.size(); from += batch_size)
+			runBatch(pool, workers, corpus, from, Math.min(corpus.size(), from + batch_size), out, true);
+	}
+
+	/**
+	 * The E-step thread pool, created on first use and kept for the life of
+	 * the aligner. Its threads are daemons, so an unused aligner does not
+	 * keep the JVM alive. Returns null when running single-threaded.
+	 */
+	private synchronized ExecutorService pool() {
+		if (config.getThreads() <= 1) return null;
+		if (pool == null) {
+			pool = Executors.newFixedThreadPool(config.getThreads(), new ThreadFactory() {
+				private int n = 0;
+				public synchronized Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "fast_align-estep-" + (n++));
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return pool;
+	}
+
+	/**
+	 * Aligns one sentence pair against the current model.
+	 * @return (source index, target index) pairs, as for {@link AlignmentSink}
+	 */
+	public int[] align(int[] src, int[] trg) {
+		Worker w = local.get();
+		w.reset(kNULL, true, 1.0 - config.getProbAlignNull());
+		Links out = w.scratch;
+		out.length = 0;
+		out.soft_length = 0;
+		if (src.length > 0 && trg.length > 0) {
+			if (config.isReverse())
+				w.align(trg, trg.length, src, src.length, out);
+			else
+				w.align(src, src.length, trg, trg.length, out);
+		}
+		return Arrays.copyOf(out.links, out.length);
+	}
+
+	/**
+	 * Runs the E-step over sentences [from, to) of the corpus, splitting
+	 * them into contiguous slices across the workers. In the final
+	 * iteration the alignments are sent to the sink afterwards in input order.
+	 */
+	private void runBatch(final ExecutorService pool,
+			final List<Worker> workers,
+			final Corpus corpus,
+			final int from,
+			final int to,
+			final Links[] out,
+			final boolean final_iteration) {
+		final int n = to - from;
+		if (n == 0) return;
+		// stop promptly when interrupted, e.g. because the other direction of a BidirectionalAligner failed
+		if (Thread.currentThread().isInterrupted()) throw new RuntimeException(new InterruptedException());
+		if (pool == null) {
+			workers.get(0).align(corpus, from, to, from, out);
+		} else {
+			final int slice = (n + workers.size() - 1) / workers.size();
+			List<Future<?>> pending = new ArrayList<Future<?>>(workers.size());
+			for (int t = 0; t < workers.size(); ++t) {
+				final Worker w = workers.get(t);
+				final int lo = Math.min(to, from + t * slice);
+				final int hi = Math.min(to, lo + slice);
+				pending.add(pool.submit(new Runnable() {
+					public void run() {
+						w.align(corpus, lo, hi, from, out);
+					}
+				}));
+			}
+			try {
+				for (Future<?> f : pending) f.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			}
+		}
+		if (final_iteration) {
+			try {
+				for (int k = 0; k < n; ++k) alignmentSink.alignment(out[k].links, out[k].length);
+				if (posteriorSink != null) {
+					for (int k = 0; k < n; ++k)
+						posteriorSink.posteriors(out[k].soft_links, out[k].posteriors, out[k].soft_length);
+				}
+				if (to == corpus.size()) {
+					alignmentSink.flush();
+					if (posteriorSink != null) posteriorSink.flush();
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/**
+	 * Growable buffer of (source index, target index) pairs, and of the
+	 * links given to a {@link PosteriorSink} with their posteriors.
+	 */
+	static class Links {
+		int[] links = new int[64];
+		int length = 0;
+		int[] soft_links = new int[0];
+		double[] posteriors = new double[0];
+		int soft_length = 0;
+
+		void add(int i, int j) {
+			if (length + 2 > links.length) links = Arrays.copyOf(links, links.length * 2);
+			links[length++] = i;
+			links[length++] = j;
+		}
+
+		void add(int i, int j, double p) {
+			if (soft_length + 2 > soft_links.length) {
+				soft_links = Arrays.copyOf(soft_links, Math.max(64, soft_links.length * 2));
+				posteriors = Arrays.copyOf(posteriors, soft_links.length / 2);
+			}
+			posteriors[soft_length / 2] = p;
+			soft_links[soft_length++] = i;
+			soft_links[soft_length++] = j;
+		}
+	}
+
+	/**
+	 * E-step state owned by a single thread. Workers read the shared
+	 * probability table and accumulate expected counts into their own
+	 * count table, which is merged into the shared one after the iteration.
+	 */
+	private class Worker {
+		private final TTable counts;
+		private double[] probs = new double[64];
+		private double[] sorted = new double[0]; // for the top-k posteriors
+		private final Links scratch = new Links();
+		private final DiagonalPrior prior = new DiagonalPrior();
+		private int[] src = new int[64];
+		private int[] trg = new int[64];
+		private int kNULL;
+		private boolean final_iteration;
+		private double prob_align_not_null;
+		private double likelihood;
+		private double c0;
+		private double emp_feat;
+
+		private Worker(TTable counts) {
+			this.counts = counts;
+		}
+
+		private void reset(int kNULL, boolean final_iteration, double prob_align_not_null) {
+			this.kNULL = kNULL;
+			this.final_iteration = final_iteration;
+			this.prob_align_not_null = prob_align_not_null;
+			if (config.isFavorDiagonal()) prior.reset(diagonal_tension, prob_align_not_null);
+			likelihood = 0;
+			c0 = 0;
+			emp_feat = 0;
+		}
+
+		/** Aligns sentences [from, to); out[s - base] receives the links of sentence s. */
+		private void align(Corpus corpus, int from, int to, int base, Links[] out) {
+			final boolean is_reverse = config.isReverse();
+			for (int s = from; s < to; ++s) {
+				int src_len = corpus.srcLength(s);
+				int trg_len = corpus.trgLength(s);
+				if (src.length < src_len) src = new int[Math.max(src_len, src.length * 2)];
+				if (trg.length < trg_len) trg = new int[Math.max(trg_len, trg.length * 2)];
+				corpus.src(s, src);
+				corpus.trg(s, trg);
+				final Links o = out[s - base];
+				o.length = 0;
+				o.soft_length = 0;
+				if (is_reverse)
+					align(trg, trg_len, src, src_len, o);
+				else
+					align(src, src_len, trg, trg_len, o);
+			}
+		}
+
+		/**
+		 * E-step (or, in the final iteration, Viterbi alignment) of one
+		 * sentence. Allocation-free once the scratch buffers, count rows and
+		 * prior cache have grown to fit the corpus.
+		 */
+		private void align(int[] src, int src_len, int[] trg, int trg_len, Links out) {
+			final boolean soft = final_iteration && posteriorSink != null;
+			final boolean use_null = !config.isNoNullWord();
+			final boolean favor_diagonal = config.isFavorDiagonal();
+			final double prob_align_null = config.getProbAlignNull();
+			final boolean is_reverse = config.isReverse();
+			if (probs.length <= src_len) probs = new double[Math.max(src_len + 1, probs.length * 2)];
+			// probs[0] is the null word, probs[i] source word i
+			final double[] probs = this.probs;
+			double[] prior = null;
+			double[] feature = null;
+			if (favor_diagonal) {
+				this.prior.lookup(trg_len, src_len);
+				prior = this.prior.prior;
+				feature = this.prior.feature;
+			}
+			final double uniform = 1.0 / (src_len + (use_null ? 1 : 0));  // uniform (model 1)
+			// Iterate through the English tokens
+			for (int j = 0; j < trg_len; ++j) {
+				final int f_j = trg[j];
+				final int row = j * src_len - 1;
+				double sum = 0;
+				if (use_null) {
+					probs[0] = s2t.prob(kNULL, f_j) * (favor_diagonal ? prob_align_null : uniform);
+					sum += probs[0];
+				}
+				for (int i = 1; i <= src_len; ++i)
+					probs[i] = s2t.prob(src[i-1], f_j);
+				if (favor_diagonal)
+					sum = kernel.weightedSum(probs, 1, src_len, prior, row + 1, sum);
+				else
+					sum = kernel.scaledSum(probs, 1, src_len, uniform, sum);
+				if (final_iteration) {
+					final int max_index = use_null ? kernel.argmax(probs, 0, src_len + 1) : kernel.argmax(probs, 1, src_len);
+					if (max_index > 0) {
+						if (is_reverse)
+							out.add(j, max_index - 1);
+						else
+							out.add(max_index - 1, j);
+					}
+					if (soft) {
+						kernel.divide(probs, 1, src_len, sum);
+						posteriors(probs, src_len, j, out);
+					}
+				} else {
+					if (use_null) {
+						double count = probs[0] / sum;
+						c0 += count;
+						counts.Increment(kNULL, f_j, count);
+					}
+					kernel.divide(probs, 1, src_len, sum);
+					for (int i = 1; i <= src_len; ++i)
+						counts.Increment(src[i-1], f_j, probs[i]);
+					if (favor_diagonal) {
+						emp_feat = kernel.dot(feature, row + 1, probs, 1, src_len, emp_feat);
+					} else {
+						for (int i = 1; i <= src_len; ++i)
+							emp_feat += DiagonalAlignment.feature(j, i, trg_len, src_len) * probs[i];
+					}
+				}
+				likelihood += Math.log(sum);
+			}
+		}
+
+		/**
+		 * Adds the links of target word j whose posteriors, in
+		 * probs[1..src_len], reach the threshold; with top-k, only those
+		 * among the k largest (ties with the k-th are kept).
+		 */
+		private void posteriors(double[] probs, int src_len, int j, Links out) {
+			double cutoff = config.getPosteriorThreshold();
+			final int top_k = config.getPosteriorTopK();
+			if (top_k > 0 && top_k < src_len) {
+				if (sorted.length < src_len) sorted = new double[Math.max(src_len, sorted.length * 2)];
+				System.arraycopy(probs, 1, sorted, 0, src_len);
+				Arrays.sort(sorted, 0, src_len);
+				cutoff = Math.max(cutoff, sorted[src_len - top_k]);
+			}
+			final boolean is_reverse = config.isReverse();
+			for (int i = 1; i <= src_len; ++i) {
+				if (probs[i] < cutoff) continue;
+				if (is_reverse)
+					out.add(j, i - 1, probs[i]);
+				else
+					out.add(i - 1, j, probs[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,202 @@
+// Copyright 2013 by Chris Dyer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Ported to Java by Lane Schwartz
+// Modifications by John Hewitt
+//
+package edu.upenn.cis;
+
+/**
+ * Training and decoding options for an {@link Aligner}. Setters return the
+ * config so that options can be chained; defaults match the command line.
+ */
+public class AlignerConfig {
+
+	private boolean reverse = false;
+	private int iterations = 5;
+	private boolean favorDiagonal = false;
+	private double probAlignNull = 0.08;
+	private double diagonalTension = 4.0;
+	private boolean optimizeTension = false;
+	private boolean variationalBayes = false;
+	private double alpha = 0.01;
+	private boolean noNullWord = false;
+	private int threads = 1;
+	private int miniBatch = 0;
+	private double stepDecay = 0.7;
+	private double stepOffset = 2.0;
+	private double pruneThreshold = 0;
+	private int pruneTopK = 0;
+	private double pruneMass = 1.0;
+	private boolean pruneOnExportOnly = false;
+	private boolean singlePrecision = false;
+	private boolean vectorKernel = false;
+	private double posteriorThreshold = 0.1;
+	private int posteriorTopK = 0;
+
+	public AlignerConfig() {}
+
+	public AlignerConfig(AlignerConfig other) {
+		this.reverse = other.reverse;
+		this.iterations = other.iterations;
+		this.favorDiagonal = other.favorDiagonal;
+		this.probAlignNull = other.probAlignNull;
+		this.diagonalTension = other.diagonalTension;
+		this.optimizeTension = other.optimizeTension;
+		this.variationalBayes = other.variationalBayes;
+		this.alpha = other.alpha;
+		this.noNullWord = other.noNullWord;
+		this.threads = other.threads;
+		this.miniBatch = other.miniBatch;
+		this.stepDecay = other.stepDecay;
+		this.stepOffset = other.stepOffset;
+		this.pruneThreshold = other.pruneThreshold;
+		this.pruneTopK = other.pruneTopK;
+		this.pruneMass = other.pruneMass;
+		this.pruneOnExportOnly = other.pruneOnExportOnly;
+		this.singlePrecision = other.singlePrecision;
+		this.vectorKernel = other.vectorKernel;
+		this.posteriorThreshold = other.posteriorThreshold;
+		this.posteriorTopK = other.posteriorTopK;
+	}
+
+	/** Condition on the target and predict the source (-r). */
+	public AlignerConfig setReverse(boolean reverse) { this.reverse = reverse; return this; }
+	public boolean isReverse() { return reverse; }
+
+	/** Number of EM iterations; the last one produces the alignments (-I). */
+	public AlignerConfig setIterations(int iterations) { this.iterations = iterations; return this; }
+	public int getIterations() { return iterations; }
+
+	/** Favor alignment points close to the monotonic diagonal (-d). */
+	public AlignerConfig setFavorDiagonal(boolean favorDiagonal) { this.favorDiagonal = favorDiagonal; return this; }
+	public boolean isFavorDiagonal() { return favorDiagonal; }
+
+	/** Probability of aligning to the null word (-p). */
+	public AlignerConfig setProbAlignNull(double probAlignNull) { this.probAlignNull = probAlignNull; return this; }
+	public double getProbAlignNull() { return probAlignNull; }
+
+	/** Starting lambda for the diagonal distance parameter (-T). */
+	public AlignerConfig setDiagonalTension(double diagonalTension) { this.diagonalTension = diagonalTension; return this; }
+	public double getDiagonalTension() { return diagonalTension; }
+
+	/** Optimize how close to the diagonal alignment points should be (-o). */
+	public AlignerConfig setOptimizeTension(boolean optimizeTension) { this.optimizeTension = optimizeTension; return this; }
+	public boolean isOptimizeTension() { return optimizeTension; }
+
+	/** Use a Dirichlet prior on lexical translation distributions (-v). */
+	public AlignerConfig setVariationalBayes(boolean variationalBayes) { this.variationalBayes = variationalBayes; return this; }
+	public boolean isVariationalBayes() { return variationalBayes; }
+
+	/** Concentration of the Dirichlet prior (-a). */
+	public AlignerConfig setAlpha(double alpha) { this.alpha = alpha; return this; }
+	public double getAlpha() { return alpha; }
+
+	/** Do not align to the null word (-N). */
+	public AlignerConfig setNoNullWord(boolean noNullWord) { this.noNullWord = noNullWord; return this; }
+	public boolean isNoNullWord() { return noNullWord; }
+
+	/** Number of E-step threads (-t). */
+	public AlignerConfig setThreads(int threads) { this.threads = threads; return this; }
+	public int getThreads() { return threads; }
+
+	/**
+	 * Train with stepwise (online) EM, updating the model after every
+	 * miniBatch sentences instead of once per pass; 0 means batch EM (-m).
+	 */
+	public AlignerConfig setMiniBatch(int miniBatch) { this.miniBatch = miniBatch; return this; }
+	public int getMiniBatch() { return miniBatch; }
+	public boolean isStepwise() { return miniBatch > 0; }
+
+	/** Step size of the k-th stepwise update is (k + stepOffset)^-stepDecay (-k). */
+	public AlignerConfig setStepDecay(double stepDecay) { this.stepDecay = stepDecay; return this; }
+	public double getStepDecay() { return stepDecay; }
+
+	/** See {@link #setStepDecay} (-K). */
+	public AlignerConfig setStepOffset(double stepOffset) { this.stepOffset = stepOffset; return this; }
+	public double getStepOffset() { return stepOffset; }
+
+	/** Drop translation probabilities below this value; 0 keeps all (-P). */
+	public AlignerConfig setPruneThreshold(double pruneThreshold) { this.pruneThreshold = pruneThreshold; return this; }
+	public double getPruneThreshold() { return pruneThreshold; }
+
+	/** Keep only the k most probable translations of each source word; 0 keeps all (-Q). */
+	public AlignerConfig setPruneTopK(int pruneTopK) { this.pruneTopK = pruneTopK; return this; }
+	public int getPruneTopK() { return pruneTopK; }
+
+	/** Keep the most probable translations of each source word up to this share of its mass; 1 keeps all (-U). */
+	public AlignerConfig setPruneMass(double pruneMass) { this.pruneMass = pruneMass; return this; }
+	public double getPruneMass() { return pruneMass; }
+
+	/** Prune only the table that is saved, not between iterations (-z). */
+	public AlignerConfig setPruneOnExportOnly(boolean pruneOnExportOnly) { this.pruneOnExportOnly = pruneOnExportOnly; return this; }
+	public boolean isPruneOnExportOnly() { return pruneOnExportOnly; }
+
+	/** Store translation probabilities, and binary tables, as floats (-F). */
+	public AlignerConfig setSinglePrecision(boolean singlePrecision) { this.singlePrecision = singlePrecision; return this; }
+	public boolean isSinglePrecision() { return singlePrecision; }
+
+	/**
+	 * Compute E-step posteriors with the Java Vector API if it is available;
+	 * results may then differ from the scalar ones in the last bits (-V).
+	 */
+	public AlignerConfig setVectorKernel(boolean vectorKernel) { this.vectorKernel = vectorKernel; return this; }
+	public boolean isVectorKernel() { return vectorKernel; }
+
+	/** Smallest link posterior given to a {@link PosteriorSink} (-L). */
+	public AlignerConfig setPosteriorThreshold(double posteriorThreshold) { this.posteriorThreshold = posteriorThreshold; return this; }
+	public double getPosteriorThreshold() { return posteriorThreshold; }
+
+	/** Give only the k most probable links of each target word to a {@link PosteriorSink}; 0 gives all (-Y). */
+	public AlignerConfig setPosteriorTopK(int posteriorTopK) { this.posteriorTopK = posteriorTopK; return this; }
+	public int getPosteriorTopK() { return posteriorTopK; }
+
+	public boolean isPruning() { return pruneThreshold > 0 || pruneTopK > 0 || pruneMass < 1; }
+
+	/** Applies the options stored with a saved model. */
+	AlignerConfig apply(ModelParams params) {
+		reverse = params.is_reverse;
+		favorDiagonal = params.favor_diagonal;
+		probAlignNull = params.prob_align_null;
+		diagonalTension = params.diagonal_tension;
+		noNullWord = params.no_null_word;
+		return this;
+	}
+
+	/** Throws IllegalArgumentException if the options are inconsistent. */
+	void validate() {
+		if (variationalBayes && alpha <= 0.0)
+			throw new IllegalArgumentException("--alpha must be > 0");
+		if (threads < 1)
+			throw new IllegalArgumentException("-t must be >= 1");
+		if (iterations < 0)
+			throw new IllegalArgumentException("-I must be >= 0");
+		if (miniBatch < 0)
+			throw new IllegalArgumentException("-m must be >= 0");
+		if (!(stepDecay > 0.5 && stepDecay <= 1))
+			throw new IllegalArgumentException("-k must be in (0.5, 1]");
+		if (!(stepOffset >= 1))
+			throw new IllegalArgumentException("-K must be >= 1");
+		if (!(pruneThreshold >= 0 && pruneThreshold < 1))
+			throw new IllegalArgumentException("-P must be in [0, 1)");
+		if (pruneTopK < 0)
+			throw new IllegalArgumentException("-Q must be >= 0");
+		if (!(pruneMass > 0 && pruneMass <= 1))
+			throw new IllegalArgumentException("-U must be in (0, 1]");
+		if (!(posteriorThreshold >= 0 && posteriorThreshold <= 1))
+			throw new IllegalArgumentException("-L must be in [0, 1]");
+		if (posteriorTopK < 0)
+			throw new IllegalArgumentException("-Y must be >= 0");
+	}
+}
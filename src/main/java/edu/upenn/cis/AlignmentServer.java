@@ -0,0 +1,312 @@
+// Copyright 2013 by Chris Dyer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Ported to Java by Lane Schwartz
+// Modifications by John Hewitt
+//
+package edu.upenn.cis;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves alignments from a loaded model over HTTP on the loopback interface.
+ *
+ * POST /align takes "source ||| target" lines and answers with one "i-j"
+ * line per input line. Requests are queued and a single batcher thread
+ * aligns everything waiting, up to maxBatch sentences, in one
+ * {@link Aligner#align(Corpus)} call over the shared read-only table.
+ * GET /stats reports request and sentence counts, throughput and p50/p99
+ * latency as JSON.
+ */
+public class AlignmentServer {
+
+	// Latencies kept for the percentile estimates.
+	static final int kLatencySamples = 8192;
+
+	private final Aligner aligner;
+	private final int maxBatch;
+	private final HttpServer server;
+	private final ExecutorService handlers;
+	private final BlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+	private final Thread batcher;
+	private volatile boolean running = true;
+
+	private final long started = System.nanoTime();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong sentences = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong batched = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final long[] latencies = new long[kLatencySamples];
+	private long latencyCount = 0;
+
+	/** One client request: its sentences and, once aligned, its output lines. */
+	private static class Request {
+		final List<SentencePair> pairs;
+		final String[] lines;
+		final CountDownLatch done = new CountDownLatch(1);
+		volatile RuntimeException error;
+		volatile boolean stopped; // released unaligned by a stopping server
+
+		Request(List<SentencePair> pairs) {
+			this.pairs = pairs;
+			this.lines = new String[pairs.size()];
+		}
+	}
+
+	/**
+	 * Binds to the given loopback port (0 picks a free one). The server does
+	 * not accept requests until {@link #start()}.
+	 * @param maxBatch  most sentences aligned in one batch
+	 */
+	public AlignmentServer(Aligner aligner, int port, int maxBatch) throws IOException {
+		if (maxBatch < 1) throw new IllegalArgumentException("maxBatch must be positive");
+		this.aligner = aligner;
+		this.maxBatch = maxBatch;
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		// One thread per concurrent request; they only parse, wait and reply.
+		this.handlers = Executors.newCachedThreadPool();
+		server.setExecutor(handlers);
+		server.createContext("/align", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				handleAlign(exchange);
+			}
+		});
+		server.createContext("/stats", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				reply(exchange, 200, "application/json", stats());
+			}
+		});
+		this.batcher = new Thread(new Runnable() {
+			public void run() {
+				batchLoop();
+			}
+		}, "fast_align-batcher");
+		batcher.setDaemon(true);
+	}
+
+	/** The port the server is bound to. */
+	public int port() {
+		return server.getAddress().getPort();
+	}
+
+	public void start() {
+		batcher.start();
+		server.start();
+	}
+
+	/**
+	 * Stops accepting requests and waits up to delaySeconds for open
+	 * exchanges. Handlers still running after that get a 503 reply.
+	 */
+	public void stop(int delaySeconds) {
+		server.stop(delaySeconds);
+		// no request is queued after this, so the batcher releases the last ones
+		synchronized (queue) {
+			running = false;
+		}
+		batcher.interrupt();
+		try {
+			batcher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		handlers.shutdown();
+	}
+
+	private void handleAlign(HttpExchange exchange) throws IOException {
+		final long t0 = System.nanoTime();
+		if (!"POST".equals(exchange.getRequestMethod())) {
+			reply(exchange, 405, "text/plain", "POST sentence pairs to /align\n");
+			return;
+		}
+		final Dict d = aligner.dict();
+		final String[] text = read(exchange.getRequestBody()).split("\r?\n");
+		List<SentencePair> pairs = new ArrayList<SentencePair>(text.length);
+		for (int k = 0; k < text.length; ++k) {
+			if (text[k].isEmpty() && k == text.length - 1) break;
+			SentencePair pair = SentencePair.parse(text[k], d, true);
+			if (pair.getSource().length == 0 || pair.getTarget().length == 0) {
+				errors.incrementAndGet();
+				reply(exchange, 400, "text/plain", "Error in line " + (k + 1) + "\n" + text[k] + "\n");
+				return;
+			}
+			pairs.add(pair);
+		}
+		String[] lines;
+		try {
+			lines = pairs.isEmpty() ? new String[0] : align(pairs);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			lines = null;
+		} catch (RuntimeException e) {
+			errors.incrementAndGet();
+			reply(exchange, 500, "text/plain", e + "\n");
+			return;
+		}
+		if (lines == null) {
+			reply(exchange, 503, "text/plain", "Server shutting down\n");
+			return;
+		}
+		StringBuilder out = new StringBuilder();
+		for (String line : lines) out.append(line).append('\n');
+		reply(exchange, 200, "text/plain", out.toString());
+		requests.incrementAndGet();
+		sentences.addAndGet(pairs.size());
+		record(System.nanoTime() - t0);
+	}
+
+	/**
+	 * Queues pairs for the batcher and waits for their alignment lines.
+	 * @return the lines, or null if the server is stopping
+	 * @throws RuntimeException the error that failed the batch
+	 */
+	String[] align(List<SentencePair> pairs) throws InterruptedException {
+		Request request = new Request(pairs);
+		synchronized (queue) {
+			if (!running) return null;
+			queue.add(request);
+		}
+		request.done.await();
+		if (request.stopped) return null;
+		if (request.error != null) throw request.error;
+		return request.lines;
+	}
+
+	/** Takes whatever requests are waiting and aligns them together. */
+	private void batchLoop() {
+		final List<Request> batch = new ArrayList<Request>();
+		while (running) {
+			Request first;
+			try {
+				first = queue.take();
+			} catch (InterruptedException e) {
+				break;
+			}
+			batch.clear();
+			batch.add(first);
+			int n = first.pairs.size();
+			Request next;
+			while (n < maxBatch && (next = queue.poll()) != null) {
+				batch.add(next);
+				n += next.pairs.size();
+			}
+			alignBatch(batch);
+			batches.incrementAndGet();
+			batched.addAndGet(n);
+		}
+		// Release anyone still waiting.
+		synchronized (queue) {
+			running = false;
+		}
+		for (Request r; (r = queue.poll()) != null; ) {
+			r.stopped = true;
+			r.done.countDown();
+		}
+	}
+
+	private void alignBatch(final List<Request> batch) {
+		try {
+			Corpus.Builder builder = new Corpus.Builder();
+			for (Request r : batch) {
+				for (SentencePair p : r.pairs) builder.add(p.getSource(), p.getTarget());
+			}
+			aligner.setAlignmentSink(new AlignmentSink() {
+				private final StringBuilder line = new StringBuilder();
+				private int request = 0;
+				private int sentence = 0;
+				public void alignment(int[] links, int length) {
+					line.setLength(0);
+					for (int k = 0; k < length; k += 2) {
+						if (k > 0) line.append(' ');
+						line.append(links[k]).append('-').append(links[k + 1]);
+					}
+					while (sentence == batch.get(request).lines.length) {
+						++request;
+						sentence = 0;
+					}
+					batch.get(request).lines[sentence++] = line.toString();
+				}
+			});
+			aligner.align(builder.build());
+		} catch (IOException e) {
+			for (Request r : batch) r.error = new IllegalStateException(e);
+		} catch (RuntimeException e) {
+			for (Request r : batch) r.error = e;
+		}
+		for (Request r : batch) r.done.countDown();
+	}
+
+	private synchronized void record(long nanos) {
+		latencies[(int) (latencyCount++ % kLatencySamples)] = nanos;
+	}
+
+	/** Latency percentile over the most recent requests, in milliseconds. */
+	synchronized double percentile(double p) {
+		final int n = (int) Math.min(latencyCount, kLatencySamples);
+		if (n == 0) return 0;
+		long[] sorted = Arrays.copyOf(latencies, n);
+		Arrays.sort(sorted);
+		int k = (int) Math.ceil(p * n) - 1;
+		return sorted[Math.max(0, Math.min(n - 1, k))] / 1e6;
+	}
+
+	/** Counters as a JSON object. */
+	String stats() {
+		final double uptime = (System.nanoTime() - started) / 1e9;
+		final long b = batches.get();
+		return String.format(Locale.ROOT,
+				"{\"requests\":%d,\"sentences\":%d,\"errors\":%d,\"batches\":%d,\"mean_batch_sentences\":%.2f,"
+				+ "\"uptime_s\":%.3f,\"requests_per_s\":%.2f,\"sentences_per_s\":%.2f,\"p50_ms\":%.3f,\"p99_ms\":%.3f}\n",
+				requests.get(), sentences.get(), errors.get(), b, b == 0 ? 0.0 : (double) batched.get() / b,
+				uptime, requests.get() / uptime, sentences.get() / uptime, percentile(0.50), percentile(0.99));
+	}
+
+	private static String read(InputStream in) throws IOException {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		byte[] b = new byte[8192];
+		for (int n; (n = in.read(b)) > 0; ) buf.write(b, 0, n);
+		in.close();
+		return new String(buf.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static void reply(HttpExchange exchange, int status, String type, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", type + "; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+}
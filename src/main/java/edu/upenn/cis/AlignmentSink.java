@@ -0,0 +1,39 @@
+// Copyright 2013 by Chris Dyer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Ported to Java by Lane Schwartz
+// Modifications by John Hewitt
+//
+package edu.upenn.cis;
+
+import java.io.IOException;
+
+/**
+ * Receives the Viterbi alignment of every sentence of a decoding pass, in
+ * input order.
+ */
+public interface AlignmentSink {
+
+	/**
+	 * @param links  (source index, target index) pairs in links[0..length);
+	 *               indices refer to the sides of the input pair, whatever
+	 *               the alignment direction. An aligner gives them ordered
+	 *               by target position, a {@link Symmetrizer} by source position.
+	 * @param length  twice the number of links
+	 */
+	void alignment(int[] links, int length) throws IOException;
+
+	/** Called after the last sentence of a pass. */
+	default void flush() throws IOException {}
+}
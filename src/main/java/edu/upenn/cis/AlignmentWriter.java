@@ -0,0 +1,300 @@
+// Copyright 2013 by Chris Dyer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Ported to Java by Lane Schwartz
+// Modifications by John Hewitt
+//
+package edu.upenn.cis;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes alignments in the "i-j i-j ..." text format of
+ * {@link TextAlignmentSink}, but formats them straight into large byte
+ * blocks and leaves the writing (and compressing, with gzip) to a
+ * background thread. Blocks are written in the order they are filled, so
+ * lines come out in the order of the calls to {@link #alignment}, which an
+ * {@link Aligner} makes in input order whatever the number of threads.
+ *
+ * Link posteriors are written one sentence per line as "i-j:p i-j:p ...",
+ * with p rounded to four decimals. In the binary format each sentence is
+ * instead the number of links, then for each link i, j and p; counts and
+ * indices are unsigned LEB128 varints and p a big-endian float.
+ *
+ * A few blocks are recycled between the two threads; a slow output stalls
+ * the caller once they are all waiting to be written. An error of the
+ * output is thrown by the next call. {@link #close()} writes what is left
+ * and closes the stream.
+ */
+public final class AlignmentWriter implements AlignmentSink, PosteriorSink, Closeable {
+
+	static final int kBlockSize = 1 << 20;
+	private static final int kBlocks = 4;
+
+	private static final class Block {
+		final byte[] buf;
+		int length = 0;
+
+		Block(int size) {
+			buf = new byte[size];
+		}
+	}
+
+	// Markers queued after the data: flush the stream, or close it and stop.
+	private static final Block kFlush = new Block(0);
+	private static final Block kClose = new Block(0);
+
+	private final OutputStream out;
+	private final int block_size;
+	private final boolean binary; // posteriors in the binary format
+	private final ArrayBlockingQueue<Block> full = new ArrayBlockingQueue<Block>(kBlocks + 1);
+	private final ArrayBlockingQueue<Block> free = new ArrayBlockingQueue<Block>(kBlocks);
+	private final Semaphore done = new Semaphore(0);
+	private volatile IOException error;
+	private Block cur;
+	private boolean closed = false;
+
+	public AlignmentWriter(OutputStream out) {
+		this(out, kBlockSize);
+	}
+
+	AlignmentWriter(OutputStream out, int block_size) {
+		this(out, block_size, false);
+	}
+
+	AlignmentWriter(OutputStream out, int block_size, boolean binary) {
+		this.out = out;
+		this.block_size = block_size;
+		this.binary = binary;
+		cur = new Block(block_size);
+		for (int b = 1; b < kBlocks; ++b) free.add(new Block(block_size));
+		Thread writer = new Thread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		}, "alignment-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/** A writer to out, compressing with gzip if asked to. */
+	public static AlignmentWriter open(OutputStream out, boolean gzip) throws IOException {
+		return open(out, gzip, false);
+	}
+
+	/** As {@link #open(OutputStream, boolean)}, writing posteriors in the binary format if asked to. */
+	public static AlignmentWriter open(OutputStream out, boolean gzip, boolean binary) throws IOException {
+		return new AlignmentWriter(gzip ? new GZIPOutputStream(out, 1 << 16) : out, kBlockSize, binary);
+	}
+
+	public void alignment(int[] links, int length) throws IOException {
+		check();
+		// at most 10 digits per index, '-' and a separator per link
+		final Block b = room((length / 2) * 23 + 1);
+		format(b, links, length);
+		release(b);
+	}
+
+	public void posteriors(int[] links, double[] posteriors, int length) throws IOException {
+		check();
+		if (binary) {
+			// a count and two indices of at most 5 bytes each, 4 bytes per float
+			final Block b = room((length / 2) * 14 + 5);
+			encode(b, links, posteriors, length);
+			release(b);
+		} else {
+			// as for alignment(), plus ':' and "d.dddd"
+			final Block b = room((length / 2) * 30 + 1);
+			format(b, links, posteriors, length);
+			release(b);
+		}
+	}
+
+	/** The current block if it has room for need more bytes; a line longer than a block gets a block of its own. */
+	private Block room(int need) throws IOException {
+		if (need > block_size) {
+			send();
+			return new Block(need);
+		}
+		if (cur.length + need > block_size) send();
+		return cur;
+	}
+
+	/** Queues a block of its own from {@link #room}. */
+	private void release(Block b) throws IOException {
+		if (b != cur) put(b);
+	}
+
+	private static void format(Block b, int[] links, int length) {
+		final byte[] buf = b.buf;
+		int p = b.length;
+		for (int k = 0; k < length; k += 2) {
+			if (k > 0) buf[p++] = ' ';
+			p = digits(buf, p, links[k]);
+			buf[p++] = '-';
+			p = digits(buf, p, links[k + 1]);
+		}
+		buf[p++] = '\n';
+		b.length = p;
+	}
+
+	private static void format(Block b, int[] links, double[] posteriors, int length) {
+		final byte[] buf = b.buf;
+		int p = b.length;
+		for (int k = 0; k < length; k += 2) {
+			if (k > 0) buf[p++] = ' ';
+			p = digits(buf, p, links[k]);
+			buf[p++] = '-';
+			p = digits(buf, p, links[k + 1]);
+			buf[p++] = ':';
+			final int v = (int) Math.round(posteriors[k / 2] * 10000);
+			p = digits(buf, p, v / 10000);
+			buf[p++] = '.';
+			int frac = v % 10000;
+			for (int q = p + 3; q >= p; --q) {
+				buf[q] = (byte) ('0' + frac % 10);
+				frac /= 10;
+			}
+			p += 4;
+		}
+		buf[p++] = '\n';
+		b.length = p;
+	}
+
+	private static void encode(Block b, int[] links, double[] posteriors, int length) {
+		final byte[] buf = b.buf;
+		int p = varint(buf, b.length, length / 2);
+		for (int k = 0; k < length; k += 2) {
+			p = varint(buf, p, links[k]);
+			p = varint(buf, p, links[k + 1]);
+			final int bits = Float.floatToIntBits((float) posteriors[k / 2]);
+			buf[p++] = (byte) (bits >>> 24);
+			buf[p++] = (byte) (bits >>> 16);
+			buf[p++] = (byte) (bits >>> 8);
+			buf[p++] = (byte) bits;
+		}
+		b.length = p;
+	}
+
+	/** Writes a non-negative v as an unsigned LEB128 varint at buf[p..); returns the end. */
+	private static int varint(byte[] buf, int p, int v) {
+		while ((v & ~0x7f) != 0) {
+			buf[p++] = (byte) ((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		buf[p++] = (byte) v;
+		return p;
+	}
+
+	/** Writes the decimal form of a non-negative v at buf[p..); returns the end. */
+	private static int digits(byte[] buf, int p, int v) {
+		int end = p;
+		for (int x = v; x >= 10; x /= 10) ++end;
+		for (int q = end; q >= p; --q) {
+			buf[q] = (byte) ('0' + v % 10);
+			v /= 10;
+		}
+		return end + 1;
+	}
+
+	/** Waits until everything so far is written and the stream is flushed. */
+	public void flush() throws IOException {
+		check();
+		send();
+		put(kFlush);
+		await();
+		check();
+	}
+
+	public void close() throws IOException {
+		if (closed) return;
+		closed = true;
+		send();
+		put(kClose);
+		await();
+		if (error != null) throw error;
+	}
+
+	private void check() throws IOException {
+		if (closed) throw new IOException("Alignment writer is closed");
+		if (error != null) throw error;
+	}
+
+	/** Queues the current block, if it holds anything, and takes a free one. */
+	private void send() throws IOException {
+		if (cur.length == 0) return;
+		put(cur);
+		try {
+			cur = free.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	private void put(Block b) throws IOException {
+		try {
+			full.put(b);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	private void await() throws IOException {
+		try {
+			done.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	/** The background thread: writes blocks until the close marker. */
+	private void drain() {
+		try {
+			while (true) {
+				final Block b = full.take();
+				try {
+					if (b == kClose) {
+						out.close();
+					} else if (b == kFlush) {
+						out.flush();
+					} else if (error == null) {
+						out.write(b.buf, 0, b.length);
+					}
+				} catch (IOException e) {
+					if (error == null) error = e;
+				}
+				if (b == kClose) {
+					done.release();
+					return;
+				} else if (b == kFlush) {
+					done.release();
+				} else if (b.buf.length == block_size) {
+					b.length = 0;
+					free.put(b);
+				}
+			}
+		} catch (InterruptedException e) {
+			// daemon thread; nothing is waiting for it
+		}
+	}
+}
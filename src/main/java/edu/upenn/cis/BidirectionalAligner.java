@@ -0,0 +1,126 @@
+// Copyright 2013 by Chris Dyer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Ported to Java by Lane Schwartz
+// Modifications by John Hewitt
+//
+package edu.upenn.cis;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Trains the forward (source to target) and reverse models together, as
+ * needed for symmetrized alignments. Both directions share one dictionary,
+ * one corpus and one sentence-length histogram, and train concurrently:
+ * the reverse model on a thread of its own, the forward model on the
+ * calling thread. Each direction keeps its own table and sinks.
+ */
+public class BidirectionalAligner {
+
+	private final Dict d;
+	private final Aligner forward;
+	private final Aligner reverse;
+
+	/** The reverse option of config is ignored. */
+	public BidirectionalAligner(AlignerConfig config) {
+		this(config, new Dict());
+	}
+
+	public BidirectionalAligner(AlignerConfig config, Dict d) {
+		this.d = d;
+		this.forward = new Aligner(new AlignerConfig(config).setReverse(false), d, new TTable());
+		this.reverse = new Aligner(new AlignerConfig(config).setReverse(true), d, new TTable());
+	}
+
+	/** The dictionary shared by both directions. */
+	public Dict dict() { return d; }
+
+	/** The source to target model. */
+	public Aligner forward() { return forward; }
+
+	/** The target to source model; its links are still (source, target) pairs. */
+	public Aligner reverse() { return reverse; }
+
+	/** Trains on integerized sentence pairs; see {@link #train(Corpus)}. */
+	public void train(Iterable<SentencePair> pairs) {
+		Corpus.Builder builder = new Corpus.Builder();
+		try {
+			for (SentencePair p : pairs) builder.add(p.getSource(), p.getTarget());
+			train(builder.build());
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Runs EM for both directions over the corpus; see
+	 * {@link Aligner#train(Corpus)}. Returns once both have finished. If
+	 * one direction fails, the other is interrupted, so that it does not
+	 * wait forever on a sink shared with the failed one, and the first
+	 * failure that is not such an interruption is thrown.
+	 */
+	public void train(final Corpus corpus) {
+		final Map<Aligner.Pair, Integer> lengths = Aligner.lengthCounts(corpus);
+		final AtomicReference<Throwable> reverse_failure = new AtomicReference<Throwable>();
+		final Thread caller = Thread.currentThread();
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					reverse.train(corpus, lengths);
+				} catch (Throwable e) {
+					reverse_failure.set(e);
+					caller.interrupt();
+				}
+			}
+		}, "fast_align-reverse");
+		t.start();
+		Throwable forward_failure = null;
+		try {
+			forward.train(corpus, lengths);
+		} catch (Throwable e) {
+			forward_failure = e;
+			t.interrupt();
+		}
+		boolean interrupted = false;
+		while (t.isAlive()) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		Throwable e = reverse_failure.get();
+		if (e == null || (forward_failure != null && !isInterruption(forward_failure))) e = forward_failure;
+		if (e == null) {
+			if (interrupted) Thread.currentThread().interrupt();
+			return;
+		}
+		// a pending interrupt came from the failed reverse thread
+		if (reverse_failure.get() != null) Thread.interrupted();
+		if (e instanceof RuntimeException) throw (RuntimeException) e;
+		if (e instanceof Error) throw (Error) e;
+		throw new RuntimeException(e);
+	}
+
+	/** Whether e was caused by interrupting a thread, as after the other direction failed. */
+	private static boolean isInterruption(Throwable e) {
+		for (Throwable c = e; c != null; c = c.getCause()) {
+			if (c instanceof InterruptedException || c instanceof InterruptedIOException) return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,91 @@
+// Copyright 2013 by Chris Dyer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Ported to Java by Lane Schwartz
+// Modifications by John Hewitt
+//
+package edu.upenn.cis;
+
+import java.util.Arrays;
+
+/**
+ * Map from byte strings to positive word ids, for looking words up
+ * straight from an input buffer. Open addressing over entries (a slot
+ * holds entry + 1, 0 is empty); the bytes of all keys live in one pool.
+ * Not thread-safe.
+ */
+final class ByteIndex {
+
+	private int[] slots = new int[1024];
+	private int entries = 0;
+	private int[] ids = new int[256];
+	private int[] hashes = new int[256];
+	private int[] starts = new int[256];
+	private int[] lengths = new int[256];
+	private byte[] pool = new byte[4096];
+	private int used = 0;
+
+	static int hash(final byte[] buf, final int from, final int to) {
+		int h = 0x811C9DC5;
+		for (int k = from; k < to; ++k) h = (h ^ buf[k]) * 0x01000193;
+		return h ^ (h >>> 16);
+	}
+
+	/** The id of the bytes buf[from, to), or 0 if they are not in the index. */
+	int get(final byte[] buf, final int from, final int to) {
+		final int h = hash(buf, from, to);
+		final int len = to - from;
+		for (int i = h & (slots.length - 1); slots[i] != 0; i = (i + 1) & (slots.length - 1)) {
+			final int e = slots[i] - 1;
+			if (hashes[e] != h || lengths[e] != len) continue;
+			final int start = starts[e];
+			int k = 0;
+			while (k < len && pool[start + k] == buf[from + k]) ++k;
+			if (k == len) return ids[e];
+		}
+		return 0;
+	}
+
+	/** Adds the bytes buf[from, to), which must not be in the index yet. */
+	void put(final byte[] buf, final int from, final int to, final int id) {
+		final int len = to - from;
+		if (entries == ids.length) {
+			ids = Arrays.copyOf(ids, entries * 2);
+			hashes = Arrays.copyOf(hashes, entries * 2);
+			starts = Arrays.copyOf(starts, entries * 2);
+			lengths = Arrays.copyOf(lengths, entries * 2);
+		}
+		if (used + len > pool.length)
+			pool = Arrays.copyOf(pool, Math.max(used + len, pool.length * 2));
+		System.arraycopy(buf, from, pool, used, len);
+		ids[entries] = id;
+		hashes[entries] = hash(buf, from, to);
+		starts[entries] = used;
+		lengths[entries] = len;
+		used += len;
+		++entries;
+		if (entries * 2 > slots.length) {
+			slots = new int[slots.length * 2];
+			for (int e = 0; e < entries; ++e) slot(hashes[e], e);
+		} else {
+			slot(hashes[entries - 1], entries - 1);
+		}
+	}
+
+	private void slot(final int h, final int e) {
+		int i = h & (slots.length - 1);
+		while (slots[i] != 0) i = (i + 1) & (slots.length - 1);
+		slots[i] = e + 1;
+	}
+}
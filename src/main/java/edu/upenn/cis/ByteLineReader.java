@@ -0,0 +1,115 @@
+// Copyright 2013 by Chris Dyer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Ported to Java by Lane Schwartz
+// Modifications by John Hewitt
+//
+package edu.upenn.cis;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads a stream line by line into a reusable byte buffer, without
+ * decoding it. Lines end at "\n", "\r" or "\r\n", as with
+ * BufferedReader.readLine; after {@link #next()} the line, without its
+ * terminator, is buf()[start(), end()).
+ */
+final class ByteLineReader implements Closeable {
+
+	private final InputStream in;
+	private byte[] buf = new byte[1 << 16];
+	private int pos = 0; // first unconsumed byte
+	private int limit = 0; // end of the bytes read
+	private int start = 0;
+	private int end = 0;
+	private boolean eof = false;
+	private boolean skip_lf = false; // the last line ended with '\r'
+
+	ByteLineReader(InputStream in) {
+		this.in = in;
+	}
+
+	/** Reads the lines of buf[from, to), which is used in place. */
+	ByteLineReader(byte[] buf, int from, int to) {
+		this.in = null;
+		this.buf = buf;
+		this.pos = from;
+		this.limit = to;
+		this.eof = true;
+	}
+
+	byte[] buf() { return buf; }
+
+	int start() { return start; }
+
+	int end() { return end; }
+
+	/** The current line, decoded; for error messages. */
+	String line() {
+		return new String(buf, start, end - start, StandardCharsets.UTF_8);
+	}
+
+	/** Advances to the next line; false at the end of the stream. */
+	boolean next() throws IOException {
+		if (skip_lf) {
+			if (pos == limit && !eof) fill();
+			if (pos < limit && buf[pos] == '\n') ++pos;
+			skip_lf = false;
+		}
+		int scan = pos;
+		while (true) {
+			while (scan < limit && buf[scan] != '\n' && buf[scan] != '\r') ++scan;
+			if (scan < limit) break;
+			if (eof) {
+				if (pos == limit) return false;
+				break;
+			}
+			final int scanned = scan - pos;
+			fill();
+			scan = pos + scanned;
+		}
+		start = pos;
+		end = scan;
+		if (scan < limit) {
+			skip_lf = buf[scan] == '\r';
+			pos = scan + 1;
+		} else {
+			pos = scan;
+		}
+		return true;
+	}
+
+	/** Moves the unconsumed bytes to the front, growing the buffer if it is full, and reads more. */
+	private void fill() throws IOException {
+		if (pos > 0) {
+			System.arraycopy(buf, pos, buf, 0, limit - pos);
+			limit -= pos;
+			pos = 0;
+		}
+		if (limit == buf.length) buf = Arrays.copyOf(buf, buf.length * 2);
+		final int n = in.read(buf, limit, buf.length - limit);
+		if (n < 0)
+			eof = true;
+		else
+			limit += n;
+	}
+
+	public void close() throws IOException {
+		if (in != null) in.close();
+	}
+}
@@ -0,0 +1,213 @@
+// Copyright 2013 by Chris Dyer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Ported to Java by Lane Schwartz
+// Modifications by John Hewitt
+//
+package edu.upenn.cis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The state of an {@link Aligner} between two EM iterations: enough to run
+ * the remaining iterations as if training had not stopped.
+ *
+ * A checkpoint is taken on the training thread right after normalization.
+ * It keeps references to the probability rows and running statistics
+ * rather than copies, so it must be written before the table is next
+ * normalized; the capacities of the count rows are copied, since the next
+ * E-step fills them. The file (big-endian) holds:
+ * <pre>
+ *   int   magic, version, iteration, steps, flags
+ *   double diagonal tension, p_null, mean source length multiplier
+ *   int   length pairs, then per pair: int first, second, count
+ *   vocab    int count, then per word: int byte length, UTF-8 bytes
+ *   table    int rows, then per row: boolean present, map
+ *   counts   int rows, then per row: int capacity (0 for none)
+ *   stats    int rows, then per row: boolean present, map
+ * </pre>
+ * Maps are written slot by slot ({@link IntDoubleMap#write}), so a resumed
+ * single-threaded run sums in the same order and gives the same results.
+ */
+final class Checkpoint {
+
+	static final int kMagic = 0x46414b31; // "FAK1"
+	static final int kVersion = 1;
+
+	private static final int kFavorDiagonal = 1;
+	private static final int kNoNullWord = 2;
+	private static final int kReverse = 4;
+	private static final int kPruned = 8;
+
+	final int iteration; // the last completed iteration
+	final int steps;
+	final ModelParams params;
+	final boolean pruned;
+	final double mean_srclen_multiplier;
+	final Map<Aligner.Pair, Integer> size_counts;
+	final String[] words; // words[id - 1]
+	final IntDoubleMap[] table;
+	final int[] count_capacities;
+	final IntDoubleMap[] stats;
+
+	Checkpoint(int iteration, int steps, ModelParams params, boolean pruned, double mean_srclen_multiplier,
+			Map<Aligner.Pair, Integer> size_counts, Dict d, TTable s2t) {
+		this.iteration = iteration;
+		this.steps = steps;
+		this.params = params;
+		this.pruned = pruned;
+		this.mean_srclen_multiplier = mean_srclen_multiplier;
+		this.size_counts = new LinkedHashMap<Aligner.Pair, Integer>(size_counts);
+		this.words = new String[d.max()];
+		for (int w = 0; w < words.length; ++w) words[w] = d.Convert(w + 1);
+		this.table = s2t.ttable.clone();
+		this.count_capacities = new int[s2t.counts.length];
+		for (int e = 0; e < count_capacities.length; ++e)
+			count_capacities[e] = s2t.counts[e] == null ? 0 : s2t.counts[e].capacity();
+		this.stats = s2t.stats.clone();
+	}
+
+	private Checkpoint(int iteration, int steps, ModelParams params, boolean pruned, double mean_srclen_multiplier,
+			Map<Aligner.Pair, Integer> size_counts, String[] words, IntDoubleMap[] table, int[] count_capacities,
+			IntDoubleMap[] stats) {
+		this.iteration = iteration;
+		this.steps = steps;
+		this.params = params;
+		this.pruned = pruned;
+		this.mean_srclen_multiplier = mean_srclen_multiplier;
+		this.size_counts = size_counts;
+		this.words = words;
+		this.table = table;
+		this.count_capacities = count_capacities;
+		this.stats = stats;
+	}
+
+	/**
+	 * Writes the checkpoint to a temporary file next to file and renames it
+	 * over file, so that file always holds a complete checkpoint.
+	 */
+	void write(File file) throws IOException {
+		final File tmp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 20));
+		try {
+			out.writeInt(kMagic);
+			out.writeInt(kVersion);
+			out.writeInt(iteration);
+			out.writeInt(steps);
+			int flags = 0;
+			if (params.favor_diagonal) flags |= kFavorDiagonal;
+			if (params.no_null_word) flags |= kNoNullWord;
+			if (params.is_reverse) flags |= kReverse;
+			if (pruned) flags |= kPruned;
+			out.writeInt(flags);
+			out.writeDouble(params.diagonal_tension);
+			out.writeDouble(params.prob_align_null);
+			out.writeDouble(mean_srclen_multiplier);
+			out.writeInt(size_counts.size());
+			for (Map.Entry<Aligner.Pair, Integer> e : size_counts.entrySet()) {
+				out.writeInt(e.getKey().first);
+				out.writeInt(e.getKey().second);
+				out.writeInt(e.getValue());
+			}
+			out.writeInt(words.length);
+			for (String word : words) {
+				final byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+			writeRows(out, table);
+			out.writeInt(count_capacities.length);
+			for (int capacity : count_capacities) out.writeInt(capacity);
+			writeRows(out, stats);
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void writeRows(DataOutputStream out, IntDoubleMap[] rows) throws IOException {
+		out.writeInt(rows.length);
+		for (IntDoubleMap row : rows) {
+			out.writeBoolean(row != null);
+			if (row != null) row.write(out);
+		}
+	}
+
+	private static IntDoubleMap[] readRows(DataInputStream in) throws IOException {
+		IntDoubleMap[] rows = new IntDoubleMap[in.readInt()];
+		for (int e = 0; e < rows.length; ++e) {
+			if (in.readBoolean()) rows[e] = IntDoubleMap.read(in);
+		}
+		return rows;
+	}
+
+	static Checkpoint read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 20));
+		try {
+			if (in.readInt() != kMagic)
+				throw new IOException(file + " is not a checkpoint");
+			final int version = in.readInt();
+			if (version != kVersion)
+				throw new IOException(file + ": unsupported checkpoint version " + version);
+			final int iteration = in.readInt();
+			final int steps = in.readInt();
+			final int flags = in.readInt();
+			final double diagonal_tension = in.readDouble();
+			final double prob_align_null = in.readDouble();
+			final double mean_srclen_multiplier = in.readDouble();
+			final ModelParams params = new ModelParams(diagonal_tension, prob_align_null,
+					(flags & kFavorDiagonal) != 0,
+					(flags & kNoNullWord) != 0,
+					(flags & kReverse) != 0);
+			final int pairs = in.readInt();
+			Map<Aligner.Pair, Integer> size_counts = new LinkedHashMap<Aligner.Pair, Integer>();
+			for (int p = 0; p < pairs; ++p) {
+				final int first = in.readInt();
+				final int second = in.readInt();
+				size_counts.put(new Aligner.Pair(first, second), in.readInt());
+			}
+			String[] words = new String[in.readInt()];
+			for (int w = 0; w < words.length; ++w) {
+				byte[] bytes = new byte[in.readInt()];
+				in.readFully(bytes);
+				words[w] = new String(bytes, StandardCharsets.UTF_8);
+			}
+			final IntDoubleMap[] table = readRows(in);
+			int[] count_capacities = new int[in.readInt()];
+			for (int e = 0; e < count_capacities.length; ++e) count_capacities[e] = in.readInt();
+			final IntDoubleMap[] stats = readRows(in);
+			return new Checkpoint(iteration, steps, params, (flags & kPruned) != 0, mean_srclen_multiplier,
+					size_counts, words, table, count_capacities, stats);
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Makes s2t the table of this checkpoint, with empty count rows of the saved capacities. */
+	void restore(TTable s2t) {
+		s2t.restore(table, count_capacities, stats);
+	}
+}
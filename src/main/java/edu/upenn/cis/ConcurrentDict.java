@@ -0,0 +1,89 @@
+// Copyright 2013 by Chris Dyer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Ported to Java by Lane Schwartz
+// Modifications by John Hewitt
+//
+package edu.upenn.cis;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * A {@link Dict} that many threads can fill at once, for parsing chunks of a
+ * bitext in parallel. Known words are found without locking; a new word
+ * takes the lock of one hash bin of the word map and a dense id from a
+ * counter. Each thread also keeps its own byte index, so repeated words are
+ * looked up from the input buffer without decoding.
+ *
+ * Ids are dense but follow the order in which threads first saw the words.
+ * Readers that need the ids of a serial run renumber them in input order
+ * (see {@link Corpus#read(String, Dict, long, int)}).
+ */
+public class ConcurrentDict extends Dict {
+
+	private final ConcurrentHashMap<String,Integer> ids_ = new ConcurrentHashMap<String,Integer>();
+	private final AtomicInteger next_ = new AtomicInteger();
+	private volatile String[] words_ = new String[1024];
+	private final ThreadLocal<ByteIndex> bytes_ = new ThreadLocal<ByteIndex>() {
+		protected ByteIndex initialValue() { return new ByteIndex(); }
+	};
+
+	public ConcurrentDict() {
+	}
+
+	/** Starts with the words of seed, under the same ids. */
+	public ConcurrentDict(Dict seed) {
+		for (int id = 1; id <= seed.max(); ++id) Convert(seed.Convert(id), false);
+	}
+
+	public int max() { return next_.get(); }
+
+	public int Convert(final String word, boolean frozen) {
+		final Integer known = ids_.get(word);
+		if (known != null) return known;
+		if (frozen) return 0;
+		return ids_.computeIfAbsent(word, new Function<String,Integer>() {
+			public Integer apply(String w) {
+				final int id = next_.incrementAndGet();
+				store(id, w);
+				return id;
+			}
+		});
+	}
+
+	public int Convert(final byte[] buf, final int from, final int to, boolean frozen) {
+		final ByteIndex local = bytes_.get();
+		final int known = local.get(buf, from, to);
+		if (known != 0) return known;
+		final int id = Convert(new String(buf, from, to - from, StandardCharsets.UTF_8), frozen);
+		if (id != 0) local.put(buf, from, to, id);
+		return id;
+	}
+
+	public String Convert(final int id) {
+		if (id == 0) return super.Convert(0);
+		return words_[id - 1];
+	}
+
+	private synchronized void store(int id, String word) {
+		String[] words = words_;
+		if (id > words.length) words = Arrays.copyOf(words, Math.max(id, words.length * 2));
+		words[id - 1] = word;
+		words_ = words;
+	}
+}
@@ -0,0 +1,529 @@
+// Copyright 2013 by Chris Dyer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Ported to Java by Lane Schwartz
+// Modifications by John Hewitt
+//
+package edu.upenn.cis;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * An integerized parallel corpus.
+ *
+ * All tokens live in one flat int sequence: sentence s occupies
+ * [start(s), start(s+1)), its first srcLength(s) tokens are the source side
+ * and the rest are the target side. The token sequence is stored in chunks
+ * of at most 2^28 ints so that it can be backed either by heap arrays or by
+ * read-only mappings of a file.
+ *
+ * A corpus can be written to a binary file together with its vocabulary
+ * ({@link #write(File, Dict)}) and mapped back with {@link #map(File, Dict)}.
+ * The file layout (big-endian, sections 8-byte aligned) is:
+ * <pre>
+ *   int   magic, version, size, 0
+ *   long  tokens, vocab offset, starts offset, srcLens offset, tokens offset
+ *   vocab    int count, then per word: int byte length, UTF-8 bytes
+ *   starts   (size + 1) longs
+ *   srcLens  size ints
+ *   tokens   ints
+ * </pre>
+ */
+public class Corpus {
+
+	static final int kMagic = 0x46414331; // "FAC1"
+	static final int kVersion = 1;
+	static final int kHeaderBytes = 56;
+
+	static final int kChunkShift = 28;
+	static final int kChunkSize = 1 << kChunkShift;
+	static final int kChunkMask = kChunkSize - 1;
+
+	private final IntBuffer[] tokens;
+	private final LongBuffer starts;
+	private final IntBuffer srcLens;
+	private final int size;
+
+	Corpus(IntBuffer[] tokens, LongBuffer starts, IntBuffer srcLens) {
+		this.tokens = tokens;
+		this.starts = starts;
+		this.srcLens = srcLens;
+		this.size = srcLens.limit();
+	}
+
+	/** Number of sentence pairs. */
+	public int size() { return size; }
+
+	/** Total number of tokens on both sides. */
+	public long tokens() { return starts.get(size); }
+
+	public int srcLength(int s) {
+		return srcLens.get(s);
+	}
+
+	public int trgLength(int s) {
+		return (int) (starts.get(s + 1) - starts.get(s)) - srcLens.get(s);
+	}
+
+	/** Copies the source side of sentence s into dst, which must be large enough. */
+	public void src(int s, int[] dst) {
+		copy(starts.get(s), dst, srcLens.get(s));
+	}
+
+	/** Copies the target side of sentence s into dst, which must be large enough. */
+	public void trg(int s, int[] dst) {
+		copy(starts.get(s) + srcLens.get(s), dst, trgLength(s));
+	}
+
+	private void copy(long from, int[] dst, int len) {
+		int chunk = (int) (from >>> kChunkShift);
+		int pos = (int) (from & kChunkMask);
+		IntBuffer buf = tokens[chunk];
+		for (int k = 0; k < len; ++k) {
+			if (pos == kChunkSize) {
+				buf = tokens[++chunk];
+				pos = 0;
+			}
+			dst[k] = buf.get(pos++);
+		}
+	}
+
+	/**
+	 * Accumulates sentence pairs. Tokens are kept on the heap until more than
+	 * maxTokensInMemory have been added; from then on they are written to a
+	 * temporary file which is memory-mapped by {@link #build()}.
+	 */
+	public static class Builder {
+		private final long maxTokensInMemory;
+		private final List<int[]> chunks = new ArrayList<int[]>();
+		private int[] cur = new int[1024];
+		private int used = 0;
+		private long total = 0;
+		private long[] starts = new long[1024];
+		private int[] srcLens = new int[1024];
+		private int size = 0;
+		private File spill;
+		private DataOutputStream spillOut;
+
+		public Builder() {
+			this(Long.MAX_VALUE);
+		}
+
+		public Builder(long maxTokensInMemory) {
+			this.maxTokensInMemory = maxTokensInMemory;
+		}
+
+		public void add(List<Integer> src, List<Integer> trg) throws IOException {
+			begin(src.size());
+			for (int k = 0; k < src.size(); ++k) append(src.get(k));
+			for (int k = 0; k < trg.size(); ++k) append(trg.get(k));
+			starts[size] = total;
+		}
+
+		public void add(int[] src, int[] trg) throws IOException {
+			add(src, src.length, trg, trg.length);
+		}
+
+		/** Adds the pair whose source and target tokens follow each other in tokens[from..). */
+		public void add(int[] tokens, int from, int src_len, int trg_len) throws IOException {
+			begin(src_len);
+			for (int k = from; k < from + src_len + trg_len; ++k) append(tokens[k]);
+			starts[size] = total;
+		}
+
+		/** Adds the pair src[0..src_len), trg[0..trg_len). */
+		public void add(int[] src, int src_len, int[] trg, int trg_len) throws IOException {
+			begin(src_len);
+			for (int k = 0; k < src_len; ++k) append(src[k]);
+			for (int k = 0; k < trg_len; ++k) append(trg[k]);
+			starts[size] = total;
+		}
+
+		private void begin(int src_len) {
+			if (size + 1 >= starts.length) {
+				starts = Arrays.copyOf(starts, starts.length * 2);
+				srcLens = Arrays.copyOf(srcLens, srcLens.length * 2);
+			}
+			starts[size] = total;
+			srcLens[size] = src_len;
+			++size;
+		}
+
+		/** Number of sentence pairs added so far. */
+		public int size() { return size; }
+
+		private void append(int token) throws IOException {
+			if (spillOut != null) {
+				spillOut.writeInt(token);
+			} else {
+				if (used == cur.length) {
+					if (cur.length < kChunkSize) {
+						cur = Arrays.copyOf(cur, (int) Math.min(kChunkSize, cur.length * 2L));
+					} else {
+						chunks.add(cur);
+						cur = new int[1024];
+						used = 0;
+					}
+				}
+				cur[used++] = token;
+				if (total + 1 > maxTokensInMemory) startSpill();
+			}
+			++total;
+		}
+
+		private void startSpill() throws IOException {
+			spill = File.createTempFile("fast_align", ".corpus");
+			spill.deleteOnExit();
+			spillOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spill), 1 << 20));
+			for (int[] c : chunks) {
+				for (int k = 0; k < c.length; ++k) spillOut.writeInt(c[k]);
+			}
+			for (int k = 0; k < used; ++k) spillOut.writeInt(cur[k]);
+			chunks.clear();
+			cur = null;
+			used = 0;
+		}
+
+		/** True if tokens have been written to a temporary file. */
+		public boolean spilled() { return spill != null; }
+
+		public Corpus build() throws IOException {
+			IntBuffer[] tokens;
+			if (spillOut != null) {
+				spillOut.close();
+				RandomAccessFile file = new RandomAccessFile(spill, "r");
+				try {
+					tokens = map(file.getChannel(), 0, total);
+				} finally {
+					file.close();
+				}
+			} else {
+				tokens = new IntBuffer[chunks.size() + 1];
+				for (int c = 0; c < chunks.size(); ++c)
+					tokens[c] = IntBuffer.wrap(chunks.get(c));
+				tokens[chunks.size()] = IntBuffer.wrap(cur, 0, used).slice();
+			}
+			return new Corpus(tokens,
+					LongBuffer.wrap(Arrays.copyOf(starts, size + 1)),
+					IntBuffer.wrap(Arrays.copyOf(srcLens, size)));
+		}
+	}
+
+	/**
+	 * Reads a bitext: a compiled corpus is mapped, a UTF-8 text file with one
+	 * "source ||| target" pair per line is integerized with d.
+	 * @param maxTokensInMemory  tokens of a text corpus to keep on the heap before spilling
+	 */
+	public static Corpus read(String filename, Dict d, long maxTokensInMemory) throws IOException {
+		final File file = new File(filename);
+		if (isCompiled(file)) return map(file, d);
+		ByteLineReader in = new ByteLineReader(new FileInputStream(file));
+		try {
+			Builder builder = new Builder(maxTokensInMemory);
+			Tokenizer tok = new Tokenizer(d, false);
+			int lc = 0;
+			while (in.next()) {
+				++lc;
+				// Integerize and split source and target lines.
+				tok.parse(in.buf(), in.start(), in.end());
+				// TODO Empty lines break the parser. Should this be true?
+				if (tok.src_len == 0 || tok.trg_len == 0)
+					throw new IOException("Error in line " + lc + "\n" + in.line());
+				builder.add(tok.src, tok.src_len, tok.trg, tok.trg_len);
+			}
+			if (lc == 0)
+				throw new IOException("Can't read " + filename);
+			return builder.build();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Reads a bitext like {@link #read(String, Dict, long)}, but parses a
+	 * text file in chunks of whole lines on several threads. The chunks
+	 * share a {@link ConcurrentDict} and are merged in input order,
+	 * renumbering each word when it is first seen, so the corpus and the
+	 * ids added to d are the same as those of a serial read.
+	 */
+	public static Corpus read(String filename, Dict d, long maxTokensInMemory, int threads) throws IOException {
+		final File file = new File(filename);
+		if (threads <= 1 || isCompiled(file)) return read(filename, d, maxTokensInMemory);
+		d.Convert("|||");
+		final ConcurrentDict shared = new ConcurrentDict(d);
+		final int chunk_size = (int) Math.max(kMinReadChunk,
+				Math.min(kMaxReadChunk, file.length() / (threads * 4L)));
+		final ExecutorService pool = Executors.newFixedThreadPool(threads);
+		final ArrayDeque<Future<ParsedChunk>> pending = new ArrayDeque<Future<ParsedChunk>>();
+		final FileInputStream in = new FileInputStream(file);
+		try {
+			Builder builder = new Builder(maxTokensInMemory);
+			int[] remap = new int[1024];
+			byte[] carry = new byte[0];
+			boolean eof = false;
+			int lc = 0;
+			while (!eof || !pending.isEmpty()) {
+				if (!eof && pending.size() < 2 * threads) {
+					// Read the next chunk and cut it after its last '\n'; the
+					// rest of the line is carried over to the next chunk.
+					final byte[] buf = Arrays.copyOf(carry, carry.length + chunk_size);
+					int len = carry.length;
+					while (len < buf.length) {
+						final int n = in.read(buf, len, buf.length - len);
+						if (n < 0) {
+							eof = true;
+							break;
+						}
+						len += n;
+					}
+					int cut = len;
+					if (!eof) {
+						while (cut > 0 && buf[cut - 1] != '\n') --cut;
+						if (cut == 0) {
+							carry = Arrays.copyOf(buf, len);
+							continue;
+						}
+					}
+					carry = Arrays.copyOfRange(buf, cut, len);
+					if (cut == 0) continue;
+					final int end = cut;
+					pending.add(pool.submit(new Callable<ParsedChunk>() {
+						public ParsedChunk call() throws IOException {
+							return ParsedChunk.parse(buf, end, shared);
+						}
+					}));
+					continue;
+				}
+				final ParsedChunk chunk;
+				try {
+					chunk = pending.poll().get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException(e);
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+					throw new RuntimeException(e.getCause());
+				}
+				int from = 0;
+				for (int s = 0; s < chunk.sentences; ++s) {
+					final int len = chunk.src_lens[s] + chunk.trg_lens[s];
+					for (int k = from; k < from + len; ++k) {
+						final int id = chunk.tokens[k];
+						if (id >= remap.length) remap = Arrays.copyOf(remap, Math.max(id + 1, remap.length * 2));
+						if (remap[id] == 0) remap[id] = d.Convert(shared.Convert(id));
+						chunk.tokens[k] = remap[id];
+					}
+					builder.add(chunk.tokens, from, chunk.src_lens[s], chunk.trg_lens[s]);
+					from += len;
+				}
+				if (chunk.error != null)
+					throw new IOException("Error in line " + (lc + chunk.sentences + 1) + "\n" + chunk.error);
+				lc += chunk.sentences;
+			}
+			if (lc == 0)
+				throw new IOException("Can't read " + filename);
+			return builder.build();
+		} finally {
+			pool.shutdownNow();
+			in.close();
+		}
+	}
+
+	private static final int kMinReadChunk = 1 << 16;
+	private static final int kMaxReadChunk = 1 << 24;
+
+	/** The sentences of one chunk of a text bitext, with ids of a shared ConcurrentDict. */
+	private static final class ParsedChunk {
+		int[] tokens = new int[1024];
+		int[] src_lens = new int[64];
+		int[] trg_lens = new int[64];
+		int sentences = 0;
+		String error; // the first line that is not a sentence pair, if any
+
+		static ParsedChunk parse(byte[] buf, int len, ConcurrentDict d) throws IOException {
+			final ParsedChunk chunk = new ParsedChunk();
+			final ByteLineReader lines = new ByteLineReader(buf, 0, len);
+			final Tokenizer tok = new Tokenizer(d, false);
+			int used = 0;
+			while (lines.next()) {
+				tok.parse(lines.buf(), lines.start(), lines.end());
+				if (tok.src_len == 0 || tok.trg_len == 0) {
+					chunk.error = lines.line();
+					break;
+				}
+				final int n = chunk.sentences;
+				if (n == chunk.src_lens.length) {
+					chunk.src_lens = Arrays.copyOf(chunk.src_lens, n * 2);
+					chunk.trg_lens = Arrays.copyOf(chunk.trg_lens, n * 2);
+				}
+				if (used + tok.src_len + tok.trg_len > chunk.tokens.length)
+					chunk.tokens = Arrays.copyOf(chunk.tokens,
+							Math.max(used + tok.src_len + tok.trg_len, chunk.tokens.length * 2));
+				System.arraycopy(tok.src, 0, chunk.tokens, used, tok.src_len);
+				used += tok.src_len;
+				System.arraycopy(tok.trg, 0, chunk.tokens, used, tok.trg_len);
+				used += tok.trg_len;
+				chunk.src_lens[n] = tok.src_len;
+				chunk.trg_lens[n] = tok.trg_len;
+				++chunk.sentences;
+			}
+			return chunk;
+		}
+	}
+
+	private static long align8(long offset) {
+		return (offset + 7) & ~7L;
+	}
+
+	private static void pad(DataOutputStream out, long from, long to) throws IOException {
+		for (long k = from; k < to; ++k) out.writeByte(0);
+	}
+
+	/**
+	 * Writes the corpus and the vocabulary of d (words 1..d.max() in id
+	 * order) in the binary format described above.
+	 */
+	public void write(File file, Dict d) throws IOException {
+		final int vocab = d.max();
+		byte[][] words = new byte[vocab][];
+		long vocabBytes = 4;
+		for (int w = 0; w < vocab; ++w) {
+			words[w] = d.Convert(w + 1).getBytes(StandardCharsets.UTF_8);
+			vocabBytes += 4 + words[w].length;
+		}
+		final long vocabOffset = kHeaderBytes;
+		final long startsOffset = align8(vocabOffset + vocabBytes);
+		final long srcLensOffset = startsOffset + 8L * (size + 1);
+		final long tokensOffset = align8(srcLensOffset + 4L * size);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 20));
+		try {
+			out.writeInt(kMagic);
+			out.writeInt(kVersion);
+			out.writeInt(size);
+			out.writeInt(0);
+			out.writeLong(tokens());
+			out.writeLong(vocabOffset);
+			out.writeLong(startsOffset);
+			out.writeLong(srcLensOffset);
+			out.writeLong(tokensOffset);
+			out.writeInt(vocab);
+			for (int w = 0; w < vocab; ++w) {
+				out.writeInt(words[w].length);
+				out.write(words[w]);
+			}
+			pad(out, vocabOffset + vocabBytes, startsOffset);
+			for (int s = 0; s <= size; ++s) out.writeLong(starts.get(s));
+			for (int s = 0; s < size; ++s) out.writeInt(srcLens.get(s));
+			pad(out, srcLensOffset + 4L * size, tokensOffset);
+			for (IntBuffer chunk : tokens) {
+				for (int k = 0; k < chunk.limit(); ++k) out.writeInt(chunk.get(k));
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/** True if file starts with the magic number of a compiled corpus. */
+	public static boolean isCompiled(File file) {
+		if (file.length() < kHeaderBytes) return false;
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(file));
+			try {
+				return in.readInt() == kMagic;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Maps a compiled corpus read-only. The vocabulary is loaded into d,
+	 * which must assign the stored words the same ids they had when the
+	 * corpus was compiled (in practice: d is empty, or holds a prefix of the
+	 * same vocabulary). The sentence index and the tokens are not copied;
+	 * processes mapping the same file share its pages.
+	 */
+	public static Corpus map(File file, Dict d) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, kHeaderBytes);
+			if (header.getInt() != kMagic)
+				throw new IOException(file + " is not a compiled corpus");
+			final int version = header.getInt();
+			if (version != kVersion)
+				throw new IOException(file + ": unsupported corpus version " + version);
+			final int size = header.getInt();
+			header.getInt();
+			final long count = header.getLong();
+			final long vocabOffset = header.getLong();
+			final long startsOffset = header.getLong();
+			final long srcLensOffset = header.getLong();
+			final long tokensOffset = header.getLong();
+
+			ByteBuffer vocab = channel.map(FileChannel.MapMode.READ_ONLY, vocabOffset, startsOffset - vocabOffset);
+			final int words = vocab.getInt();
+			byte[] bytes = new byte[64];
+			for (int w = 1; w <= words; ++w) {
+				final int len = vocab.getInt();
+				if (bytes.length < len) bytes = new byte[Math.max(len, bytes.length * 2)];
+				vocab.get(bytes, 0, len);
+				final int id = d.Convert(new String(bytes, 0, len, StandardCharsets.UTF_8));
+				if (id != w)
+					throw new IOException(file + ": vocabulary does not match the dictionary at word " + w);
+			}
+			LongBuffer starts = channel.map(FileChannel.MapMode.READ_ONLY, startsOffset, 8L * (size + 1)).asLongBuffer();
+			IntBuffer srcLens = channel.map(FileChannel.MapMode.READ_ONLY, srcLensOffset, 4L * size).asIntBuffer();
+			return new Corpus(map(channel, tokensOffset, count), starts, srcLens);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/** Maps count ints starting at byte offset into read-only chunks of at most kChunkSize ints. */
+	static IntBuffer[] map(FileChannel channel, long offset, long count) throws IOException {
+		final int n = (int) ((count + kChunkSize - 1) >>> kChunkShift);
+		IntBuffer[] chunks = new IntBuffer[Math.max(1, n)];
+		if (n == 0) chunks[0] = IntBuffer.allocate(0);
+		for (int c = 0; c < n; ++c) {
+			final long first = ((long) c) << kChunkShift;
+			final long len = Math.min(kChunkSize, count - first);
+			chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, offset + 4 * first, 4 * len).asIntBuffer();
+		}
+		return chunks;
+	}
+}
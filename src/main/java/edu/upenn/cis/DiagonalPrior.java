@@ -0,0 +1,143 @@
+// Copyright 2013 by Chris Dyer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Ported to Java by Lane Schwartz
+// Modifications by John Hewitt
+//
+package edu.upenn.cis;
+
+import java.util.Arrays;
+
+/**
+ * Cache of the normalized diagonal prior and feature matrices for each
+ * (target length, source length) pair, so that the E-step does table
+ * lookups instead of calling {@link DiagonalAlignment} for every cell.
+ *
+ * For lengths m and n, {@link #lookup} leaves in {@link #prior} and
+ * {@link #feature} the row-major m x n matrices
+ *
+ *   prior[j*n + i-1]   = unnormalizedProb(j+1, i, m, n, tension) / az(j)
+ *   feature[j*n + i-1] = feature(j, i, m, n)
+ *
+ * with az(j) = computeZ(j+1, m, n, tension) / prob_align_not_null, which
+ * are exactly the values the uncached E-step computes. The cache is direct
+ * mapped with a bounded number of cells; a colliding length pair evicts
+ * the previous occupant of its slot. Priors depend on the tension, so
+ * {@link #reset} marks them stale when it changes; features are kept.
+ *
+ * Not thread-safe: each E-step worker owns one.
+ */
+final class DiagonalPrior {
+
+	static final int kSlots = 4096;
+	// Total cached doubles per matrix kind; 8 MB each.
+	static final int kMaxCells = 1 << 20;
+
+	private final long[] keys = new long[kSlots];
+	private final int[] generation = new int[kSlots];
+	private final double[][] priors = new double[kSlots][];
+	private final double[][] features = new double[kSlots][];
+	private long cells = 0;
+	private int current = 0;
+	private double tension = Double.NaN;
+	private double prob_align_not_null = Double.NaN;
+	private double[] spare_prior = new double[0];
+	private double[] spare_feature = new double[0];
+
+	/** Result of the last {@link #lookup}. */
+	double[] prior;
+	double[] feature;
+
+	// Math.exp calls made by refills; see DiagonalPriorBenchmark
+	long exp_calls = 0;
+
+	DiagonalPrior() {
+		Arrays.fill(keys, -1L);
+	}
+
+	/** Sets the parameters of the prior; cached priors are recomputed if they changed. */
+	void reset(double tension, double prob_align_not_null) {
+		if (tension == this.tension && prob_align_not_null == this.prob_align_not_null) return;
+		this.tension = tension;
+		this.prob_align_not_null = prob_align_not_null;
+		++current;
+	}
+
+	/** Points {@link #prior} and {@link #feature} at the matrices for target length m, source length n. */
+	void lookup(final int m, final int n) {
+		final long key = ((long) m << 32) | n;
+		int h = m * 0x9E3779B9 + n * 0x85EBCA6B;
+		final int slot = (h ^ (h >>> 16)) & (kSlots - 1);
+		if (keys[slot] == key) {
+			prior = priors[slot];
+			feature = features[slot];
+			if (generation[slot] != current) {
+				fillPrior(prior, m, n);
+				generation[slot] = current;
+			}
+			return;
+		}
+		final int size = m * n;
+		final int old = priors[slot] == null ? 0 : priors[slot].length;
+		if (size > old && cells - old + size > kMaxCells) {
+			// Over budget: compute into scratch buffers without caching.
+			if (spare_prior.length < size) {
+				spare_prior = new double[size];
+				spare_feature = new double[size];
+			}
+			prior = spare_prior;
+			feature = spare_feature;
+			fillPrior(prior, m, n);
+			fillFeature(feature, m, n);
+			return;
+		}
+		if (size > old) {
+			priors[slot] = new double[size];
+			features[slot] = new double[size];
+			cells += size - old;
+		}
+		keys[slot] = key;
+		generation[slot] = current;
+		prior = priors[slot];
+		feature = features[slot];
+		fillPrior(prior, m, n);
+		fillFeature(feature, m, n);
+	}
+
+	private void fillPrior(double[] p, final int m, final int n) {
+		for (int j = 0; j < m; ++j) {
+			final double az = DiagonalAlignment.computeZ(j+1, m, n, tension) / prob_align_not_null;
+			for (int i = 1; i <= n; ++i)
+				p[j*n + i-1] = DiagonalAlignment.unnormalizedProb(j + 1, i, m, n, tension) / az;
+		}
+		exp_calls += uncachedExpCalls(m, n);
+	}
+
+	private static void fillFeature(double[] f, final int m, final int n) {
+		for (int j = 0; j < m; ++j) {
+			for (int i = 1; i <= n; ++i)
+				f[j*n + i-1] = DiagonalAlignment.feature(j, i, m, n);
+		}
+	}
+
+	/** Math.exp calls made by computing the prior for an m x n sentence from scratch. */
+	static long uncachedExpCalls(final int m, final int n) {
+		long calls = (long) m * n;
+		for (int j = 1; j <= m; ++j) {
+			final int floor = (int) Math.floor(((double) j) * n / m);
+			calls += 1 + (n - floor != 0 ? 1 : 0) + (floor != 0 ? 1 : 0);
+		}
+		return calls;
+	}
+}
@@ -19,6 +19,7 @@ package edu.upenn.cis;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
@@ -40,6 +41,14 @@ public class Dict {
 	}
 
 	public void ConvertWhitespaceDelimitedLine(final String line, ArrayList<Integer> out) {
+		ConvertWhitespaceDelimitedLine(line, out, false);
+	}
+
+	/**
+	 * Integerizes a whitespace-delimited line. With frozen set, words that
+	 * are not in the dictionary map to 0 and the dictionary does not grow.
+	 */
+	public void ConvertWhitespaceDelimitedLine(final String line, ArrayList<Integer> out, boolean frozen) {
 		int cur = 0;
 		int last = 0;
 		int state = 0;
@@ -47,7 +56,7 @@ public class Dict {
 		while(cur < line.length()) {
 			if (is_ws(line.charAt(cur++))) {
 				if (state == 0) continue;
-				out.add(Convert(line.substring(last, last + (cur - last - 1))));
+				out.add(Convert(line.substring(last, last + (cur - last - 1)), frozen));
 				state = 0;
 			} else {
 				if (state == 1) continue;
@@ -56,7 +65,7 @@ public class Dict {
 			}
 		}
 		if (state == 1)
-			out.add(Convert(line.substring(last, last + (cur - last))));
+			out.add(Convert(line.substring(last, last + (cur - last)), frozen));
 	}
 
 	public int Convert(final String word) {
@@ -70,12 +79,28 @@ public class Dict {
 				return 0;
 			words_.add(word);
 			d_.put(word, words_.size());
+			final byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+			bytes_.put(bytes, 0, bytes.length, words_.size());
 			return words_.size();
 		} else {
 			return i;
 		}
 	}
 
+	/**
+	 * Integerizes the UTF-8 word in buf[from, to). Words already in the
+	 * dictionary are found by their bytes, without creating a String.
+	 */
+	public int Convert(final byte[] buf, final int from, final int to, boolean frozen) {
+		final int known = bytes_.get(buf, from, to);
+		if (known != 0) return known;
+		// New bytes: the word may still be known in another encoding (e.g.
+		// malformed UTF-8 decodes to U+FFFD), so go through the String map.
+		final int id = Convert(new String(buf, from, to - from, StandardCharsets.UTF_8), frozen);
+		if (id != 0 && bytes_.get(buf, from, to) == 0) bytes_.put(buf, from, to, id);
+		return id;
+	}
+
 	public String Convert(final int id) {
 		if (id == 0) return b0_;
 		return words_.get(id-1);
@@ -84,6 +109,8 @@ public class Dict {
 	private String b0_;
 	private ArrayList<String> words_;
 	private Map<String,Integer> d_;
+	// UTF-8 form of every word, for lookups from input buffers
+	private final ByteIndex bytes_ = new ByteIndex();
 
 	public static void ReadFromFile(final String filename,
 			Dict d,
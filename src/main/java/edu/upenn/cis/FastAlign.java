@@ -17,16 +17,21 @@
 //
 package edu.upenn.cis;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.Scanner;
 
-import java.lang.Integer;
+import javax.management.JMException;
 
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.CommandLine;
@@ -36,127 +41,103 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.ParseException;
 
+/**
+ * Command line front end. Training and alignment are done by an
+ * {@link Aligner}; this class only parses options, reads files and wires
+ * the aligner's sinks to stdout and stderr.
+ */
 public class FastAlign {
 
-	private static class Pair {
-		private final int first;
-		private final int second;
-
-		private Pair(int first, int second) {
-			this.first = first;
-			this.second = second;
-		}
-
-		public boolean equals(Object o) {
-			if (o instanceof Pair) {
-				Pair other = (Pair) o;
-				return this.first==other.first && this.second==other.second;
-			} else {
-				return false;
-			}
-		}
-
-		@Override
-		public int hashCode() {
-			return first << 16 | second;
-		}
-	}
-
-	private final Dict d; // integerization map
-
 	private final String input;
 	private final String conditional_probability_filename;
 	private final String existing_probability_filename;
-	private final boolean is_reverse;
-	private final int iterations;
-	private final boolean favor_diagonal;
-	private final double prob_align_null;
-	private double diagonal_tension;
-	private final boolean optimize_tension;
-	private final boolean variational_bayes;
-	private final double alpha;
-	private final boolean no_null_word;	
+	private final boolean binary_table;
+	private final long max_tokens_in_memory;
+	private final String metrics_filename;
+	private final boolean jmx;
+	private final String opposite_filename;
+	private final Symmetrizer.Heuristic symmetrize;
+	private final String state_filename;
+	private final boolean gzip;
+	private final String checkpoint_filename;
+	private final boolean resume;
+	private final int shards;
+	private final String posterior_filename;
+	private final boolean binary_posteriors;
+	private final AlignerConfig config;
 
 	private FastAlign(String input,
 			String conditional_probability_filename,
 			String existing_probability_filename,
-			boolean is_reverse,
-			int iterations,
-			boolean favor_diagonal,
-			double prob_align_null,
-			double diagonal_tension,
-			boolean optimize_tension,
-			boolean variational_bayes,
-			double alpha,
-			boolean no_null_word) {
+			boolean binary_table,
+			long max_tokens_in_memory,
+			String metrics_filename,
+			boolean jmx,
+			String opposite_filename,
+			Symmetrizer.Heuristic symmetrize,
+			String state_filename,
+			boolean gzip,
+			String checkpoint_filename,
+			boolean resume,
+			int shards,
+			String posterior_filename,
+			boolean binary_posteriors,
+			AlignerConfig config) {
 		this.input = input;
 		this.conditional_probability_filename = conditional_probability_filename;
 		this.existing_probability_filename = existing_probability_filename;
-		this.is_reverse = is_reverse;
-		this.iterations = iterations;
-		this.favor_diagonal = favor_diagonal;
-		this.prob_align_null = prob_align_null;
-		this.diagonal_tension = diagonal_tension;
-		this.optimize_tension = optimize_tension;
-		this.variational_bayes = variational_bayes;
-		this.alpha = alpha;
-		this.no_null_word = no_null_word;
-		this.d = new Dict();
+		this.binary_table = binary_table;
+		this.max_tokens_in_memory = max_tokens_in_memory;
+		this.metrics_filename = metrics_filename;
+		this.jmx = jmx;
+		this.opposite_filename = opposite_filename;
+		this.symmetrize = symmetrize;
+		this.state_filename = state_filename;
+		this.gzip = gzip;
+		this.checkpoint_filename = checkpoint_filename;
+		this.resume = resume;
+		this.shards = shards;
+		this.posterior_filename = posterior_filename;
+		this.binary_posteriors = binary_posteriors;
+		this.config = config;
 	}
 
-	/**
-	 * Populates source and target token lists with integerized tokens.
-	 * 
-	 * @param line  a line of the bitext
-	 * @param src  the list to be populated with source tokens
-	 * @param tgt  the list to be populated with target tokens
-	 */
-	private void ParseLine(final String line,
-			ArrayList<Integer> src,
-			ArrayList<Integer> trg) {
-		final int kDIV = d.Convert("|||");
-		ArrayList<Integer> tmp = new ArrayList<Integer>();
-		src.clear();
-		trg.clear();
-		d.ConvertWhitespaceDelimitedLine(line, tmp);
-		int i = 0;
-		while(i < tmp.size() && tmp.get(i) != kDIV) {
-			src.add(tmp.get(i));
-			++i;
-		}
-		if (i < tmp.size() && tmp.get(i) == kDIV) {
-			++i;
-			for (; i < tmp.size() ; ++i)
-				trg.add(tmp.get(i));
-		}
-	}
+	AlignerConfig config() { return config; }
+
+	boolean gzip() { return gzip; }
 
 	public static FastAlign initCommandLine(String[] argv) {
 		String input = "";
 		String conditional_probability_filename = "";
 		String existing_probability_filename = "";
-		boolean is_reverse = false;
-		int iterations = 5;
-		boolean favor_diagonal = false;
-		double prob_align_null = 0.08;
-		double diagonal_tension = 4.0;
-		boolean optimize_tension = false;
-		boolean variational_bayes = false;
-		double alpha = 0.01;
-		boolean no_null_word = false;
+		boolean binary_table = false;
+		long max_tokens_in_memory = Long.MAX_VALUE;
+		String metrics_filename = "";
+		boolean jmx = false;
+		String opposite_filename = "";
+		Symmetrizer.Heuristic symmetrize = null;
+		String state_filename = "";
+		boolean gzip = false;
+		String checkpoint_filename = "";
+		boolean resume = false;
+		int shards = 0;
+		String posterior_filename = "";
+		boolean binary_posteriors = false;
+		AlignerConfig config = new AlignerConfig();
 		
 		Options ops = new Options();
 		ops.addOption(Option.builder("i")
 				.hasArg()
-				.desc("[REQ] Input parallel corpus")
+				.desc("[REQ] Input parallel corpus (text, or compiled with the compile command)")
 				.required()
 				.build());
 		ops.addOption("v", false, "[USE] Use Dirichlet prior on lexical translation distributions");
 		ops.addOption("d", false, "[USE] Favor alignment points close to the monotonic diagonal");
 		ops.addOption("o", false, "[USE] Optimize how close to the diagonal alignment points should be.");
 		ops.addOption("r", false, "Run alignment in reverse (condition on target and predict source");
-		ops.addOption("c", false, "Output conditional probability table");
-		ops.addOption("e", true, "Start with existing conditional probability table");
+		ops.addOption("c", true, "Output conditional probability table");
+		ops.addOption("b", false, "Write the conditional probability table (-c) in binary format");
+		ops.addOption("e", true, "Start with existing conditional probability table (text or binary)");
 		ops.addOption("I", true, "number of iterations in EM training (default = 5)");
 		ops.addOption("p", true, "p_null parameter");
 //		ops.addOption( Option.builder("p")
@@ -167,6 +148,34 @@ public class FastAlign {
 		ops.addOption("N", false, "No null word");
 		ops.addOption("a", true, "alpha parameter for optional Dirichlet prior (default = 0.01");
 		ops.addOption("T", true, "starting lambda for diagonal distance parameter");
+		ops.addOption("t", true, "number of threads for the E-step and normalization (default = 1)");
+		ops.addOption("S", true, "millions of corpus tokens to keep in memory before spilling to a temporary file (default = no limit)");
+		ops.addOption("M", true, "Write per-iteration timing and memory metrics to this file as JSON lines");
+		ops.addOption("R", true, "Also train the opposite direction in the same run and write its alignments to this file");
+		ops.addOption("s", true, "Train both directions and write their alignments symmetrized with this heuristic "
+				+ "(intersect, union, grow-diag, grow-diag-final, grow-diag-final-and)");
+		ops.addOption("m", true, "Stepwise (online) EM: update the model after every N sentences (default = 0, batch EM)");
+		ops.addOption("k", true, "Stepwise EM step size decay: the k-th step is (k + K)^-DECAY (default = 0.7)");
+		ops.addOption("K", true, "Stepwise EM step size offset (default = 2)");
+		ops.addOption("w", true, "Stepwise EM state: resume from this file if it exists, and write it after training");
+		ops.addOption("P", true, "Prune translation probabilities below this value between iterations and from -c");
+		ops.addOption("Q", true, "Prune all but the K most probable translations of each source word");
+		ops.addOption("U", true, "Prune all but the most probable translations that make up this share of each source word's mass");
+		ops.addOption("z", false, "Prune (-P, -Q, -U) only the table written with -c");
+		ops.addOption("F", false, "Store translation probabilities, and the binary table of -c, as floats");
+		ops.addOption("V", false, "Compute posteriors with the Java Vector API (build with -Pvector, run with --add-modules jdk.incubator.vector)");
+		ops.addOption("J", false, "Publish training metrics as a JMX MBean (edu.upenn.cis:type=FastAlign)");
+		ops.addOption("g", false, "Compress the alignments (stdout, -R and -O) with gzip");
+		ops.addOption("O", true, "Also write the link posteriors of the final iteration to this file (FILE.reverse or FILE.forward for -R and -s)");
+		ops.addOption("L", true, "Write only link posteriors of at least this value to -O (default = 0.1)");
+		ops.addOption("Y", true, "Write only the K most probable links of each word to -O (default = 0, all)");
+		ops.addOption("W", false, "Write the link posteriors of -O in binary format");
+		ops.addOption("X", true, "Train in this many worker processes, each with a shard of the corpus and a partition of the table");
+		ops.addOption("C", true, "Write a checkpoint to this file after each iteration (FILE.reverse or FILE.forward for -R and -s)");
+		ops.addOption(Option.builder()
+				.longOpt("resume")
+				.desc("Continue training from the -C checkpoint, if it exists")
+				.build());
 		
 		CommandLineParser parser = new DefaultParser();
 		CommandLine line = null;
@@ -182,266 +191,626 @@ public class FastAlign {
 			input = line.getOptionValue("i");
 		}
 		if (line.hasOption("v")) {
-			variational_bayes = true;
+			config.setVariationalBayes(true);
+		}
+		if (line.hasOption("r")) {
+			config.setReverse(true);
+		}
+		if (line.hasOption("I")) {
+			config.setIterations(Integer.valueOf(line.getOptionValue("I")));
 		}
 		if (line.hasOption("d")) {
-			favor_diagonal = true;
+			config.setFavorDiagonal(true);
 		}
 		if (line.hasOption("p")) {
-			prob_align_null = Double.valueOf(line.getOptionValue("p"));
+			config.setProbAlignNull(Double.valueOf(line.getOptionValue("p")));
 		}
 		if (line.hasOption("T")) {
-			diagonal_tension = Double.valueOf(line.getOptionValue("T"));
+			config.setDiagonalTension(Double.valueOf(line.getOptionValue("T")));
 		}
 		if (line.hasOption("o")) {
-			optimize_tension = true;
-		}
-		if (line.hasOption("v")) {
-			variational_bayes = true;
+			config.setOptimizeTension(true);
 		}
 		if (line.hasOption("a")) {
-			alpha = Double.valueOf(line.getOptionValue("a"));
+			config.setAlpha(Double.valueOf(line.getOptionValue("a")));
 		}
 		if (line.hasOption("N")) {
-			no_null_word = true;
+			config.setNoNullWord(true);
 		}
 		if (line.hasOption("c")) {
 			conditional_probability_filename = line.getOptionValue("c");
 		}
+		if (line.hasOption("b")) {
+			binary_table = true;
+		}
 		if (line.hasOption("e")) {
 			existing_probability_filename = line.getOptionValue("e");
 		}
+		if (line.hasOption("t")) {
+			config.setThreads(Integer.valueOf(line.getOptionValue("t")));
+		}
+		if (line.hasOption("S")) {
+			max_tokens_in_memory = (long) (Double.valueOf(line.getOptionValue("S")) * 1000000);
+		}
+		if (line.hasOption("M")) {
+			metrics_filename = line.getOptionValue("M");
+		}
+		if (line.hasOption("m")) {
+			config.setMiniBatch(Integer.valueOf(line.getOptionValue("m")));
+		}
+		if (line.hasOption("k")) {
+			config.setStepDecay(Double.valueOf(line.getOptionValue("k")));
+		}
+		if (line.hasOption("K")) {
+			config.setStepOffset(Double.valueOf(line.getOptionValue("K")));
+		}
+		if (line.hasOption("w")) {
+			state_filename = line.getOptionValue("w");
+		}
+		if (line.hasOption("P")) {
+			config.setPruneThreshold(Double.valueOf(line.getOptionValue("P")));
+		}
+		if (line.hasOption("Q")) {
+			config.setPruneTopK(Integer.valueOf(line.getOptionValue("Q")));
+		}
+		if (line.hasOption("U")) {
+			config.setPruneMass(Double.valueOf(line.getOptionValue("U")));
+		}
+		if (line.hasOption("z")) {
+			config.setPruneOnExportOnly(true);
+		}
+		if (line.hasOption("F")) {
+			config.setSinglePrecision(true);
+		}
+		if (line.hasOption("V")) {
+			config.setVectorKernel(true);
+		}
+		if (line.hasOption("J")) {
+			jmx = true;
+		}
+		if (line.hasOption("g")) {
+			gzip = true;
+		}
+		if (line.hasOption("C")) {
+			checkpoint_filename = line.getOptionValue("C");
+		}
+		if (line.hasOption("resume")) {
+			resume = true;
+		}
+		if (line.hasOption("X")) {
+			shards = Integer.valueOf(line.getOptionValue("X"));
+		}
+		if (line.hasOption("O")) {
+			posterior_filename = line.getOptionValue("O");
+		}
+		if (line.hasOption("L")) {
+			config.setPosteriorThreshold(Double.valueOf(line.getOptionValue("L")));
+		}
+		if (line.hasOption("Y")) {
+			config.setPosteriorTopK(Integer.valueOf(line.getOptionValue("Y")));
+		}
+		if (line.hasOption("W")) {
+			binary_posteriors = true;
+		}
+		if (line.hasOption("R")) {
+			opposite_filename = line.getOptionValue("R");
+		}
+		if (line.hasOption("s")) {
+			try {
+				symmetrize = Symmetrizer.Heuristic.forName(line.getOptionValue("s"));
+			} catch (IllegalArgumentException e) {
+				System.err.println(e.getMessage());
+				System.exit(1);
+			}
+		}
 		
 		return new FastAlign(
 				input,
 				conditional_probability_filename,
 				existing_probability_filename,
-				is_reverse,
-				iterations,
-				favor_diagonal,
-				prob_align_null,
-				diagonal_tension,
-				optimize_tension,
-				variational_bayes,
-				alpha,
-				no_null_word);
+				binary_table,
+				max_tokens_in_memory,
+				metrics_filename,
+				jmx,
+				opposite_filename,
+				symmetrize,
+				state_filename,
+				gzip,
+				checkpoint_filename,
+				resume,
+				shards,
+				posterior_filename,
+				binary_posteriors,
+				config);
 	}
-	
-	
+
+	/**
+	 * Integerizes a text bitext once and writes it, with its vocabulary, as a
+	 * compiled corpus that can be passed to -i in place of the text file.
+	 * @param argv  compile parameters (-i input, -w output).
+	 */
+	public static void compile(String[] argv) {
+		Options ops = new Options();
+		ops.addOption(Option.builder("i")
+				.hasArg()
+				.desc("[REQ] Input parallel corpus")
+				.required()
+				.build());
+		ops.addOption(Option.builder("w")
+				.hasArg()
+				.desc("[REQ] Output compiled corpus")
+				.required()
+				.build());
+		ops.addOption("S", true, "millions of corpus tokens to keep in memory before spilling to a temporary file (default = no limit)");
+		CommandLineParser parser = new DefaultParser();
+		CommandLine line = null;
+		try {
+			line = parser.parse(ops, argv);
+		} catch (ParseException exp) {
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp( "java -jar fast_align-1.0_SNAPSHOT.jar compile -i [PARALLEL_CORPUS] -w [COMPILED_CORPUS]", ops );
+			System.err.println( "Invalid command line arguments: " + exp.getMessage() );
+			System.exit(1);
+		}
+		long max_tokens_in_memory = Long.MAX_VALUE;
+		if (line.hasOption("S")) {
+			max_tokens_in_memory = (long) (Double.valueOf(line.getOptionValue("S")) * 1000000);
+		}
+		final String input = line.getOptionValue("i");
+		final String output = line.getOptionValue("w");
+		Dict d = new Dict();
+		// Same id order as training: <eps> first, then the corpus.
+		d.Convert("<eps>");
+		try {
+			System.err.println("Reading from " + input);
+			Corpus corpus = Corpus.read(input, d, max_tokens_in_memory);
+			corpus.write(new File(output), d);
+			System.err.println("compiled " + corpus.size() + " sentences, " + corpus.tokens() + " tokens, "
+					+ d.max() + " words to " + output);
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/** Warns if -V asks for the Vector API kernel but it can't be loaded. */
+	private static void checkVectorKernel(AlignerConfig config) {
+		if (config.isVectorKernel() && PosteriorKernel.vector() == null)
+			System.err.println("Vector API kernel not available (build with -Pvector and run with "
+					+ "--add-modules jdk.incubator.vector); using the scalar kernel");
+	}
+
+	/**
+	 * Aligns a bitext in a single pass against a model saved with -c -b,
+	 * without any EM. The model's dictionary is frozen: words it has not
+	 * seen map to 0 and fall back to the probability floor.
+	 * @param argv  decode parameters (-m model, -i input, -t threads).
+	 */
+	public static void decode(String[] argv) {
+		Options ops = new Options();
+		ops.addOption(Option.builder("m")
+				.hasArg()
+				.desc("[REQ] Model written by training with -c FILE -b")
+				.required()
+				.build());
+		ops.addOption(Option.builder("i")
+				.hasArg()
+				.desc("[REQ] Input parallel corpus")
+				.required()
+				.build());
+		ops.addOption("t", true, "number of threads (default = 1)");
+		ops.addOption("g", false, "Compress the alignments with gzip");
+		ops.addOption("V", false, "Compute posteriors with the Java Vector API, if available");
+		ops.addOption("O", true, "Also write the link posteriors to this file");
+		ops.addOption("L", true, "Write only link posteriors of at least this value to -O (default = 0.1)");
+		ops.addOption("Y", true, "Write only the K most probable links of each word to -O (default = 0, all)");
+		ops.addOption("W", false, "Write the link posteriors of -O in binary format");
+		CommandLineParser parser = new DefaultParser();
+		CommandLine line = null;
+		try {
+			line = parser.parse(ops, argv);
+		} catch (ParseException exp) {
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp( "java -jar fast_align-1.0_SNAPSHOT.jar decode -m [MODEL] -i [PARALLEL_CORPUS]", ops );
+			System.err.println( "Invalid command line arguments: " + exp.getMessage() );
+			System.exit(1);
+		}
+		final String model = line.getOptionValue("m");
+		final String input = line.getOptionValue("i");
+		AlignerConfig config = new AlignerConfig();
+		if (line.hasOption("t")) {
+			config.setThreads(Integer.valueOf(line.getOptionValue("t")));
+		}
+		config.setVectorKernel(line.hasOption("V"));
+		checkVectorKernel(config);
+		if (line.hasOption("L")) {
+			config.setPosteriorThreshold(Double.valueOf(line.getOptionValue("L")));
+		}
+		if (line.hasOption("Y")) {
+			config.setPosteriorTopK(Integer.valueOf(line.getOptionValue("Y")));
+		}
+		int lc = 0;
+		try {
+			Aligner aligner = Aligner.load(model, config);
+			System.err.println("model: " + aligner.params());
+			AlignmentWriter out = AlignmentWriter.open(new FileOutputStream(FileDescriptor.out), line.hasOption("g"));
+			aligner.setAlignmentSink(out);
+			AlignmentWriter posteriors = null;
+			if (line.hasOption("O")) {
+				posteriors = AlignmentWriter.open(new FileOutputStream(line.getOptionValue("O")),
+						line.hasOption("g"), line.hasOption("W"));
+				aligner.setPosteriorSink(posteriors);
+			}
+			final int batch_size = Aligner.kBatchSentences * config.getThreads();
+			ByteLineReader in = new ByteLineReader(new FileInputStream(input));
+			try {
+				Tokenizer tok = new Tokenizer(aligner.dict(), true);
+				Corpus.Builder batch = new Corpus.Builder();
+				while (in.next()) {
+					++lc;
+					tok.parse(in.buf(), in.start(), in.end());
+					if (tok.src_len == 0 || tok.trg_len == 0)
+						throw new IOException("Error in line " + lc + "\n" + in.line());
+					batch.add(tok.src, tok.src_len, tok.trg, tok.trg_len);
+					if (batch.size() == batch_size) {
+						aligner.align(batch.build());
+						batch = new Corpus.Builder();
+					}
+				}
+				aligner.align(batch.build());
+				out.close();
+				if (posteriors != null) posteriors.close();
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+		System.err.println("aligned " + lc + " sentences");
+	}
+
+	/**
+	 * Loads a model saved with -c -b and serves alignments over HTTP on
+	 * localhost until the process is killed (see {@link AlignmentServer}).
+	 * @param argv  serve parameters (-m model, -p port, -t threads, -B batch size).
+	 */
+	public static void serve(String[] argv) {
+		Options ops = new Options();
+		ops.addOption(Option.builder("m")
+				.hasArg()
+				.desc("[REQ] Model written by training with -c FILE -b")
+				.required()
+				.build());
+		ops.addOption("p", true, "port to listen on (default = 8080, 0 = any free port)");
+		ops.addOption("t", true, "number of threads per batch (default = 1)");
+		ops.addOption("B", true, "most sentences aligned in one batch (default = " + Aligner.kBatchSentences + ")");
+		CommandLineParser parser = new DefaultParser();
+		CommandLine line = null;
+		try {
+			line = parser.parse(ops, argv);
+		} catch (ParseException exp) {
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp( "java -jar fast_align-1.0_SNAPSHOT.jar serve -m [MODEL] -p [PORT]", ops );
+			System.err.println( "Invalid command line arguments: " + exp.getMessage() );
+			System.exit(1);
+		}
+		final String model = line.getOptionValue("m");
+		AlignerConfig config = new AlignerConfig();
+		if (line.hasOption("t")) {
+			config.setThreads(Integer.valueOf(line.getOptionValue("t")));
+		}
+		int port = 8080;
+		if (line.hasOption("p")) {
+			port = Integer.valueOf(line.getOptionValue("p"));
+		}
+		int max_batch = Aligner.kBatchSentences;
+		if (line.hasOption("B")) {
+			max_batch = Integer.valueOf(line.getOptionValue("B"));
+		}
+		try {
+			Aligner aligner = Aligner.load(model, config);
+			System.err.println("model: " + aligner.params());
+			if (aligner.dict().Convert("|||", true) == 0)
+				throw new IOException("Model vocabulary has no ||| separator: " + model);
+			final AlignmentServer server = new AlignmentServer(aligner, port, max_batch);
+			server.start();
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					server.stop(1);
+				}
+			});
+			System.err.println("listening on http://127.0.0.1:" + server.port() + "/align (stats at /stats)");
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Symmetrizes a forward and a reverse alignment file, one sentence per
+	 * line, and prints the result.
+	 * @param argv  symmetrize parameters (-i forward, -j reverse, -c heuristic, -t threads).
+	 */
+	public static void symmetrize(String[] argv) {
+		Options ops = new Options();
+		ops.addOption(Option.builder("i")
+				.hasArg()
+				.desc("[REQ] Forward alignments")
+				.required()
+				.build());
+		ops.addOption(Option.builder("j")
+				.hasArg()
+				.desc("[REQ] Reverse alignments")
+				.required()
+				.build());
+		ops.addOption("c", true, "heuristic: intersect, union, grow-diag, grow-diag-final, grow-diag-final-and (default)");
+		ops.addOption("t", true, "number of threads (default = 1)");
+		CommandLineParser parser = new DefaultParser();
+		CommandLine line = null;
+		try {
+			line = parser.parse(ops, argv);
+		} catch (ParseException exp) {
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp( "java -jar fast_align-1.0_SNAPSHOT.jar symmetrize -i [FORWARD] -j [REVERSE] -c [HEURISTIC]", ops );
+			System.err.println( "Invalid command line arguments: " + exp.getMessage() );
+			System.exit(1);
+		}
+		try {
+			final Symmetrizer.Heuristic heuristic = Symmetrizer.Heuristic.forName(line.getOptionValue("c", "grow-diag-final-and"));
+			final int threads = Integer.valueOf(line.getOptionValue("t", "1"));
+			if (threads < 1) throw new IllegalArgumentException("threads must be positive");
+			BufferedReader forward = new BufferedReader(new InputStreamReader(new FileInputStream(line.getOptionValue("i")), "UTF-8"));
+			BufferedReader reverse = new BufferedReader(new InputStreamReader(new FileInputStream(line.getOptionValue("j")), "UTF-8"));
+			try {
+				PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 1 << 16), false, "UTF-8");
+				Symmetrizer.symmetrize(forward, reverse, out, heuristic, threads);
+				out.flush();
+			} finally {
+				forward.close();
+				reverse.close();
+			}
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	private static void resume(Aligner aligner, String filename) throws IOException {
+		if (new File(filename).exists()) {
+			final int iter = aligner.resume(filename);
+			System.err.println("Resuming from " + filename + " after iteration " + (iter + 1));
+		} else {
+			System.err.println("No checkpoint " + filename + ", starting from the first iteration");
+		}
+	}
+
 	/**
 	 * Prints alignments for options specified by command line arguments.
 	 * @param argv  parameters to be used by FastAlign.
 	 */
 	public static void main(String[] argv) {
+		if (argv.length > 0 && argv[0].equals("compile")) {
+			compile(Arrays.copyOfRange(argv, 1, argv.length));
+			System.exit(0);
+		}
+		if (argv.length > 0 && argv[0].equals("decode")) {
+			decode(Arrays.copyOfRange(argv, 1, argv.length));
+			System.exit(0);
+		}
+		if (argv.length > 0 && argv[0].equals("symmetrize")) {
+			symmetrize(Arrays.copyOfRange(argv, 1, argv.length));
+			System.exit(0);
+		}
+		if (argv.length > 0 && argv[0].equals("serve")) {
+			// The HTTP server's threads keep the JVM running.
+			serve(Arrays.copyOfRange(argv, 1, argv.length));
+			return;
+		}
 
 		FastAlign align = FastAlign.initCommandLine(argv);
 		if (align==null) {
 			System.err.println(
 					"Usage: java " + FastAlign.class.getCanonicalName() + " -i file.fr-en\n"
+							+ "       java " + FastAlign.class.getCanonicalName() + " compile -i file.fr-en -w file.fr-en.bin\n"
+							+ "       java " + FastAlign.class.getCanonicalName() + " decode -m model.bin -i file.fr-en\n"
+							+ "       java " + FastAlign.class.getCanonicalName() + " symmetrize -i forward.align -j reverse.align -c grow-diag-final-and\n"
+							+ "       java " + FastAlign.class.getCanonicalName() + " serve -m model.bin -p 8080\n"
 							+ " Standard options ([USE] = strongly recommended):\n"
-							+ "  -i: [REQ] Input parallel corpus\n"
+							+ "  -i: [REQ] Input parallel corpus (text, or compiled with the compile command)\n"
 							+ "  -v: [USE] Use Dirichlet prior on lexical translation distributions\n"
 							+ "  -d: [USE] Favor alignment points close to the monotonic diagonoal\n"
 							+ "  -o: [USE] Optimize how close to the diagonal alignment points should be\n"
 							+ "  -r: Run alignment in reverse (condition on target and predict source)\n"
 							+ "  -c: Output conditional probability table\n"
-							+ "  -e: Start with existing conditional probability table\n"
+							+ "  -b: Write the conditional probability table in binary format (a model for decode)\n"
+							+ "  -e: Start with existing conditional probability table (text or binary)\n"
+							+ "  -R: Also train the opposite direction (reverse, or forward with -r) and write\n"
+							+ "      its alignments to this file; -c then also writes FILE.reverse or FILE.forward\n"
+							+ "  -s: Train both directions and write their alignments symmetrized with a heuristic:\n"
+							+ "      intersect, union, grow-diag, grow-diag-final, grow-diag-final-and\n"
 							+ " Advanced options:\n"
 							+ "  -I: number of iterations in EM training (default = 5)\n"
 							+ "  -p: p_null parameter (default = 0.08)\n"
 							+ "  -N: No null word\n"
 							+ "  -a: alpha parameter for optional Dirichlet prior (default = 0.01)\n"
 							+ "  -T: starting lambda for diagonal distance parameter (default = 4)\n"
+							+ "  -t: number of threads for the E-step and normalization (default = 1)\n"
+							+ "  -S: millions of corpus tokens to keep in memory before spilling to disk\n"
+							+ "  -M: write per-iteration timing and memory metrics to a file as JSON lines\n"
+							+ "  -J: publish training metrics as a JMX MBean\n"
+							+ "  -F: store translation probabilities (and the -b table) as floats\n"
+							+ "  -V: compute posteriors with the Java Vector API, if available\n"
+							+ "  -X: train in this many worker processes, each with a shard of the corpus and\n"
+							+ "      a partition of the table (not with -R, -s, -m, -b, -e, -C or -O)\n"
+							+ "  -g: compress the alignments (stdout, -R and -O) with gzip\n"
+							+ "  -O: also write the link posteriors of the final iteration to this file\n"
+							+ "  -L: write only link posteriors of at least this value to -O (default = 0.1)\n"
+							+ "  -Y: write only the K most probable links of each word to -O (default = 0, all)\n"
+							+ "  -W: write the link posteriors of -O in binary format\n"
+							+ "  -C: write a checkpoint to this file after each iteration\n"
+							+ "  --resume: continue from the -C checkpoint, if it exists\n"
+							+ " Pruning options (pruned pairs fall back to the 1e-9 floor):\n"
+							+ "  -P: prune translation probabilities below this value\n"
+							+ "  -Q: keep only the K most probable translations of each source word\n"
+							+ "  -U: keep the most probable translations up to this share of each word's mass\n"
+							+ "  -z: prune only the table written with -c, not between iterations\n"
+							+ " Stepwise EM options:\n"
+							+ "  -m: update the model after every N sentences instead of once per iteration\n"
+							+ "  -k: step size decay; the k-th update has weight (k + K)^-DECAY (default = 0.7)\n"
+							+ "  -K: step size offset (default = 2)\n"
+							+ "  -w: state file; resumed from if it exists, written after training\n"
 					);
 			System.exit(1);
 		}
-		boolean use_null = !align.no_null_word;
-		if (align.variational_bayes && align.alpha <= 0.0) {
-			System.err.println("--alpha must be > 0\n");
-			System.exit(1);
-		}
-		double prob_align_not_null = 1.0 - align.prob_align_null;
-		final int kNULL = align.d.Convert("<eps>");
-		TTable s2t = new TTable();
-		if (!align.existing_probability_filename.isEmpty()) {
-			boolean success = s2t.ImportFromFile(align.existing_probability_filename, '\t', align.d);
-			if (!success) {
-				System.err.println("Can't read table " + align.existing_probability_filename);
-				System.exit(1);
+		PrintStream metrics = null;
+		AlignmentWriter out = null;
+		AlignmentWriter opposite_out = null;
+		AlignmentWriter posteriors = null;
+		AlignmentWriter opposite_posteriors = null;
+		try {
+			if (align.symmetrize != null && !align.opposite_filename.isEmpty())
+				throw new IllegalArgumentException("-s can't be combined with -R");
+			final BidirectionalAligner both = align.opposite_filename.isEmpty() && align.symmetrize == null
+					? null : new BidirectionalAligner(align.config);
+			if (both != null && !align.existing_probability_filename.isEmpty())
+				throw new IllegalArgumentException("-e can't be combined with -R or -s");
+			if (align.shards < 0)
+				throw new IllegalArgumentException("-X must not be negative");
+			if (align.shards > 0 && (both != null || align.config.isStepwise() || align.binary_table
+					|| !align.existing_probability_filename.isEmpty() || !align.checkpoint_filename.isEmpty()
+					|| !align.posterior_filename.isEmpty()))
+				throw new IllegalArgumentException("-X can't be combined with -R, -s, -m, -b, -e, -C or -O");
+			if (align.resume && align.checkpoint_filename.isEmpty())
+				throw new IllegalArgumentException("--resume requires -C");
+			checkVectorKernel(align.config);
+			if (!align.state_filename.isEmpty()) {
+				if (!align.config.isStepwise())
+					throw new IllegalArgumentException("-w requires -m");
+				if (both != null || !align.existing_probability_filename.isEmpty())
+					throw new IllegalArgumentException("-w can't be combined with -e, -R or -s");
 			}
-		}
-		Map<Pair, Integer> size_counts = new HashMap<Pair, Integer>();
-		double tot_len_ratio = 0;
-		double mean_srclen_multiplier = 0;
-		List<Double> probs = new ArrayList<Double>();;
-		// E-M Iterations Loop TODO move this into a method?
-		for (int iter = 0; iter < align.iterations || (iter==0 && align.iterations==0); ++iter) {
-			final boolean final_iteration = (iter >= (align.iterations - 1));
-			System.err.println("ITERATION " + (iter + 1) + (final_iteration ? " (FINAL)" : ""));
-			Scanner in = null;
-			try {
-				in = new Scanner(new File(align.input));
-				if (! in.hasNextLine()) {
-					System.err.println("Can't read " + align.input);
-					System.exit(1);
-				}
-			} catch (FileNotFoundException e) {
-				e.printStackTrace();
-				System.err.println("Can't read " + align.input);
-				System.exit(1);
+			// aligner writes to stdout; opposite, if any, is the other direction
+			Aligner aligner = both == null ? new Aligner(align.config)
+					: align.config.isReverse() ? both.reverse() : both.forward();
+			Aligner opposite = both == null ? null : aligner == both.forward() ? both.reverse() : both.forward();
+			final String direction = align.config.isReverse() ? "reverse" : "forward";
+			final String opposite_direction = align.config.isReverse() ? "forward" : "reverse";
+			List<StatisticsSink> sinks = new ArrayList<StatisticsSink>();
+			List<StatisticsSink> opposite_sinks = new ArrayList<StatisticsSink>();
+			sinks.add(new LogStatisticsSink(System.err));
+			// the opposite direction's log is printed once training is done
+			ByteArrayOutputStream opposite_log = new ByteArrayOutputStream();
+			opposite_sinks.add(new LogStatisticsSink(new PrintStream(opposite_log, true, "UTF-8")));
+			if (!align.metrics_filename.isEmpty()) {
+				metrics = new PrintStream(new FileOutputStream(align.metrics_filename), false, "UTF-8");
+				sinks.add(new JsonStatisticsSink(metrics, both == null ? null : direction));
+				opposite_sinks.add(new JsonStatisticsSink(metrics, opposite_direction));
 			}
-
-			double likelihood = 0;
-			double denom = 0.0;
-			int lc = 0;
-			boolean flag = false;
-			String line;
-//			String ssrc, strg;
-			ArrayList<Integer> src = new ArrayList<Integer>();
-			ArrayList<Integer> trg = new ArrayList<Integer>();
-			double c0 = 0;
-			double emp_feat = 0;
-			double toks = 0;
-			// Iterate over each line of the input file
-			while (in.hasNextLine()) {
-				line = in.nextLine();
-				++lc;
-				if (lc % 1000 == 0) { System.err.print('.'); flag = true; }
-				if (lc %50000 == 0) { System.err.println(" [" + lc + "]\n"); System.err.flush(); flag = false; }
-				src.clear(); trg.clear(); // TODO this is redundant; src and tgt cleared in ParseLine
-				// Integerize and split source and target lines.
-				align.ParseLine(line, src, trg);
-				if (align.is_reverse) {
-					ArrayList<Integer> tmp = src;
-					src = trg;
-					trg = tmp;
-				}
-				// TODO Empty lines break the parser. Should this be true?
-				if (src.size() == 0 || trg.size() == 0) {
-					System.err.println("Error in line " + lc + "\n" + line);
-					System.exit(1);
-				}
-				if (iter == 0) {
-					tot_len_ratio += ((double) trg.size()) / ((double) src.size());
-				}
-				denom += trg.size();
-				probs.clear();
-				// Add to pair length counts only if first iteration.
-				if (iter == 0) {
-					Pair pair = new Pair(trg.size(), src.size());
-					Integer value = size_counts.get(pair);
-					if (value==null) value=0;
-					size_counts.put(pair, value+1);
+			if (align.jmx) {
+				sinks.add(new JmxStatisticsSink("edu.upenn.cis:type=FastAlign"));
+			}
+			final StatisticsSink stats = new TeeStatisticsSink(sinks.toArray(new StatisticsSink[sinks.size()]));
+			aligner.setStatisticsSink(stats);
+			if (align.shards > 0) {
+				System.err.println("Reading from " + align.input);
+				final String table = align.conditional_probability_filename;
+				new ShardedTrainer(align.config, align.shards, argv, stats).train(align.input,
+						align.max_tokens_in_memory, new FileOutputStream(FileDescriptor.out), table.isEmpty() ? null : table);
+				if (!table.isEmpty()) System.err.println("conditional probabilities: " + table);
+				return;
+			}
+			out = AlignmentWriter.open(new FileOutputStream(FileDescriptor.out), align.gzip);
+			aligner.setAlignmentSink(out);
+			if (opposite != null) {
+				opposite.setStatisticsSink(new TeeStatisticsSink(opposite_sinks.toArray(new StatisticsSink[opposite_sinks.size()])));
+			}
+			if (align.symmetrize != null) {
+				SymmetrizingSink sym = new SymmetrizingSink(align.symmetrize, out);
+				both.forward().setAlignmentSink(sym.forward());
+				both.reverse().setAlignmentSink(sym.reverse());
+			} else if (opposite != null) {
+				opposite_out = AlignmentWriter.open(new FileOutputStream(align.opposite_filename), align.gzip);
+				opposite.setAlignmentSink(opposite_out);
+			}
+			if (!align.posterior_filename.isEmpty()) {
+				posteriors = AlignmentWriter.open(new FileOutputStream(align.posterior_filename),
+						align.gzip, align.binary_posteriors);
+				aligner.setPosteriorSink(posteriors);
+				if (opposite != null) {
+					opposite_posteriors = AlignmentWriter.open(new FileOutputStream(
+							align.posterior_filename + "." + opposite_direction), align.gzip, align.binary_posteriors);
+					opposite.setPosteriorSink(opposite_posteriors);
 				}
-				boolean first_al = true;  // used when printing alignments
-				toks += trg.size();
-				// Iterate through the English tokens
-				for (int j = 0; j < trg.size(); ++j) {
-					final int f_j = trg.get(j);
-					double sum = 0;
-					double prob_a_i = 1.0 / (src.size() + (use_null ? 1 : 0));  // uniform (model 1)
-					if (use_null) {
-						if (align.favor_diagonal) {
-							prob_a_i = align.prob_align_null;
-						}
-						probs.add(0, s2t.prob(kNULL, f_j) * prob_a_i);
-						sum += probs.get(0);
-					}
-					double az = 0;
-					if (align.favor_diagonal)
-						az = DiagonalAlignment.computeZ(j+1, trg.size(), src.size(), align.diagonal_tension) / prob_align_not_null;
-					for (int i = 1; i <= src.size(); ++i) {
-						if (align.favor_diagonal)
-							prob_a_i = DiagonalAlignment.unnormalizedProb(j + 1, i, trg.size(), src.size(), align.diagonal_tension) / az;
-						probs.add(i, s2t.prob(src.get(i-1), f_j) * prob_a_i);
-						sum += probs.get(i);
-					}
-					if (final_iteration) {
-						double max_p = -1;
-						int max_index = -1;
-						if (use_null) {
-							max_index = 0;
-							max_p = probs.get(0);
-						}
-						for (int i = 1; i <= src.size(); ++i) {
-							if (probs.get(i) > max_p) {
-								max_index = i;
-								max_p = probs.get(i);
-							}
-						}
-						if (max_index > 0) {
-							if (first_al) first_al = false; else System.out.print(' ');
-							if (align.is_reverse)
-								System.out.print("" + j + '-' + (max_index - 1));
-							else
-								System.out.print("" + (max_index - 1) + '-' + j);
-						}
-					} else {
-						if (use_null) {
-							double count = probs.get(0) / sum;
-							c0 += count;
-							s2t.Increment(kNULL, f_j, count);
-						}
-						for (int i = 1; i <= src.size(); ++i) {
-							final double p = probs.get(i) / sum;
-							s2t.Increment(src.get(i-1), f_j, p);
-							emp_feat += DiagonalAlignment.feature(j, i, trg.size(), src.size()) * p;
-						}
-					}
-					likelihood += Math.log(sum);
+			}
+			// The corpus is read before any table so that a compiled corpus can
+			// load its vocabulary with the ids it was compiled with.
+			System.err.println("Reading from " + align.input);
+			final long read_start = System.nanoTime();
+			// Parsing threads beyond the available cores only add the cost of renumbering.
+			final int read_threads = Math.min(align.config.getThreads(), Runtime.getRuntime().availableProcessors());
+			Corpus corpus = Corpus.read(align.input, aligner.dict(), align.max_tokens_in_memory, read_threads);
+			stats.phaseFinished("read", System.nanoTime() - read_start);
+			if (!align.existing_probability_filename.isEmpty()) {
+				aligner.importTable(align.existing_probability_filename);
+			}
+			if (!align.state_filename.isEmpty() && new File(align.state_filename).exists()) {
+				aligner.loadState(align.state_filename);
+				System.err.println("Resuming from " + align.state_filename + " after " + aligner.getSteps() + " steps");
+			}
+			if (!align.checkpoint_filename.isEmpty()) {
+				final String opposite_checkpoint = align.checkpoint_filename + "." + opposite_direction;
+				aligner.setCheckpointFile(align.checkpoint_filename);
+				if (opposite != null) opposite.setCheckpointFile(opposite_checkpoint);
+				if (align.resume) {
+					resume(aligner, align.checkpoint_filename);
+					if (opposite != null) resume(opposite, opposite_checkpoint);
 				}
-				if (final_iteration) System.out.println();
 			}
-
-			// log(e) = 1.0
-			double base2_likelihood = likelihood / Math.log(2);
-
-			if (flag) { System.err.println(); }
-			if (iter == 0) {
-				mean_srclen_multiplier = tot_len_ratio / lc;
-				System.err.println("expected target length = source length * " + mean_srclen_multiplier );
+			if (both != null) {
+				both.train(corpus);
+				System.err.println(opposite_direction + " model:");
+				System.err.print(opposite_log.toString("UTF-8"));
+			} else {
+				aligner.train(corpus);
 			}
-			emp_feat /= toks;
-			System.err.println("  log_e likelihood: " + likelihood );
-			System.err.println("  log_2 likelihood: " + base2_likelihood );
-			System.err.println("     cross entropy: " + (-base2_likelihood / denom) );
-			System.err.println("        perplexity: " + Math.pow(2.0, -base2_likelihood / denom) );
-			System.err.println("      posterior p0: " + c0 / toks );
-			System.err.println(" posterior al-feat: " + emp_feat );
-			//System.err.println("     model tension: " + mod_feat / toks );
-			System.err.println("       size counts: " + size_counts.size() );
-			if (!final_iteration) {
-				if (align.favor_diagonal && align.optimize_tension && iter > 0) {
-					for (int ii = 0; ii < 8; ++ii) {
-						double mod_feat = 0;
-						Iterator<Map.Entry<Pair,Integer>> it = size_counts.entrySet().iterator();
-						for(; it.hasNext(); ) {
-							Map.Entry<Pair,Integer> entry = it.next();
-							final Pair p = entry.getKey();
-							for (int j = 1; j <= p.first; ++j)
-								mod_feat += entry.getValue() * DiagonalAlignment.computeDLogZ(j, p.first, p.second, align.diagonal_tension);
-						}
-						mod_feat /= toks;
-						System.err.println("  " + ii + 1 + "  model al-feat: " + mod_feat + " (tension=" + align.diagonal_tension + ")");
-						align.diagonal_tension += (emp_feat - mod_feat) * 20.0;
-						if (align.diagonal_tension <= 0.1) align.diagonal_tension = 0.1;
-						if (align.diagonal_tension > 14) align.diagonal_tension = 14;
-					}
-					System.err.println("     final tension: " + align.diagonal_tension);
+			out.close();
+			if (opposite_out != null) opposite_out.close();
+			if (posteriors != null) posteriors.close();
+			if (opposite_posteriors != null) opposite_posteriors.close();
+			if (!align.state_filename.isEmpty()) {
+				System.err.println("stepwise EM state: " + align.state_filename);
+				aligner.saveState(align.state_filename);
+			}
+			if (!align.conditional_probability_filename.isEmpty()) {
+				System.err.println("conditional probabilities: " + align.conditional_probability_filename);
+				aligner.save(align.conditional_probability_filename, align.binary_table);
+				if (opposite != null) {
+					final String filename = align.conditional_probability_filename + "." + opposite_direction;
+					System.err.println("conditional probabilities: " + filename);
+					opposite.save(filename, align.binary_table);
 				}
-				if (align.variational_bayes)
-					s2t.NormalizeVB(align.alpha);
-				else
-					s2t.Normalize();
-				//prob_align_null *= 0.8; // XXX
-				//prob_align_null += (c0 / toks) * 0.2;
-				prob_align_not_null = 1.0 - align.prob_align_null;
 			}
-
-		}
-		if (!align.conditional_probability_filename.isEmpty()) {
-			System.err.println("conditional probabilities: " + align.conditional_probability_filename);
-			s2t.ExportToFile(align.conditional_probability_filename, align.d);
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		} catch (JMException e) {
+			System.err.println("Can't register MBean: " + e.getMessage());
+			System.exit(1);
+		} finally {
+			if (metrics != null) metrics.close();
 		}
 		System.exit(0);
 	}
@@ -0,0 +1,231 @@
+// Copyright 2013 by Chris Dyer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Ported to Java by Lane Schwartz
+// Modifications by John Hewitt
+//
+package edu.upenn.cis;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Open-addressing map from non-negative int keys to primitive doubles.
+ *
+ * Keys and values live in parallel arrays, so an entry costs 12 bytes of
+ * payload (plus load-factor slack) and lookups never box.  Slots are exposed
+ * to the package so callers can iterate with {@link #capacity()},
+ * {@link #keyAt(int)} and {@link #valueAt(int)}.
+ *
+ * A {@link #compact() compacted} map stores its values as floats, 8 bytes
+ * per entry instead of 12, until the next {@link #clear()}; values written
+ * to it are rounded with {@link #toFloat(double)}.
+ */
+final class IntDoubleMap {
+
+	static final int EMPTY = -1;
+
+	private int[] keys;
+	private double[] values;
+	// replaces values in a compacted map
+	private float[] floats;
+	private int size;
+	private int mask;
+	private int resizeAt;
+
+	IntDoubleMap() {
+		this(8);
+	}
+
+	IntDoubleMap(int expected) {
+		int cap = 8;
+		while (cap * 3 < expected * 4) cap <<= 1;
+		allocate(cap, false);
+	}
+
+	/** Allocates cap empty slots with double values, or with float values if compact. */
+	private void allocate(int cap, boolean compact) {
+		keys = new int[cap];
+		Arrays.fill(keys, EMPTY);
+		values = compact ? null : new double[cap];
+		floats = compact ? new float[cap] : null;
+		mask = cap - 1;
+		resizeAt = (cap * 3) >>> 2;
+	}
+
+	private static int hash(int key) {
+		final int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private int slot(int key) {
+		int i = hash(key) & mask;
+		while (keys[i] != EMPTY && keys[i] != key)
+			i = (i + 1) & mask;
+		return i;
+	}
+
+	int size() { return size; }
+
+	/** Number of slots; valid slot indices are 0..capacity()-1. */
+	int capacity() { return keys.length; }
+
+	/** Key stored in slot, or {@link #EMPTY}. */
+	int keyAt(int slot) { return keys[slot]; }
+
+	double valueAt(int slot) { return floats != null ? floats[slot] : values[slot]; }
+
+	void setValueAt(int slot, double value) {
+		if (floats != null) floats[slot] = toFloat(value);
+		else values[slot] = value;
+	}
+
+	boolean containsKey(int key) {
+		return keys[slot(key)] != EMPTY;
+	}
+
+	double get(int key, double missing) {
+		final int i = slot(key);
+		if (keys[i] == EMPTY) return missing;
+		return floats != null ? floats[i] : values[i];
+	}
+
+	void put(int key, double value) {
+		final int i = slot(key);
+		if (keys[i] == EMPTY) {
+			keys[i] = key;
+			setValueAt(i, value);
+			if (++size > resizeAt) rehash();
+		} else {
+			setValueAt(i, value);
+		}
+	}
+
+	/** Adds x to the value stored for key, treating a missing key as 0. */
+	void add(int key, double x) {
+		final int i = slot(key);
+		if (keys[i] == EMPTY) {
+			keys[i] = key;
+			setValueAt(i, x);
+			if (++size > resizeAt) rehash();
+		} else {
+			setValueAt(i, valueAt(i) + x);
+		}
+	}
+
+	/**
+	 * Removes all entries but keeps the allocated capacity for reuse. A
+	 * compacted map goes back to double values, so it can accumulate counts.
+	 */
+	void clear() {
+		if (floats != null) {
+			values = new double[keys.length];
+			floats = null;
+		}
+		if (size == 0) return;
+		Arrays.fill(keys, EMPTY);
+		size = 0;
+	}
+
+	/** Rounds the values to float and stores them in half the space. */
+	void compact() {
+		if (floats != null) return;
+		floats = new float[keys.length];
+		for (int s = 0; s < keys.length; ++s) floats[s] = toFloat(values[s]);
+		values = null;
+	}
+
+	/**
+	 * Compacts this map and clears spent, a compacted map that is no longer
+	 * needed. If both have the same capacity they trade arrays: this map
+	 * rounds into spent's floats, and spent takes this map's doubles to
+	 * count into. Nothing is allocated then, as with clear() alone.
+	 */
+	void compactClearing(IntDoubleMap spent) {
+		final float[] f = spent.floats;
+		if (floats != null || f == null || f.length != keys.length) {
+			compact();
+			spent.clear();
+			return;
+		}
+		for (int s = 0; s < keys.length; ++s) f[s] = toFloat(values[s]);
+		spent.floats = null;
+		spent.values = values;
+		floats = f;
+		values = null;
+		spent.clear();
+	}
+
+	boolean isCompact() { return floats != null; }
+
+	/**
+	 * Rounds to float, but raises positive values below the float range
+	 * (tiny probabilities, which are common) to Float.MIN_NORMAL, so that
+	 * they do not become 0.
+	 */
+	static float toFloat(double value) {
+		return value > 0 && value < Float.MIN_NORMAL ? Float.MIN_NORMAL : (float) value;
+	}
+
+	private void rehash() {
+		final int[] oldKeys = keys;
+		final double[] oldValues = values;
+		final float[] oldFloats = floats;
+		allocate(oldKeys.length << 1, oldFloats != null);
+		for (int s = 0; s < oldKeys.length; ++s) {
+			if (oldKeys[s] != EMPTY) {
+				final int i = slot(oldKeys[s]);
+				keys[i] = oldKeys[s];
+				if (oldFloats != null) floats[i] = oldFloats[s];
+				else values[i] = oldValues[s];
+			}
+		}
+	}
+
+	/** An empty map with exactly the given number of slots, a power of two of at least 8. */
+	static IntDoubleMap withCapacity(int capacity) {
+		IntDoubleMap map = new IntDoubleMap();
+		map.allocate(capacity, false);
+		return map;
+	}
+
+	/**
+	 * Writes the map slot by slot. {@link #read} restores the same layout,
+	 * so iterating over the slots visits the entries in the same order.
+	 */
+	void write(DataOutputStream out) throws IOException {
+		out.writeInt(keys.length);
+		out.writeInt(size);
+		for (int s = 0; s < keys.length; ++s) out.writeInt(keys[s]);
+		for (int s = 0; s < keys.length; ++s) out.writeDouble(valueAt(s));
+	}
+
+	static IntDoubleMap read(DataInputStream in) throws IOException {
+		final int capacity = in.readInt();
+		if (capacity < 8 || Integer.bitCount(capacity) != 1)
+			throw new IOException("Bad map capacity " + capacity);
+		IntDoubleMap map = withCapacity(capacity);
+		map.size = in.readInt();
+		for (int s = 0; s < capacity; ++s) map.keys[s] = in.readInt();
+		for (int s = 0; s < capacity; ++s) map.values[s] = in.readDouble();
+		return map;
+	}
+
+	/** Approximate heap footprint of the backing arrays, in bytes. */
+	long bytes() {
+		return 64L + (floats != null ? 8L : 12L) * keys.length;
+	}
+}
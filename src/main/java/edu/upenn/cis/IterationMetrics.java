@@ -0,0 +1,76 @@
+// Copyright 2013 by Chris Dyer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Ported to Java by Lane Schwartz
+// Modifications by John Hewitt
+//
+package edu.upenn.cis;
+
+/**
+ * Timing, throughput and memory of one EM iteration, reported to
+ * {@link StatisticsSink#iterationCompleted} once the iteration, including
+ * tension optimization and normalization, is done.
+ */
+public class IterationMetrics {
+
+	private final IterationStats stats;
+	private final long estepNanos;
+	private final long tensionNanos;
+	private final long normalizeNanos;
+	private final double tension;
+	private final int ttableRows;
+	private final long ttableEntries;
+	private final long ttableBytes;
+	private final int dictSize;
+	private final long heapUsed;
+
+	IterationMetrics(IterationStats stats, long estepNanos, long tensionNanos, long normalizeNanos, double tension,
+			int ttableRows, long ttableEntries, long ttableBytes, int dictSize, long heapUsed) {
+		this.stats = stats;
+		this.estepNanos = estepNanos;
+		this.tensionNanos = tensionNanos;
+		this.normalizeNanos = normalizeNanos;
+		this.tension = tension;
+		this.ttableRows = ttableRows;
+		this.ttableEntries = ttableEntries;
+		this.ttableBytes = ttableBytes;
+		this.dictSize = dictSize;
+		this.heapUsed = heapUsed;
+	}
+
+	public IterationStats getStats() { return stats; }
+	/** Wall time of the E-step (the alignment pass in the final iteration). */
+	public long getEStepNanos() { return estepNanos; }
+	/** Wall time of the diagonal tension optimization; 0 if it did not run. */
+	public long getTensionNanos() { return tensionNanos; }
+	/** Wall time of Normalize or NormalizeVB; 0 in the final iteration. */
+	public long getNormalizeNanos() { return normalizeNanos; }
+	/** Diagonal tension at the end of the iteration. */
+	public double getTension() { return tension; }
+	public double getSentencesPerSecond() { return stats.getSentences() / (estepNanos / 1e9); }
+	public double getTokensPerSecond() { return stats.getTokens() / (estepNanos / 1e9); }
+	/** Source words with a probability row, after normalization. */
+	public int getTTableRows() { return ttableRows; }
+	public long getTTableEntries() { return ttableEntries; }
+	/** Approximate heap footprint of the probability and count tables. */
+	public long getTTableBytes() { return ttableBytes; }
+	public int getDictSize() { return dictSize; }
+	/** Used JVM heap at the end of the iteration, in bytes. */
+	public long getHeapUsed() { return heapUsed; }
+
+	static long heapUsed() {
+		final Runtime rt = Runtime.getRuntime();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+}
@@ -0,0 +1,65 @@
+// Copyright 2013 by Chris Dyer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Ported to Java by Lane Schwartz
+// Modifications by John Hewitt
+//
+package edu.upenn.cis;
+
+/** Sufficient statistics of one EM iteration, as reported to a {@link StatisticsSink}. */
+public class IterationStats {
+
+	private final int iteration;
+	private final boolean finalIteration;
+	private final int sentences;
+	private final double likelihood;
+	private final double denom;
+	private final double c0;
+	private final double empFeat;
+	private final int sizeCounts;
+	private final double meanSrclenMultiplier;
+
+	IterationStats(int iteration, boolean finalIteration, int sentences, double likelihood, double denom,
+			double c0, double empFeat, int sizeCounts, double meanSrclenMultiplier) {
+		this.iteration = iteration;
+		this.finalIteration = finalIteration;
+		this.sentences = sentences;
+		this.likelihood = likelihood;
+		this.denom = denom;
+		this.c0 = c0;
+		this.empFeat = empFeat;
+		this.sizeCounts = sizeCounts;
+		this.meanSrclenMultiplier = meanSrclenMultiplier;
+	}
+
+	/** Zero-based iteration number. */
+	public int getIteration() { return iteration; }
+	public boolean isFinalIteration() { return finalIteration; }
+	public int getSentences() { return sentences; }
+	/** Number of target tokens. */
+	public double getTokens() { return denom; }
+	/** Natural-log likelihood of the corpus. */
+	public double getLikelihood() { return likelihood; }
+	public double getBase2Likelihood() { return likelihood / Math.log(2); }
+	public double getCrossEntropy() { return -getBase2Likelihood() / denom; }
+	public double getPerplexity() { return Math.pow(2.0, getCrossEntropy()); }
+	/** Posterior probability of aligning to the null word. */
+	public double getPosteriorNull() { return c0 / denom; }
+	/** Expected value of the diagonal feature under the posterior. */
+	public double getPosteriorFeature() { return empFeat; }
+	/** Number of distinct (target length, source length) pairs. */
+	public int getSizeCounts() { return sizeCounts; }
+	/** Mean target/source length ratio, measured in the first iteration. */
+	public double getMeanSrclenMultiplier() { return meanSrclenMultiplier; }
+}
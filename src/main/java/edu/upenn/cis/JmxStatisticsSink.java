@@ -0,0 +1,77 @@
+// Copyright 2013 by Chris Dyer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Ported to Java by Lane Schwartz
+// Modifications by John Hewitt
+//
+package edu.upenn.cis;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Publishes the metrics of the last completed iteration, and progress
+ * through the current one, as an MBean on the platform MBean server.
+ */
+public class JmxStatisticsSink implements StatisticsSink, JmxStatisticsSinkMBean {
+
+	private final ObjectName name;
+	private volatile IterationMetrics last;
+	private volatile int sentences;
+
+	/** Registers the sink under the given name, e.g. "edu.upenn.cis:type=Aligner". */
+	public JmxStatisticsSink(String name) throws JMException {
+		this.name = new ObjectName(name);
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, this.name);
+	}
+
+	/** Removes the MBean from the platform server. */
+	public void unregister() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		if (server.isRegistered(name)) server.unregisterMBean(name);
+	}
+
+	public void iterationStarted(int iteration, boolean finalIteration) {
+		sentences = 0;
+	}
+
+	public void progress(int sentences) {
+		this.sentences = sentences;
+	}
+
+	public void iterationCompleted(IterationMetrics metrics) {
+		sentences = metrics.getStats().getSentences();
+		last = metrics;
+	}
+
+	public int getIteration() { return last == null ? 0 : last.getStats().getIteration() + 1; }
+	public boolean isFinalIteration() { return last != null && last.getStats().isFinalIteration(); }
+	public int getSentencesDone() { return sentences; }
+	public double getLogLikelihood() { return last == null ? 0 : last.getStats().getLikelihood(); }
+	public double getPerplexity() { return last == null ? 0 : last.getStats().getPerplexity(); }
+	public double getTension() { return last == null ? 0 : last.getTension(); }
+	public double getEStepSeconds() { return last == null ? 0 : last.getEStepNanos() / 1e9; }
+	public double getTensionSeconds() { return last == null ? 0 : last.getTensionNanos() / 1e9; }
+	public double getNormalizeSeconds() { return last == null ? 0 : last.getNormalizeNanos() / 1e9; }
+	public double getSentencesPerSecond() { return last == null ? 0 : last.getSentencesPerSecond(); }
+	public double getTokensPerSecond() { return last == null ? 0 : last.getTokensPerSecond(); }
+	public int getTTableRows() { return last == null ? 0 : last.getTTableRows(); }
+	public long getTTableEntries() { return last == null ? 0 : last.getTTableEntries(); }
+	public long getTTableBytes() { return last == null ? 0 : last.getTTableBytes(); }
+	public int getDictSize() { return last == null ? 0 : last.getDictSize(); }
+	public long getHeapUsed() { return IterationMetrics.heapUsed(); }
+}
@@ -0,0 +1,40 @@
+// Copyright 2013 by Chris Dyer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Ported to Java by Lane Schwartz
+// Modifications by John Hewitt
+//
+package edu.upenn.cis;
+
+/** Training metrics published over JMX by {@link JmxStatisticsSink}. */
+public interface JmxStatisticsSinkMBean {
+
+	/** One-based number of the last completed iteration; 0 before the first. */
+	int getIteration();
+	boolean isFinalIteration();
+	int getSentencesDone();
+	double getLogLikelihood();
+	double getPerplexity();
+	double getTension();
+	double getEStepSeconds();
+	double getTensionSeconds();
+	double getNormalizeSeconds();
+	double getSentencesPerSecond();
+	double getTokensPerSecond();
+	int getTTableRows();
+	long getTTableEntries();
+	long getTTableBytes();
+	int getDictSize();
+	long getHeapUsed();
+}
@@ -0,0 +1,111 @@
+// Copyright 2013 by Chris Dyer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Ported to Java by Lane Schwartz
+// Modifications by John Hewitt
+//
+package edu.upenn.cis;
+
+import java.io.PrintStream;
+
+/**
+ * Writes one JSON object per line: an "iteration" record at the end of
+ * every EM iteration, a "prune" record whenever the table is pruned, and
+ * a record for each other phase (e.g. "read", "export"). Lines are flushed as they are written so the file can be
+ * followed while training runs.
+ */
+public class JsonStatisticsSink implements StatisticsSink {
+
+	private final PrintStream out;
+	private final String direction;
+
+	public JsonStatisticsSink(PrintStream out) {
+		this(out, null);
+	}
+
+	/** Tags every record with "direction", for runs that train both directions into one file. */
+	public JsonStatisticsSink(PrintStream out, String direction) {
+		this.out = out;
+		this.direction = direction;
+	}
+
+	public void iterationCompleted(IterationMetrics m) {
+		final IterationStats s = m.getStats();
+		StringBuilder b = new StringBuilder();
+		b.append("{\"event\":\"iteration\"");
+		direction(b);
+		field(b, "iteration", s.getIteration() + 1);
+		b.append(",\"final\":").append(s.isFinalIteration());
+		field(b, "sentences", s.getSentences());
+		field(b, "tokens", (long) s.getTokens());
+		field(b, "log_likelihood", s.getLikelihood());
+		field(b, "cross_entropy", s.getCrossEntropy());
+		field(b, "perplexity", s.getPerplexity());
+		field(b, "posterior_null", s.getPosteriorNull());
+		field(b, "size_counts", s.getSizeCounts());
+		field(b, "tension", m.getTension());
+		field(b, "estep_s", m.getEStepNanos() / 1e9);
+		field(b, "tension_s", m.getTensionNanos() / 1e9);
+		field(b, "normalize_s", m.getNormalizeNanos() / 1e9);
+		field(b, "sentences_per_s", m.getSentencesPerSecond());
+		field(b, "tokens_per_s", m.getTokensPerSecond());
+		field(b, "ttable_rows", m.getTTableRows());
+		field(b, "ttable_entries", m.getTTableEntries());
+		field(b, "ttable_bytes", m.getTTableBytes());
+		field(b, "dict_size", m.getDictSize());
+		field(b, "heap_used", m.getHeapUsed());
+		out.println(b.append('}'));
+		out.flush();
+	}
+
+	public void tablePruned(long entriesBefore, long entriesAfter, long bytesBefore, long bytesAfter, double removedMass) {
+		StringBuilder b = new StringBuilder();
+		b.append("{\"event\":\"prune\"");
+		direction(b);
+		field(b, "entries_before", entriesBefore);
+		field(b, "entries_after", entriesAfter);
+		field(b, "ttable_bytes_before", bytesBefore);
+		field(b, "ttable_bytes_after", bytesAfter);
+		field(b, "removed_mass", removedMass);
+		out.println(b.append('}'));
+		out.flush();
+	}
+
+	public void phaseFinished(String phase, long nanos) {
+		StringBuilder b = new StringBuilder();
+		b.append("{\"event\":\"").append(phase).append('"');
+		direction(b);
+		field(b, "seconds", nanos / 1e9);
+		field(b, "heap_used", IterationMetrics.heapUsed());
+		out.println(b.append('}'));
+		out.flush();
+	}
+
+	private void direction(StringBuilder b) {
+		if (direction != null) b.append(",\"direction\":\"").append(direction).append('"');
+	}
+
+	private static void field(StringBuilder b, String name, long value) {
+		b.append(",\"").append(name).append("\":").append(value);
+	}
+
+	private static void field(StringBuilder b, String name, double value) {
+		b.append(",\"").append(name).append("\":");
+		// JSON has no NaN or infinity
+		if (Double.isNaN(value) || Double.isInfinite(value))
+			b.append("null");
+		else
+			b.append(value);
+	}
+}
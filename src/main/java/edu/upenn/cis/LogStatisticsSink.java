@@ -0,0 +1,69 @@
+// Copyright 2013 by Chris Dyer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Ported to Java by Lane Schwartz
+// Modifications by John Hewitt
+//
+package edu.upenn.cis;
+
+import java.io.PrintStream;
+import java.util.Locale;
+
+/** Prints training progress and statistics in the traditional fast_align log format. */
+public class LogStatisticsSink implements StatisticsSink {
+
+	private final PrintStream err;
+	private boolean flag = false;
+
+	public LogStatisticsSink(PrintStream err) {
+		this.err = err;
+	}
+
+	public void iterationStarted(int iteration, boolean finalIteration) {
+		err.println("ITERATION " + (iteration + 1) + (finalIteration ? " (FINAL)" : ""));
+	}
+
+	public void progress(int lc) {
+		if (lc % 1000 == 0) { err.print('.'); flag = true; }
+		if (lc %50000 == 0) { err.println(" [" + lc + "]\n"); err.flush(); flag = false; }
+	}
+
+	public void iterationFinished(IterationStats stats) {
+		if (flag) { err.println(); flag = false; }
+		if (stats.getIteration() == 0) {
+			err.println("expected target length = source length * " + stats.getMeanSrclenMultiplier() );
+		}
+		err.println("  log_e likelihood: " + stats.getLikelihood() );
+		err.println("  log_2 likelihood: " + stats.getBase2Likelihood() );
+		err.println("     cross entropy: " + stats.getCrossEntropy() );
+		err.println("        perplexity: " + stats.getPerplexity() );
+		err.println("      posterior p0: " + stats.getPosteriorNull() );
+		err.println(" posterior al-feat: " + stats.getPosteriorFeature() );
+		err.println("       size counts: " + stats.getSizeCounts() );
+	}
+
+	public void tensionStep(int step, double modelFeature, double tension) {
+		err.println("  " + step + 1 + "  model al-feat: " + modelFeature + " (tension=" + tension + ")");
+	}
+
+	public void tensionOptimized(double tension) {
+		err.println("     final tension: " + tension);
+	}
+
+	public void tablePruned(long entriesBefore, long entriesAfter, long bytesBefore, long bytesAfter, double removedMass) {
+		err.println("     pruned ttable: " + entriesBefore + " -> " + entriesAfter + " entries, "
+				+ String.format(Locale.ROOT, "%.1f -> %.1f MB", bytesBefore / 1048576.0, bytesAfter / 1048576.0)
+				+ ", removed mass/row " + removedMass);
+	}
+}
@@ -0,0 +1,379 @@
+// Copyright 2013 by Chris Dyer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Ported to Java by Lane Schwartz
+// Modifications by John Hewitt
+//
+package edu.upenn.cis;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Read-only translation table backed by a memory-mapped binary file.
+ *
+ * The file stores the table in compressed sparse row form, indexed by the
+ * word ids of the dictionary that wrote it (big-endian, sections 8-byte
+ * aligned):
+ * <pre>
+ *   int   magic, version, rows, 0
+ *   long  entries, vocab offset, row offsets offset, columns offset, values offset
+ *   (version 2)  int flags, steps; double diagonal tension, p_null
+ *   vocab    int count, then per word: int byte length, UTF-8 bytes
+ *   offsets  (rows + 1) longs; row e holds entries [offsets[e], offsets[e+1])
+ *   columns  entries ints, ascending within each row
+ *   values   entries doubles (floats if flag bit 4 is set)
+ * </pre>
+ * Mapping only decodes the vocabulary; rows are paged in on first lookup.
+ * Version 2 adds the {@link ModelParams} of the model the table belongs to;
+ * bit 0 of the flags says whether they are present. Steps is the number of
+ * stepwise EM updates behind a table of running statistics, 0 otherwise.
+ * Version 3 adds single-precision values, which halve the values section.
+ */
+final class MappedTable {
+
+	static final int kMagic = 0x46415431; // "FAT1"
+	static final int kVersion = 3;
+	static final int kHeaderBytes = 56;
+	static final int kParamsBytes = 24;
+
+	private static final int kHasParams = 1;
+	private static final int kFavorDiagonal = 2;
+	private static final int kNoNullWord = 4;
+	private static final int kReverse = 8;
+	private static final int kFloatValues = 16;
+
+	private static final int kChunkShift = 27;
+	private static final int kChunkSize = 1 << kChunkShift;
+	private static final int kChunkMask = kChunkSize - 1;
+
+	private final int rows;
+	private final long entries;
+	private final LongBuffer offsets;
+	private final IntBuffer[] columns;
+	private final DoubleBuffer[] values;
+	// replaces values in a single-precision table
+	private final FloatBuffer[] floats;
+	// dictToFile[id] is the file id of dictionary word id, or -1; null if they coincide
+	private final int[] dictToFile;
+	private final int[] fileToDict;
+
+	private MappedTable(int rows, long entries, LongBuffer offsets, IntBuffer[] columns, DoubleBuffer[] values,
+			FloatBuffer[] floats, int[] dictToFile, int[] fileToDict) {
+		this.rows = rows;
+		this.entries = entries;
+		this.offsets = offsets;
+		this.columns = columns;
+		this.values = values;
+		this.floats = floats;
+		this.dictToFile = dictToFile;
+		this.fileToDict = fileToDict;
+	}
+
+	long size() { return entries; }
+
+	/** Number of non-empty rows. */
+	int rows() {
+		int n = 0;
+		for (int r = 0; r < rows; ++r) {
+			if (offsets.get(r + 1) > offsets.get(r)) ++n;
+		}
+		return n;
+	}
+
+	private int toFile(int id) {
+		if (dictToFile == null) return id;
+		return id < dictToFile.length ? dictToFile[id] : -1;
+	}
+
+	private int column(long k) {
+		return columns[(int) (k >>> kChunkShift)].get((int) (k & kChunkMask));
+	}
+
+	private double value(long k) {
+		if (floats != null) return floats[(int) (k >>> kChunkShift)].get((int) (k & kChunkMask));
+		return values[(int) (k >>> kChunkShift)].get((int) (k & kChunkMask));
+	}
+
+	double prob(final int e, final int f) {
+		final int fe = toFile(e);
+		if (fe < 0 || fe >= rows) return 1e-9;
+		final int ff = toFile(f);
+		if (ff < 0) return 1e-9;
+		long lo = offsets.get(fe);
+		long hi = offsets.get(fe + 1) - 1;
+		while (lo <= hi) {
+			final long mid = (lo + hi) >>> 1;
+			final int c = column(mid);
+			if (c < ff) lo = mid + 1;
+			else if (c > ff) hi = mid - 1;
+			else return value(mid);
+		}
+		return 1e-9;
+	}
+
+	/** Copies the table into heap rows indexed by dictionary ids. */
+	IntDoubleMap[] thaw() {
+		int max = 0;
+		for (int r = 0; r < rows; ++r) max = Math.max(max, toDict(r));
+		IntDoubleMap[] table = new IntDoubleMap[max + 1];
+		for (int r = 0; r < rows; ++r) {
+			final long lo = offsets.get(r);
+			final long hi = offsets.get(r + 1);
+			if (lo == hi) continue;
+			IntDoubleMap row = new IntDoubleMap((int) (hi - lo));
+			for (long k = lo; k < hi; ++k) row.put(toDict(column(k)), value(k));
+			table[toDict(r)] = row;
+		}
+		return table;
+	}
+
+	private int toDict(int fileId) {
+		return fileToDict == null ? fileId : fileToDict[fileId];
+	}
+
+	/** True if file starts with the magic number of a binary table. */
+	static boolean isMapped(File file) {
+		if (file.length() < kHeaderBytes) return false;
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(file));
+			try {
+				return in.readInt() == kMagic;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Maps a binary table read-only. Its vocabulary is added to d; if d
+	 * assigns the stored words different ids, lookups are translated.
+	 */
+	static MappedTable map(File file, Dict d) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, kHeaderBytes);
+			if (header.getInt() != kMagic)
+				throw new IOException(file + " is not a binary translation table");
+			final int version = header.getInt();
+			if (version < 1 || version > kVersion)
+				throw new IOException(file + ": unsupported table version " + version);
+			final int rows = header.getInt();
+			header.getInt();
+			final long entries = header.getLong();
+			final long vocabOffset = header.getLong();
+			final long offsetsOffset = header.getLong();
+			final long columnsOffset = header.getLong();
+			final long valuesOffset = header.getLong();
+			final boolean single = version >= 3
+					&& (channel.map(FileChannel.MapMode.READ_ONLY, kHeaderBytes, 4).getInt() & kFloatValues) != 0;
+
+			ByteBuffer vocab = channel.map(FileChannel.MapMode.READ_ONLY, vocabOffset, offsetsOffset - vocabOffset);
+			final int words = vocab.getInt();
+			int[] fileToDict = new int[words + 1];
+			boolean identity = true;
+			byte[] bytes = new byte[64];
+			for (int w = 1; w <= words; ++w) {
+				final int len = vocab.getInt();
+				if (bytes.length < len) bytes = new byte[Math.max(len, bytes.length * 2)];
+				vocab.get(bytes, 0, len);
+				fileToDict[w] = d.Convert(new String(bytes, 0, len, StandardCharsets.UTF_8));
+				identity &= fileToDict[w] == w;
+			}
+			int[] dictToFile = null;
+			if (identity) {
+				fileToDict = null;
+			} else {
+				dictToFile = new int[d.max() + 1];
+				Arrays.fill(dictToFile, -1);
+				dictToFile[0] = 0;
+				for (int w = 1; w <= words; ++w) dictToFile[fileToDict[w]] = w;
+			}
+			LongBuffer offsets = channel.map(FileChannel.MapMode.READ_ONLY, offsetsOffset, 8L * (rows + 1)).asLongBuffer();
+			final int chunks = Math.max(1, (int) ((entries + kChunkSize - 1) >>> kChunkShift));
+			IntBuffer[] columns = new IntBuffer[chunks];
+			DoubleBuffer[] values = single ? null : new DoubleBuffer[chunks];
+			FloatBuffer[] floats = single ? new FloatBuffer[chunks] : null;
+			for (int c = 0; c < chunks; ++c) {
+				final long first = ((long) c) << kChunkShift;
+				final long len = Math.max(0, Math.min(kChunkSize, entries - first));
+				columns[c] = channel.map(FileChannel.MapMode.READ_ONLY, columnsOffset + 4 * first, 4 * len).asIntBuffer();
+				if (single)
+					floats[c] = channel.map(FileChannel.MapMode.READ_ONLY, valuesOffset + 4 * first, 4 * len).asFloatBuffer();
+				else
+					values[c] = channel.map(FileChannel.MapMode.READ_ONLY, valuesOffset + 8 * first, 8 * len).asDoubleBuffer();
+			}
+			return new MappedTable(rows, entries, offsets, columns, values, floats, dictToFile, fileToDict);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static long align8(long offset) {
+		return (offset + 7) & ~7L;
+	}
+
+	private static void pad(DataOutputStream out, long from, long to) throws IOException {
+		for (long k = from; k < to; ++k) out.writeByte(0);
+	}
+
+	private static int[] sortedKeys(IntDoubleMap row) {
+		int[] keys = new int[row.size()];
+		int n = 0;
+		for (int s = 0; s < row.capacity(); ++s) {
+			if (row.keyAt(s) != IntDoubleMap.EMPTY) keys[n++] = row.keyAt(s);
+		}
+		Arrays.sort(keys);
+		return keys;
+	}
+
+	/**
+	 * Reads the model parameters of a binary table without mapping it.
+	 * @return the parameters, or null if the table does not carry any.
+	 */
+	static ModelParams readParams(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			if (in.readInt() != kMagic)
+				throw new IOException(file + " is not a binary translation table");
+			final int version = in.readInt();
+			if (version < 2) return null;
+			in.skipBytes(kHeaderBytes - 8);
+			final int flags = in.readInt();
+			in.readInt();
+			if ((flags & kHasParams) == 0) return null;
+			final double diagonal_tension = in.readDouble();
+			final double prob_align_null = in.readDouble();
+			return new ModelParams(diagonal_tension, prob_align_null,
+					(flags & kFavorDiagonal) != 0,
+					(flags & kNoNullWord) != 0,
+					(flags & kReverse) != 0);
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Number of stepwise EM updates stored in a version 2 file, 0 if none. */
+	static int readSteps(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			if (in.readInt() != kMagic)
+				throw new IOException(file + " is not a binary translation table");
+			if (in.readInt() < 2) return 0;
+			in.skipBytes(kHeaderBytes - 8);
+			in.readInt();
+			return in.readInt();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes heap rows indexed by the ids of d in the binary format, with
+	 * the model parameters if params is not null.
+	 */
+	static void write(File file, IntDoubleMap[] table, Dict d, ModelParams params) throws IOException {
+		write(file, table, d, params, 0, false);
+	}
+
+	/** Like {@link #write(File, IntDoubleMap[], Dict, ModelParams)}; single writes float values. */
+	static void write(File file, IntDoubleMap[] table, Dict d, ModelParams params, int steps, boolean single)
+			throws IOException {
+		final int vocab = d.max();
+		byte[][] words = new byte[vocab][];
+		long vocabBytes = 4;
+		for (int w = 0; w < vocab; ++w) {
+			words[w] = d.Convert(w + 1).getBytes(StandardCharsets.UTF_8);
+			vocabBytes += 4 + words[w].length;
+		}
+		int rows = 0;
+		long entries = 0;
+		for (int e = 0; e < table.length; ++e) {
+			if (table[e] != null && table[e].size() > 0) {
+				rows = e + 1;
+				entries += table[e].size();
+			}
+		}
+		final long vocabOffset = kHeaderBytes + kParamsBytes;
+		final long offsetsOffset = align8(vocabOffset + vocabBytes);
+		final long columnsOffset = offsetsOffset + 8L * (rows + 1);
+		final long valuesOffset = align8(columnsOffset + 4L * entries);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 20));
+		try {
+			out.writeInt(kMagic);
+			out.writeInt(kVersion);
+			out.writeInt(rows);
+			out.writeInt(0);
+			out.writeLong(entries);
+			out.writeLong(vocabOffset);
+			out.writeLong(offsetsOffset);
+			out.writeLong(columnsOffset);
+			out.writeLong(valuesOffset);
+			int flags = single ? kFloatValues : 0;
+			if (params != null) {
+				flags |= kHasParams;
+				if (params.favor_diagonal) flags |= kFavorDiagonal;
+				if (params.no_null_word) flags |= kNoNullWord;
+				if (params.is_reverse) flags |= kReverse;
+			}
+			out.writeInt(flags);
+			out.writeInt(steps);
+			out.writeDouble(params == null ? 0 : params.diagonal_tension);
+			out.writeDouble(params == null ? 0 : params.prob_align_null);
+			out.writeInt(vocab);
+			for (int w = 0; w < vocab; ++w) {
+				out.writeInt(words[w].length);
+				out.write(words[w]);
+			}
+			pad(out, vocabOffset + vocabBytes, offsetsOffset);
+			long offset = 0;
+			for (int e = 0; e < rows; ++e) {
+				out.writeLong(offset);
+				if (table[e] != null) offset += table[e].size();
+			}
+			out.writeLong(offset);
+			for (int e = 0; e < rows; ++e) {
+				if (table[e] == null) continue;
+				for (int f : sortedKeys(table[e])) out.writeInt(f);
+			}
+			pad(out, columnsOffset + 4L * entries, valuesOffset);
+			for (int e = 0; e < rows; ++e) {
+				if (table[e] == null) continue;
+				for (int f : sortedKeys(table[e])) {
+					if (single) out.writeFloat(IntDoubleMap.toFloat(table[e].get(f, 0)));
+					else out.writeDouble(table[e].get(f, 0));
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
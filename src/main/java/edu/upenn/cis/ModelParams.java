@@ -0,0 +1,62 @@
+// Copyright 2013 by Chris Dyer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Ported to Java by Lane Schwartz
+// Modifications by John Hewitt
+//
+package edu.upenn.cis;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The alignment-model parameters that complete a trained translation table:
+ * what a decoder needs besides the lexical probabilities to reproduce the
+ * final iteration's alignments.
+ */
+public class ModelParams {
+
+	final double diagonal_tension;
+	final double prob_align_null;
+	final boolean favor_diagonal;
+	final boolean no_null_word;
+	final boolean is_reverse;
+
+	public ModelParams(double diagonal_tension,
+			double prob_align_null,
+			boolean favor_diagonal,
+			boolean no_null_word,
+			boolean is_reverse) {
+		this.diagonal_tension = diagonal_tension;
+		this.prob_align_null = prob_align_null;
+		this.favor_diagonal = favor_diagonal;
+		this.no_null_word = no_null_word;
+		this.is_reverse = is_reverse;
+	}
+
+	/**
+	 * Reads the parameters stored in a binary table written by
+	 * {@link TTable#ExportToBinaryFile(String, Dict, ModelParams)}.
+	 * @return the parameters, or null if the file does not carry any.
+	 */
+	public static ModelParams read(String filename) throws IOException {
+		return MappedTable.readParams(new File(filename));
+	}
+
+	@Override
+	public String toString() {
+		return "tension=" + diagonal_tension + " p_null=" + prob_align_null
+				+ (favor_diagonal ? " -d" : "") + (no_null_word ? " -N" : "") + (is_reverse ? " -r" : "");
+	}
+}
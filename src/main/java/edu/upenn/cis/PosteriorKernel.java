@@ -0,0 +1,114 @@
+// Copyright 2013 by Chris Dyer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Ported to Java by Lane Schwartz
+// Modifications by John Hewitt
+//
+package edu.upenn.cis;
+
+/**
+ * The arithmetic of the E-step for one target word over a gathered row of
+ * translation probabilities: weighting by the alignment prior, summing,
+ * normalizing, the expected diagonal feature and the Viterbi argmax.
+ *
+ * This class computes them one element at a time, in the order of the
+ * original loops, so results are bit-for-bit those of the reference
+ * implementation. {@link #vector()} loads a subclass that uses the Java
+ * Vector API; it sums in another order, so its results may differ in the
+ * last bits. It is only compiled by the vector profile and needs
+ * --add-modules jdk.incubator.vector at run time.
+ */
+class PosteriorKernel {
+
+	static final PosteriorKernel kScalar = new PosteriorKernel();
+
+	private static final String kVectorClass = "edu.upenn.cis.VectorPosteriorKernel";
+
+	private static final class VectorHolder {
+		static final PosteriorKernel kernel = load();
+
+		private static PosteriorKernel load() {
+			try {
+				return (PosteriorKernel) Class.forName(kVectorClass).getDeclaredConstructor().newInstance();
+			} catch (ReflectiveOperationException e) {
+				return null;
+			} catch (LinkageError e) {
+				// compiled, but jdk.incubator.vector is not in the module graph
+				return null;
+			}
+		}
+	}
+
+	/** The Vector API kernel, or null if it is not built or its module is missing. */
+	static PosteriorKernel vector() {
+		return VectorHolder.kernel;
+	}
+
+	/** The Vector API kernel if asked for and available, else the scalar one. */
+	static PosteriorKernel get(boolean vector) {
+		final PosteriorKernel k = vector ? vector() : null;
+		return k != null ? k : kScalar;
+	}
+
+	String name() { return "scalar"; }
+
+	/**
+	 * Multiplies p[from..from+n) by w[w_from..w_from+n) in place.
+	 * @return sum plus the products
+	 */
+	double weightedSum(double[] p, int from, int n, double[] w, int w_from, double sum) {
+		for (int k = 0; k < n; ++k) {
+			p[from + k] *= w[w_from + k];
+			sum += p[from + k];
+		}
+		return sum;
+	}
+
+	/**
+	 * Multiplies p[from..from+n) by w in place.
+	 * @return sum plus the products
+	 */
+	double scaledSum(double[] p, int from, int n, double w, double sum) {
+		for (int k = 0; k < n; ++k) {
+			p[from + k] *= w;
+			sum += p[from + k];
+		}
+		return sum;
+	}
+
+	/** Divides p[from..from+n) by d in place. */
+	void divide(double[] p, int from, int n, double d) {
+		for (int k = from; k < from + n; ++k) p[k] /= d;
+	}
+
+	/** @return sum plus the dot product of a[a_from..a_from+n) and b[b_from..b_from+n) */
+	double dot(double[] a, int a_from, double[] b, int b_from, int n, double sum) {
+		for (int k = 0; k < n; ++k) sum += a[a_from + k] * b[b_from + k];
+		return sum;
+	}
+
+	/** @return the index of the first maximum of p[from..from+n), or -1 if n is 0 */
+	int argmax(double[] p, int from, int n) {
+		if (n == 0) return -1;
+		int max_index = from;
+		double max_p = p[from];
+		for (int k = from + 1; k < from + n; ++k) {
+			if (p[k] > max_p) {
+				max_index = k;
+				max_p = p[k];
+			}
+		}
+		return max_index;
+	}
+}
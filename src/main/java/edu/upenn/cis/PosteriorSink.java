@@ -0,0 +1,41 @@
+// Copyright 2013 by Chris Dyer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Ported to Java by Lane Schwartz
+// Modifications by John Hewitt
+//
+package edu.upenn.cis;
+
+import java.io.IOException;
+
+/**
+ * Receives the link posteriors of every sentence of a decoding pass, in
+ * input order. They come from the same E-step as the Viterbi alignment
+ * given to the {@link AlignmentSink}.
+ */
+public interface PosteriorSink {
+
+	/**
+	 * @param links  (source index, target index) pairs in links[0..length),
+	 *               oriented and ordered as for {@link AlignmentSink}; a
+	 *               word can have several links, in order of position
+	 * @param posteriors  posteriors[k] is the posterior probability of the
+	 *                    k-th link, links[2k] and links[2k + 1]
+	 * @param length  twice the number of links
+	 */
+	void posteriors(int[] links, double[] posteriors, int length) throws IOException;
+
+	/** Called after the last sentence of a pass. */
+	default void flush() throws IOException {}
+}
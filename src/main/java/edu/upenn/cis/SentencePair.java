@@ -0,0 +1,49 @@
+// Copyright 2013 by Chris Dyer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Ported to Java by Lane Schwartz
+// Modifications by John Hewitt
+//
+package edu.upenn.cis;
+
+import java.util.Arrays;
+
+/**
+ * An integerized sentence pair. Word ids come from the {@link Dict} of the
+ * {@link Aligner} the pair is given to.
+ */
+public class SentencePair {
+
+	private final int[] src;
+	private final int[] trg;
+
+	public SentencePair(int[] src, int[] trg) {
+		this.src = src;
+		this.trg = trg;
+	}
+
+	public int[] getSource() { return src; }
+
+	public int[] getTarget() { return trg; }
+
+	/**
+	 * Integerizes a "source ||| target" line of a bitext.
+	 * @param frozen  map unknown words to 0 instead of adding them to d
+	 */
+	public static SentencePair parse(String line, Dict d, boolean frozen) {
+		Tokenizer tok = new Tokenizer(d, frozen);
+		tok.parse(line);
+		return new SentencePair(Arrays.copyOf(tok.src, tok.src_len), Arrays.copyOf(tok.trg, tok.trg_len));
+	}
+}
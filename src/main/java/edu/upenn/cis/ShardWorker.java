@@ -0,0 +1,250 @@
+// Copyright 2013 by Chris Dyer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Ported to Java by Lane Schwartz
+// Modifications by John Hewitt
+//
+package edu.upenn.cis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * A worker process of a sharded training run (see {@link ShardedTrainer}).
+ * It maps the compiled corpus, E-steps its own range of sentences and,
+ * as a reducer, merges the counts of one partition of the source words
+ * (ids congruent to its index modulo the number of workers).
+ *
+ * Workers talk to the coordinator through files in a shared directory and
+ * one command per line on stdin, answered by one line on stdout:
+ * <pre>
+ *   estep ITER TENSION FINAL  E-step against the tables of ITER - 1 (none
+ *                             for ITER 0); writes counts-W-P.bin for every
+ *                             partition P and stats-W.bin, or, if FINAL is
+ *                             1, the alignments to align-W.txt
+ *   reduce ITER               sums counts-*-W.bin, normalizes and prunes,
+ *                             and writes table-ITER-W.bin;
+ *                             answers "ok ROWS ENTRIES BYTES ENTRIES_BEFORE BYTES_BEFORE REMOVED"
+ *   export ITER               writes table-ITER-W.bin as text to table-W.txt
+ *   quit
+ * </pre>
+ * Other commands are answered with "ok", or "error MESSAGE" on failure.
+ * A counts file holds, per non-empty row: int source id, int entries, then
+ * (int target id, double count) pairs; it ends with -1. A stats file holds
+ * int sentences, doubles likelihood, c0, emp_feat, toks and length ratio
+ * sum, and the length pairs of the shard (only in iteration 0) as int
+ * count, then (int source length, int target length, int count) triples.
+ */
+final class ShardWorker {
+
+	private final File dir;
+	private final int index;
+	private final int shards;
+	private final int from;
+	private final int to;
+	private final AlignerConfig config;
+	private final boolean gzip;
+	private final Dict d = new Dict();
+	private final Corpus corpus;
+	private final Aligner aligner;
+
+	ShardWorker(File dir, int index, int shards, int from, int to, File corpus, AlignerConfig config, boolean gzip)
+			throws IOException {
+		this.dir = dir;
+		this.index = index;
+		this.shards = shards;
+		this.from = from;
+		this.to = to;
+		this.config = config;
+		this.gzip = gzip;
+		this.corpus = Corpus.map(corpus, d);
+		this.aligner = new Aligner(config, d, new TTable());
+	}
+
+	static File counts(File dir, int worker, int part) {
+		return new File(dir, "counts-" + worker + "-" + part + ".bin");
+	}
+
+	static File stats(File dir, int worker) {
+		return new File(dir, "stats-" + worker + ".bin");
+	}
+
+	static File table(File dir, int iter, int part) {
+		return new File(dir, "table-" + iter + "-" + part + ".bin");
+	}
+
+	static File alignments(File dir, int worker) {
+		return new File(dir, "align-" + worker + ".txt");
+	}
+
+	static File text(File dir, int part) {
+		return new File(dir, "table-" + part + ".txt");
+	}
+
+	String run(String[] cmd) throws IOException {
+		if (cmd[0].equals("estep")) {
+			estep(Integer.parseInt(cmd[1]), Double.parseDouble(cmd[2]), cmd[3].equals("1"));
+			return "ok";
+		} else if (cmd[0].equals("reduce")) {
+			return reduce(Integer.parseInt(cmd[1]));
+		} else if (cmd[0].equals("export")) {
+			export(Integer.parseInt(cmd[1]));
+			return "ok";
+		}
+		throw new IOException("Unknown command " + cmd[0]);
+	}
+
+	private void estep(int iter, double tension, boolean final_iteration) throws IOException {
+		if (iter > 0) {
+			File[] parts = new File[shards];
+			for (int p = 0; p < shards; ++p) parts[p] = table(dir, iter - 1, p);
+			aligner.table().mapPartitions(parts);
+		}
+		AlignmentWriter out = null;
+		if (final_iteration) {
+			out = AlignmentWriter.open(new FileOutputStream(alignments(dir, index)), gzip);
+			aligner.setAlignmentSink(out);
+		}
+		final Aligner.EStepTotals totals = aligner.estep(corpus, from, to, tension, final_iteration);
+		if (out != null) out.close();
+		if (!final_iteration) writeCounts();
+		DataOutputStream stats = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(stats(dir, index))));
+		try {
+			stats.writeInt(totals.sentences);
+			stats.writeDouble(totals.likelihood);
+			stats.writeDouble(totals.c0);
+			stats.writeDouble(totals.emp_feat);
+			stats.writeDouble(totals.toks);
+			stats.writeDouble(totals.len_ratio);
+			final Map<Aligner.Pair, Integer> lengths = iter == 0 ? Aligner.lengthCounts(corpus, from, to) : null;
+			stats.writeInt(lengths == null ? 0 : lengths.size());
+			if (lengths != null) {
+				for (Map.Entry<Aligner.Pair, Integer> e : lengths.entrySet()) {
+					stats.writeInt(e.getKey().first);
+					stats.writeInt(e.getKey().second);
+					stats.writeInt(e.getValue());
+				}
+			}
+		} finally {
+			stats.close();
+		}
+	}
+
+	/** Writes the count rows of the table, split into partitions by source id, and clears them. */
+	private void writeCounts() throws IOException {
+		final TTable s2t = aligner.table();
+		for (int p = 0; p < shards; ++p) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(counts(dir, index, p)), 1 << 20));
+			try {
+				for (int e = p; e < s2t.counts.length; e += shards) {
+					final IntDoubleMap row = s2t.counts[e];
+					if (row == null || row.size() == 0) continue;
+					out.writeInt(e);
+					out.writeInt(row.size());
+					for (int s = 0; s < row.capacity(); ++s) {
+						if (row.keyAt(s) == IntDoubleMap.EMPTY) continue;
+						out.writeInt(row.keyAt(s));
+						out.writeDouble(row.valueAt(s));
+					}
+				}
+				out.writeInt(-1);
+			} finally {
+				out.close();
+			}
+		}
+		s2t.clearCounts();
+	}
+
+	private String reduce(int iter) throws IOException {
+		TTable t = new TTable();
+		t.setSinglePrecision(config.isSinglePrecision());
+		for (int w = 0; w < shards; ++w) {
+			final File file = counts(dir, w, index);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 20));
+			try {
+				for (int e = in.readInt(); e >= 0; e = in.readInt()) {
+					final int n = in.readInt();
+					for (int k = 0; k < n; ++k) {
+						final int f = in.readInt();
+						t.Increment(e, f, in.readDouble());
+					}
+				}
+			} finally {
+				in.close();
+			}
+			file.delete();
+		}
+		if (config.isVariationalBayes())
+			t.NormalizeVB(config.getAlpha());
+		else
+			t.Normalize();
+		final int rows = t.rows();
+		final long entries = t.size();
+		final long bytes = t.bytes();
+		double removed = 0;
+		if (config.isPruning() && !config.isPruneOnExportOnly())
+			removed = t.prune(config.getPruneThreshold(), config.getPruneTopK(), config.getPruneMass());
+		MappedTable.write(table(dir, iter, index), t.ttable, new Dict(), null, 0, t.isSinglePrecision());
+		return "ok " + rows + " " + t.size() + " " + t.bytes() + " " + entries + " " + bytes + " " + removed;
+	}
+
+	private void export(int iter) throws IOException {
+		TTable t = new TTable();
+		t.setSinglePrecision(config.isSinglePrecision());
+		if (iter >= 0) {
+			t.mapPartitions(new File[] {table(dir, iter, index)});
+			if (config.isPruning() && config.isPruneOnExportOnly())
+				t.prune(config.getPruneThreshold(), config.getPruneTopK(), config.getPruneMass());
+		}
+		t.ExportToFile(text(dir, index).getPath(), d);
+	}
+
+	/**
+	 * Entry point of a worker process.
+	 * @param argv  directory, worker index, number of workers, first and
+	 *              last + 1 sentence, compiled corpus, then "--" and the
+	 *              training options of the coordinator
+	 */
+	public static void main(String[] argv) {
+		final PrintStream out = new PrintStream(System.out, true);
+		try {
+			final int split = Arrays.asList(argv).indexOf("--");
+			final FastAlign options = FastAlign.initCommandLine(Arrays.copyOfRange(argv, split + 1, argv.length));
+			ShardWorker worker = new ShardWorker(new File(argv[0]),
+					Integer.parseInt(argv[1]), Integer.parseInt(argv[2]),
+					Integer.parseInt(argv[3]), Integer.parseInt(argv[4]),
+					new File(argv[5]), options.config(), options.gzip());
+			BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+			for (String line = in.readLine(); line != null && !line.equals("quit"); line = in.readLine())
+				out.println(worker.run(line.split(" ")));
+		} catch (Exception e) {
+			out.println("error " + String.valueOf(e.getMessage()).replace('\n', ' '));
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+}
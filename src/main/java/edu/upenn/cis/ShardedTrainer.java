@@ -0,0 +1,294 @@
+// Copyright 2013 by Chris Dyer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Ported to Java by Lane Schwartz
+// Modifications by John Hewitt
+//
+package edu.upenn.cis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Trains with EM split across worker processes, so that neither the
+ * corpus nor the translation table has to fit in one heap.
+ *
+ * The coordinator compiles the corpus once into a work directory and
+ * starts one {@link ShardWorker} per shard, a contiguous range of
+ * sentences with about the same number of tokens. In each iteration every
+ * worker E-steps its shard against the table of the previous iteration
+ * and writes its expected counts split into partitions by source word id
+ * (id modulo the number of workers). Worker P then reduces partition P:
+ * it sums the counts of all workers, normalizes them and writes the
+ * partition's table, which all workers map read-only in the next
+ * iteration. The coordinator only sums the per-shard statistics and
+ * optimizes the diagonal tension. In the final iteration the workers
+ * write their alignments, which are concatenated in order.
+ *
+ * Workers only share the work directory and talk line by line over their
+ * standard streams, so they could as well be started on other machines
+ * sharing a file system.
+ */
+final class ShardedTrainer {
+
+	private final AlignerConfig config;
+	private final int shards;
+	private final String[] argv;
+	private final StatisticsSink sink;
+
+	/**
+	 * @param argv  the training options, passed on to the workers
+	 */
+	ShardedTrainer(AlignerConfig config, int shards, String[] argv, StatisticsSink sink) {
+		this.config = config;
+		this.shards = shards;
+		this.argv = argv;
+		this.sink = sink;
+	}
+
+	/** A worker process and its command and answer streams. */
+	private static final class Worker {
+		final java.lang.Process process;
+		final PrintStream commands;
+		final BufferedReader answers;
+
+		Worker(java.lang.Process process) {
+			this.process = process;
+			this.commands = new PrintStream(process.getOutputStream(), true);
+			this.answers = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * Trains on the corpus in input, writes the alignments of the final
+	 * iteration to out and, unless table is null, the text translation
+	 * table to table.
+	 */
+	void train(String input, long maxTokensInMemory, OutputStream out, String table) throws IOException {
+		final File dir = Files.createTempDirectory("fast_align").toFile();
+		final List<Worker> workers = new ArrayList<Worker>();
+		try {
+			File compiled = new File(input);
+			final long read_start = System.nanoTime();
+			if (!Corpus.isCompiled(compiled)) {
+				// Same id order as training: <eps> first, then the corpus.
+				Dict d = new Dict();
+				d.Convert("<eps>");
+				compiled = new File(dir, "corpus.bin");
+				Corpus.read(input, d, maxTokensInMemory,
+						Math.min(config.getThreads(), Runtime.getRuntime().availableProcessors())).write(compiled, d);
+			}
+			final Dict d = new Dict();
+			final Corpus corpus = Corpus.map(compiled, d);
+			sink.phaseFinished("read", System.nanoTime() - read_start);
+			final int[] bounds = split(corpus);
+			for (int w = 0; w < shards; ++w) workers.add(start(dir, w, bounds[w], bounds[w + 1], compiled));
+			train(dir, workers, d);
+			for (int w = 0; w < shards; ++w) copy(ShardWorker.alignments(dir, w), out);
+			out.flush();
+			if (table != null) {
+				final long start = System.nanoTime();
+				final int last = config.getIterations() - 2;
+				command(workers, "export " + last);
+				OutputStream file = new FileOutputStream(table);
+				try {
+					for (int p = 0; p < shards; ++p) copy(ShardWorker.text(dir, p), file);
+				} finally {
+					file.close();
+				}
+				sink.phaseFinished("export", System.nanoTime() - start);
+			}
+			for (Worker w : workers) w.commands.println("quit");
+			for (Worker w : workers) w.process.waitFor();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} finally {
+			for (Worker w : workers) w.process.destroy();
+			delete(dir);
+		}
+	}
+
+	/** First sentence of each shard, and the corpus size; shards hold about the same number of tokens. */
+	private int[] split(Corpus corpus) {
+		final int[] bounds = new int[shards + 1];
+		long tokens = 0;
+		int w = 1;
+		for (int s = 0; s < corpus.size() && w < shards; ++s) {
+			tokens += corpus.srcLength(s) + corpus.trgLength(s);
+			while (w < shards && tokens >= corpus.tokens() * w / shards) bounds[w++] = s + 1;
+		}
+		while (w <= shards) bounds[w++] = corpus.size();
+		return bounds;
+	}
+
+	private Worker start(File dir, int w, int from, int to, File corpus) throws IOException {
+		List<String> cmd = new ArrayList<String>();
+		cmd.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+			if (arg.startsWith("-Xmx") || arg.startsWith("-Xms") || arg.startsWith("-Xss") || arg.startsWith("--add-modules"))
+				cmd.add(arg);
+		}
+		cmd.add("-cp");
+		cmd.add(System.getProperty("java.class.path"));
+		cmd.add(ShardWorker.class.getName());
+		cmd.add(dir.getPath());
+		cmd.add(String.valueOf(w));
+		cmd.add(String.valueOf(shards));
+		cmd.add(String.valueOf(from));
+		cmd.add(String.valueOf(to));
+		cmd.add(corpus.getPath());
+		cmd.add("--");
+		for (String arg : argv) cmd.add(arg);
+		return new Worker(new ProcessBuilder(cmd).redirectError(ProcessBuilder.Redirect.INHERIT).start());
+	}
+
+	/** Sends a command to every worker and waits for all answers; returns them. */
+	private String[] command(List<Worker> workers, String command) throws IOException {
+		for (Worker w : workers) w.commands.println(command);
+		String[] answers = new String[workers.size()];
+		for (int w = 0; w < workers.size(); ++w) {
+			final String answer = workers.get(w).answers.readLine();
+			if (answer == null)
+				throw new IOException("Worker " + w + " exited during \"" + command + "\"");
+			if (!answer.startsWith("ok"))
+				throw new IOException("Worker " + w + " failed during \"" + command + "\": " + answer);
+			answers[w] = answer;
+		}
+		return answers;
+	}
+
+	/** The EM iterations, as in {@link Aligner#train(Corpus)}. */
+	private void train(File dir, List<Worker> workers, Dict d) throws IOException {
+		final boolean is_reverse = config.isReverse();
+		final int iterations = config.getIterations();
+		double diagonal_tension = config.getDiagonalTension();
+		double mean_srclen_multiplier = 0;
+		final Map<Aligner.Pair, Integer> size_counts = new HashMap<Aligner.Pair, Integer>();
+		for (int iter = 0; iter < iterations || (iter==0 && iterations==0); ++iter) {
+			final boolean final_iteration = (iter >= (iterations - 1));
+			sink.iterationStarted(iter, final_iteration);
+			final long estep_start = System.nanoTime();
+			command(workers, "estep " + iter + " " + diagonal_tension + " " + (final_iteration ? 1 : 0));
+			if (iter > 0 && !final_iteration) {
+				// the last table is kept for export
+				for (int p = 0; p < shards; ++p) ShardWorker.table(dir, iter - 1, p).delete();
+			}
+			int lc = 0;
+			double likelihood = 0;
+			double c0 = 0;
+			double emp_feat = 0;
+			double toks = 0;
+			double tot_len_ratio = 0;
+			final Map<Aligner.Pair, Integer> lengths = new LinkedHashMap<Aligner.Pair, Integer>();
+			for (int w = 0; w < shards; ++w) {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(
+						new FileInputStream(ShardWorker.stats(dir, w))));
+				try {
+					lc += in.readInt();
+					likelihood += in.readDouble();
+					c0 += in.readDouble();
+					emp_feat += in.readDouble();
+					toks += in.readDouble();
+					tot_len_ratio += in.readDouble();
+					final int pairs = in.readInt();
+					for (int k = 0; k < pairs; ++k) {
+						final Aligner.Pair p = new Aligner.Pair(in.readInt(), in.readInt());
+						final Integer count = lengths.get(p);
+						lengths.put(p, (count == null ? 0 : count) + in.readInt());
+					}
+				} finally {
+					in.close();
+				}
+			}
+			if (iter == 0) {
+				// (target length, source length) in model orientation
+				for (Map.Entry<Aligner.Pair, Integer> e : lengths.entrySet()) {
+					final Aligner.Pair p = e.getKey();
+					size_counts.put(is_reverse ? new Aligner.Pair(p.first, p.second) : new Aligner.Pair(p.second, p.first), e.getValue());
+				}
+				mean_srclen_multiplier = tot_len_ratio / lc;
+			}
+			emp_feat /= toks;
+			final IterationStats stats = new IterationStats(iter, final_iteration, lc, likelihood, toks,
+					c0, emp_feat, size_counts.size(), mean_srclen_multiplier);
+			final long estep_nanos = System.nanoTime() - estep_start;
+			sink.iterationFinished(stats);
+			long tension_nanos = 0;
+			long normalize_nanos = 0;
+			int rows = 0;
+			long entries = 0;
+			long bytes = 0;
+			if (!final_iteration) {
+				final long tension_start = System.nanoTime();
+				if (config.isFavorDiagonal() && config.isOptimizeTension() && iter > 0)
+					diagonal_tension = Aligner.optimizeTension(size_counts, emp_feat, toks, diagonal_tension, sink);
+				final long normalize_start = System.nanoTime();
+				tension_nanos = normalize_start - tension_start;
+				long entries_before = 0;
+				long bytes_before = 0;
+				double removed = 0;
+				for (String answer : command(workers, "reduce " + iter)) {
+					final String[] f = answer.split(" ");
+					rows += Integer.parseInt(f[1]);
+					entries += Long.parseLong(f[2]);
+					bytes += Long.parseLong(f[3]);
+					entries_before += Long.parseLong(f[4]);
+					bytes_before += Long.parseLong(f[5]);
+					removed += Double.parseDouble(f[6]);
+				}
+				if (config.isPruning() && !config.isPruneOnExportOnly())
+					sink.tablePruned(entries_before, entries, bytes_before, bytes, rows == 0 ? 0 : removed / rows);
+				normalize_nanos = System.nanoTime() - normalize_start;
+			}
+			sink.iterationCompleted(new IterationMetrics(stats, estep_nanos, tension_nanos, normalize_nanos,
+					diagonal_tension, rows, entries, bytes, d.max(), IterationMetrics.heapUsed()));
+		}
+	}
+
+	private static void copy(File file, OutputStream out) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buf = new byte[1 << 16];
+			for (int n = in.read(buf); n > 0; n = in.read(buf)) out.write(buf, 0, n);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void delete(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) f.delete();
+		}
+		dir.delete();
+	}
+}
@@ -0,0 +1,53 @@
+// Copyright 2013 by Chris Dyer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Ported to Java by Lane Schwartz
+// Modifications by John Hewitt
+//
+package edu.upenn.cis;
+
+/**
+ * Receives progress and statistics of EM training. All methods default to
+ * doing nothing.
+ */
+public interface StatisticsSink {
+
+	default void iterationStarted(int iteration, boolean finalIteration) {}
+
+	/** Called every 1000 sentences of an iteration. */
+	default void progress(int sentences) {}
+
+	/** Called once the E-step of an iteration is done. */
+	default void iterationFinished(IterationStats stats) {}
+
+	/** Called after each step of the diagonal tension optimization. */
+	default void tensionStep(int step, double modelFeature, double tension) {}
+
+	default void tensionOptimized(double tension) {}
+
+	/**
+	 * Called after the translation table has been pruned, with its size
+	 * before and after and the mean probability mass removed per source word.
+	 */
+	default void tablePruned(long entriesBefore, long entriesAfter, long bytesBefore, long bytesAfter, double removedMass) {}
+
+	/** Called at the very end of each iteration with its timings and model size. */
+	default void iterationCompleted(IterationMetrics metrics) {}
+
+	/**
+	 * Called when a phase outside the EM loop, such as "read" or "export",
+	 * is done.
+	 */
+	default void phaseFinished(String phase, long nanos) {}
+}
@@ -0,0 +1,304 @@
+// Copyright 2013 by Chris Dyer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Ported to Java by Lane Schwartz
+// Modifications by John Hewitt
+//
+package edu.upenn.cis;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Combines the forward and reverse alignments of a sentence into one, with
+ * the heuristics of Koehn et al. (2003) as implemented by cdec's atools.
+ *
+ * Links are (source index, target index) pairs in the orientation of the
+ * input bitext, as produced by both directions of the {@link Aligner}.
+ * The result is ordered by source index, then target index. A Symmetrizer
+ * reuses its buffers from one sentence to the next and is not thread-safe.
+ */
+public final class Symmetrizer {
+
+	public enum Heuristic {
+		INTERSECT("intersect"),
+		UNION("union"),
+		GROW_DIAG("grow-diag"),
+		GROW_DIAG_FINAL("grow-diag-final"),
+		GROW_DIAG_FINAL_AND("grow-diag-final-and");
+
+		private final String name;
+
+		Heuristic(String name) {
+			this.name = name;
+		}
+
+		public String toString() { return name; }
+
+		/** @throws IllegalArgumentException for an unknown name */
+		public static Heuristic forName(String name) {
+			for (Heuristic h : values()) {
+				if (h.name.equals(name)) return h;
+			}
+			throw new IllegalArgumentException("Unknown symmetrization heuristic: " + name
+					+ " (use one of " + Arrays.toString(values()) + ")");
+		}
+	}
+
+	// Grid cell bits.
+	private static final byte kForward = 1;
+	private static final byte kReverse = 2;
+	private static final byte kChosen = 4;
+
+	private static final int[] kNeighborI = {-1, 0, 1, 0, -1, -1, 1, 1};
+	private static final int[] kNeighborJ = {0, -1, 0, 1, -1, 1, -1, 1};
+
+	private final Heuristic heuristic;
+	private byte[] grid = new byte[1024];
+	private boolean[] src_aligned = new boolean[64];
+	private boolean[] trg_aligned = new boolean[64];
+	private int[] links = new int[64];
+	private int length;
+	private final StringBuilder line = new StringBuilder();
+	private int[] fwd = new int[64];
+	private int[] rev = new int[64];
+
+	public Symmetrizer(Heuristic heuristic) {
+		this.heuristic = heuristic;
+	}
+
+	public Heuristic getHeuristic() { return heuristic; }
+
+	/** Links of the last symmetrized sentence, in links()[0..length()). */
+	public int[] links() { return links; }
+
+	public int length() { return length; }
+
+	/**
+	 * Symmetrizes one sentence.
+	 * @return the number of ints written to {@link #links()}, twice the number of links
+	 */
+	public int symmetrize(int[] fwd, int fwd_len, int[] rev, int rev_len) {
+		int n_src = 0;
+		int n_trg = 0;
+		for (int k = 0; k < fwd_len; k += 2) {
+			n_src = Math.max(n_src, fwd[k] + 1);
+			n_trg = Math.max(n_trg, fwd[k + 1] + 1);
+		}
+		for (int k = 0; k < rev_len; k += 2) {
+			n_src = Math.max(n_src, rev[k] + 1);
+			n_trg = Math.max(n_trg, rev[k + 1] + 1);
+		}
+		final int cells = n_src * n_trg;
+		if (grid.length < cells) grid = new byte[Math.max(cells, grid.length * 2)];
+		if (src_aligned.length < n_src) src_aligned = new boolean[Math.max(n_src, src_aligned.length * 2)];
+		if (trg_aligned.length < n_trg) trg_aligned = new boolean[Math.max(n_trg, trg_aligned.length * 2)];
+		Arrays.fill(grid, 0, cells, (byte) 0);
+		Arrays.fill(src_aligned, 0, n_src, false);
+		Arrays.fill(trg_aligned, 0, n_trg, false);
+		for (int k = 0; k < fwd_len; k += 2) grid[fwd[k] * n_trg + fwd[k + 1]] |= kForward;
+		for (int k = 0; k < rev_len; k += 2) grid[rev[k] * n_trg + rev[k + 1]] |= kReverse;
+
+		for (int c = 0; c < cells; ++c) {
+			final int g = grid[c];
+			if (heuristic == Heuristic.UNION ? g != 0 : g == (kForward | kReverse)) choose(c / n_trg, c % n_trg, n_trg);
+		}
+		if (heuristic != Heuristic.INTERSECT && heuristic != Heuristic.UNION) {
+			grow(n_src, n_trg);
+			if (heuristic == Heuristic.GROW_DIAG_FINAL || heuristic == Heuristic.GROW_DIAG_FINAL_AND) {
+				final boolean and = heuristic == Heuristic.GROW_DIAG_FINAL_AND;
+				finish(kForward, n_src, n_trg, and);
+				finish(kReverse, n_src, n_trg, and);
+			}
+		}
+
+		length = 0;
+		for (int c = 0; c < cells; ++c) {
+			if ((grid[c] & kChosen) == 0) continue;
+			if (length + 2 > links.length) links = Arrays.copyOf(links, links.length * 2);
+			links[length++] = c / n_trg;
+			links[length++] = c % n_trg;
+		}
+		return length;
+	}
+
+	private void choose(int i, int j, int n_trg) {
+		grid[i * n_trg + j] |= kChosen;
+		src_aligned[i] = true;
+		trg_aligned[j] = true;
+	}
+
+	/** Adds union points next to chosen ones that align a so far unaligned word, until nothing changes. */
+	private void grow(int n_src, int n_trg) {
+		boolean modified;
+		do {
+			modified = false;
+			for (int i = 0; i < n_src; ++i) {
+				for (int j = 0; j < n_trg; ++j) {
+					if ((grid[i * n_trg + j] & kChosen) == 0) continue;
+					for (int d = 0; d < kNeighborI.length; ++d) {
+						final int ni = i + kNeighborI[d];
+						final int nj = j + kNeighborJ[d];
+						if (ni < 0 || ni >= n_src || nj < 0 || nj >= n_trg) continue;
+						final int g = grid[ni * n_trg + nj];
+						if (g == 0 || (g & kChosen) != 0) continue;
+						if (!src_aligned[ni] || !trg_aligned[nj]) {
+							choose(ni, nj, n_trg);
+							modified = true;
+						}
+					}
+				}
+			}
+		} while (modified);
+	}
+
+	/** Adds points of one direction that align an unaligned word (with and, two unaligned words). */
+	private void finish(byte direction, int n_src, int n_trg, boolean and) {
+		for (int i = 0; i < n_src; ++i) {
+			for (int j = 0; j < n_trg; ++j) {
+				final int g = grid[i * n_trg + j];
+				if ((g & direction) == 0 || (g & kChosen) != 0) continue;
+				if (and ? !src_aligned[i] && !trg_aligned[j] : !src_aligned[i] || !trg_aligned[j])
+					choose(i, j, n_trg);
+			}
+		}
+	}
+
+	/** Symmetrizes two "i-j i-j ..." lines into a line in the same format. */
+	public String symmetrize(String forward, String reverse) {
+		final int fwd_len = parse(forward, 0);
+		final int rev_len = parse(reverse, 1);
+		symmetrize(fwd, fwd_len, rev, rev_len);
+		line.setLength(0);
+		for (int k = 0; k < length; k += 2) {
+			if (k > 0) line.append(' ');
+			line.append(links[k]).append('-').append(links[k + 1]);
+		}
+		return line.toString();
+	}
+
+	/** Parses an alignment line into fwd (side 0) or rev (side 1); returns its length. */
+	private int parse(String s, int side) {
+		int[] buf = side == 0 ? fwd : rev;
+		int n = 0;
+		int value = -1;
+		for (int k = 0; k <= s.length(); ++k) {
+			final char c = k < s.length() ? s.charAt(k) : ' ';
+			if (c >= '0' && c <= '9') {
+				value = (value < 0 ? 0 : value * 10) + (c - '0');
+			} else if (c == '-' || c == ' ' || c == '\t') {
+				if (value < 0) {
+					if (c == '-') throw new IllegalArgumentException("Bad alignment: " + s);
+					continue;
+				}
+				if ((c == '-') != (n % 2 == 0)) throw new IllegalArgumentException("Bad alignment: " + s);
+				if (n == buf.length) buf = Arrays.copyOf(buf, buf.length * 2);
+				buf[n++] = value;
+				value = -1;
+			} else {
+				throw new IllegalArgumentException("Bad alignment: " + s);
+			}
+		}
+		if (n % 2 != 0) throw new IllegalArgumentException("Bad alignment: " + s);
+		if (side == 0) fwd = buf; else rev = buf;
+		return n;
+	}
+
+	/**
+	 * Symmetrizes two alignment files line by line, in batches that are
+	 * split across threads, writing the results in input order.
+	 * @return the number of sentences
+	 * @throws IOException if the inputs differ in length
+	 */
+	public static int symmetrize(BufferedReader forward, BufferedReader reverse, PrintStream out,
+			Heuristic heuristic, int threads) throws IOException {
+		final int batch_size = Aligner.kBatchSentences * threads;
+		final String[] fwd = new String[batch_size];
+		final String[] rev = new String[batch_size];
+		final String[] result = new String[batch_size];
+		final List<Symmetrizer> workers = new ArrayList<Symmetrizer>();
+		for (int t = 0; t < threads; ++t) workers.add(new Symmetrizer(heuristic));
+		final ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+		int lc = 0;
+		try {
+			while (true) {
+				int n = 0;
+				while (n < batch_size) {
+					final String f = forward.readLine();
+					final String r = reverse.readLine();
+					if (f == null && r == null) break;
+					if (f == null || r == null)
+						throw new IOException("Alignment files differ in length at line " + (lc + n + 1));
+					fwd[n] = f;
+					rev[n++] = r;
+				}
+				if (n == 0) break;
+				final int count = n;
+				final int base = lc;
+				if (pool == null) {
+					run(workers.get(0), fwd, rev, result, 0, count, base);
+				} else {
+					final int slice = (count + threads - 1) / threads;
+					List<Future<?>> pending = new ArrayList<Future<?>>(threads);
+					for (int t = 0; t < threads; ++t) {
+						final Symmetrizer w = workers.get(t);
+						final int lo = Math.min(count, t * slice);
+						final int hi = Math.min(count, lo + slice);
+						pending.add(pool.submit(new Runnable() {
+							public void run() {
+								Symmetrizer.run(w, fwd, rev, result, lo, hi, base);
+							}
+						}));
+					}
+					try {
+						for (Future<?> p : pending) p.get();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IOException(e);
+					} catch (ExecutionException e) {
+						if (e.getCause() instanceof IllegalArgumentException)
+							throw new IOException(e.getCause().getMessage());
+						throw new RuntimeException(e.getCause());
+					}
+				}
+				for (int k = 0; k < count; ++k) out.println(result[k]);
+				lc += count;
+			}
+		} catch (IllegalArgumentException e) {
+			throw new IOException(e.getMessage());
+		} finally {
+			if (pool != null) pool.shutdown();
+		}
+		out.flush();
+		return lc;
+	}
+
+	private static void run(Symmetrizer w, String[] fwd, String[] rev, String[] result, int lo, int hi, int base) {
+		for (int k = lo; k < hi; ++k) {
+			try {
+				result[k] = w.symmetrize(fwd[k], rev[k]);
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Line " + (base + k + 1) + ": " + e.getMessage());
+			}
+		}
+	}
+}
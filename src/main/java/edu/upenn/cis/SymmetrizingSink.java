@@ -0,0 +1,132 @@
+// Copyright 2013 by Chris Dyer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Ported to Java by Lane Schwartz
+// Modifications by John Hewitt
+//
+package edu.upenn.cis;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+
+/**
+ * Symmetrizes the alignments of a forward and a reverse model on the fly.
+ * Give {@link #forward()} and {@link #reverse()} to the two aligners of a
+ * {@link BidirectionalAligner}; every sentence is symmetrized and passed to
+ * the output sink, in input order, as soon as both directions have aligned
+ * it. The direction that is ahead blocks once it is a fixed number of
+ * sentences ahead of the other, so memory does not grow with the corpus.
+ *
+ * If the output sink fails, both sides throw InterruptedIOException from
+ * then on instead of waiting for a direction that will not come. If a
+ * direction fails elsewhere, {@link BidirectionalAligner} interrupts the
+ * other, which then throws InterruptedIOException if it is waiting here.
+ */
+public class SymmetrizingSink {
+
+	private final Symmetrizer symmetrizer;
+	private final AlignmentSink out;
+	private final int capacity;
+	private final int[][][] links = new int[2][][];
+	private final int[][] lengths = new int[2][];
+	private final long[] received = new long[2];
+	private final boolean[] flushed = new boolean[2];
+	private long emitted = 0;
+	private boolean aborted = false;
+
+	public SymmetrizingSink(Symmetrizer.Heuristic heuristic, AlignmentSink out) {
+		this(heuristic, out, 4 * Aligner.kBatchSentences);
+	}
+
+	/** @param capacity  how many sentences one direction may get ahead of the other */
+	public SymmetrizingSink(Symmetrizer.Heuristic heuristic, AlignmentSink out, int capacity) {
+		this.symmetrizer = new Symmetrizer(heuristic);
+		this.out = out;
+		this.capacity = capacity;
+		for (int side = 0; side < 2; ++side) {
+			links[side] = new int[capacity][];
+			lengths[side] = new int[capacity];
+			for (int k = 0; k < capacity; ++k) links[side][k] = new int[32];
+		}
+	}
+
+	/** Sink for the forward model's alignments. */
+	public AlignmentSink forward() { return side(0); }
+
+	/** Sink for the reverse model's alignments. */
+	public AlignmentSink reverse() { return side(1); }
+
+	private AlignmentSink side(final int side) {
+		return new AlignmentSink() {
+			public void alignment(int[] l, int length) throws IOException {
+				add(side, l, length);
+			}
+
+			public void flush() throws IOException {
+				end(side);
+			}
+		};
+	}
+
+	private void checkAborted() throws IOException {
+		if (aborted) throw new InterruptedIOException("Symmetrization was aborted after an output error");
+	}
+
+	private synchronized void add(int side, int[] l, int length) throws IOException {
+		checkAborted();
+		while (received[side] - emitted >= capacity) {
+			checkAborted();
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+		final int slot = (int) (received[side] % capacity);
+		if (links[side][slot].length < length) links[side][slot] = Arrays.copyOf(l, Math.max(length, 2 * links[side][slot].length));
+		System.arraycopy(l, 0, links[side][slot], 0, length);
+		lengths[side][slot] = length;
+		++received[side];
+		final long ready = Math.min(received[0], received[1]);
+		if (emitted == ready) return;
+		try {
+			while (emitted < ready) {
+				final int s = (int) (emitted % capacity);
+				symmetrizer.symmetrize(links[0][s], lengths[0][s], links[1][s], lengths[1][s]);
+				out.alignment(symmetrizer.links(), symmetrizer.length());
+				++emitted;
+			}
+		} catch (IOException e) {
+			aborted = true;
+			throw e;
+		} catch (RuntimeException e) {
+			aborted = true;
+			throw e;
+		} finally {
+			notifyAll();
+		}
+	}
+
+	private synchronized void end(int side) throws IOException {
+		checkAborted();
+		flushed[side] = true;
+		if (!flushed[0] || !flushed[1]) return;
+		flushed[0] = flushed[1] = false;
+		if (received[0] != received[1])
+			throw new IOException("Forward and reverse passes differ in length: " + received[0] + " vs " + received[1]);
+		out.flush();
+	}
+}
@@ -22,10 +22,14 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TTable {
 
@@ -42,100 +46,387 @@ public class TTable {
 			return result;
 		}		
 	}
+	/**
+	 * {@link Md#digamma} with a direct-mapped cache keyed by the exact bits
+	 * of the argument, so repeated counts (many in early iterations) are
+	 * computed once. Not thread-safe.
+	 */
+	private static final class DigammaCache {
+		private static final int kBits = 12;
+		private final long[] keys = new long[1 << kBits];
+		private final double[] values = new double[1 << kBits];
+
+		DigammaCache() {
+			// -1L is a NaN, and NaN is also what digamma returns for it
+			Arrays.fill(keys, -1L);
+			Arrays.fill(values, Double.NaN);
+		}
+
+		double digamma(double x) {
+			final long bits = Double.doubleToRawLongBits(x);
+			final int slot = ((int) (bits ^ (bits >>> 32)) * 0x9E3779B9) >>> (32 - kBits);
+			if (keys[slot] == bits) return values[slot];
+			final double d = Md.digamma(x);
+			keys[slot] = bits;
+			values[slot] = d;
+			return d;
+		}
+	}
+	// Source rows claimed at a time by each task of a parallel normalization.
+	static final int kNormalizeRows = 256;
 	public TTable() {}
+	/**
+	 * Stores probabilities as floats, in two thirds of the memory. Counts
+	 * are still accumulated and normalized in double; only the normalized
+	 * table and the tables it exports are rounded.
+	 */
+	public void setSinglePrecision(boolean single_precision) {
+		this.single_precision = single_precision;
+		compact();
+	}
+	public boolean isSinglePrecision() { return single_precision; }
 	double prob(final int e, final int f) {
-		Map<Integer,Double> cpd = ttable.get(e);
-		if (cpd != null) {
-			Double value = cpd.get(f);
-			if (value == null) return 1e-9;
-			return value;
-		} else {
-			return 1e-9;
-		}
+		if (mapped != null) return mapped.prob(e, f);
+		if (partitions != null) return partitions[e % partitions.length].prob(e, f);
+		if (e >= ttable.length) return 1e-9;
+		final IntDoubleMap cpd = ttable[e];
+		if (cpd == null) return 1e-9;
+		return cpd.get(f, 1e-9);
 	}
 	public void Increment(final int e, final int f) {
 		Increment(e,f,1);
 	}
 	public void Increment(final int e, final int f, double x) {
-		Map<Integer,Double> map = counts.get(e);
-		if (map==null) {
-			map = new HashMap<Integer,Double>();
-			counts.put(e, map);
+		row(e).add(f, x);
+	}
+	/** Returns the count row for e, creating it (and growing the row array) if necessary. */
+	private IntDoubleMap row(final int e) {
+		if (e >= counts.length) {
+			counts = Arrays.copyOf(counts, Math.max(e + 1, counts.length * 2));
+		}
+		IntDoubleMap map = counts[e];
+		if (map == null) {
+			map = new IntDoubleMap();
+			counts[e] = map;
 		}
-		Double value = map.get(f);
-		if (value==null) value = 0.0;
-		value += x;
-		map.put(f, value);
+		return map;
 	}
-	public void NormalizeVB(final double alpha) {
-		Map<Integer,Map<Integer,Double>> tmp = ttable;
+	/**
+	 * Makes the accumulated counts the new probability table. The old
+	 * probability rows are cleared and recycled as count rows, so the next
+	 * E-step does not have to regrow them. With single precision they are
+	 * cleared by normalize(), which trades each one's float array for the
+	 * double array of the new row it compacts.
+	 */
+	private void swap() {
+		mapped = null;
+		partitions = null;
+		IntDoubleMap[] tmp = ttable;
 		ttable = counts;
 		counts = tmp;
-		for (Iterator<Map.Entry<Integer,Map<Integer,Double>>> ttableIt = ttable.entrySet().iterator();
-				ttableIt.hasNext(); ) {
-			Map.Entry<Integer,Map<Integer,Double>> cit = ttableIt.next();
+		if (!single_precision) clearCounts();
+	}
+	public void NormalizeVB(final double alpha) {
+		NormalizeVB(alpha, null, 1);
+	}
+	void Normalize() {
+		Normalize(null, 1);
+	}
+	/**
+	 * Like {@link #NormalizeVB(double)}, but split over up to threads tasks
+	 * of pool (serial if pool is null). Rows are independent and each is
+	 * still summed in slot order, so the result is the same bit for bit.
+	 */
+	void NormalizeVB(final double alpha, ExecutorService pool, int threads) {
+		swap();
+		normalize(true, alpha, pool, threads);
+	}
+	/** Like {@link #Normalize()}, in parallel as {@link #NormalizeVB(double, ExecutorService, int)}. */
+	void Normalize(ExecutorService pool, int threads) {
+		swap();
+		normalize(false, 0, pool, threads);
+	}
+	private void normalize(final boolean vb, final double alpha, ExecutorService pool, int threads) {
+		final int rows = ttable.length;
+		if (pool == null || threads <= 1 || rows <= kNormalizeRows) {
+			normalizeRows(0, rows, vb, alpha, vb ? new DigammaCache() : null);
+		} else {
+			normalizeParallel(vb, alpha, pool, threads);
+		}
+		// count rows without a new probability row are still to be cleared
+		if (single_precision) clearCounts();
+	}
+	private void normalizeParallel(final boolean vb, final double alpha, ExecutorService pool, int threads) {
+		final int rows = ttable.length;
+		// tasks claim blocks of rows as they go, since row sizes are very uneven
+		final AtomicInteger next = new AtomicInteger();
+		List<Future<?>> pending = new ArrayList<Future<?>>(threads);
+		for (int t = 0; t < threads; ++t) {
+			pending.add(pool.submit(new Runnable() {
+				public void run() {
+					final DigammaCache digamma = vb ? new DigammaCache() : null;
+					for (int from = next.getAndAdd(kNormalizeRows); from < rows; from = next.getAndAdd(kNormalizeRows))
+						normalizeRows(from, Math.min(rows, from + kNormalizeRows), vb, alpha, digamma);
+				}
+			}));
+		}
+		try {
+			for (Future<?> f : pending) f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+	private void normalizeRows(int from, int to, boolean vb, double alpha, DigammaCache digamma) {
+		for (int e = from; e < to; ++e) {
+			final IntDoubleMap cpd = ttable[e];
+			if (cpd == null) continue;
 			double tot = 0;
-			Map<Integer,Double> cpd = cit.getValue();
-			for (Iterator<Map.Entry<Integer, Double>> cpdIt = cpd.entrySet().iterator(); cpdIt.hasNext(); ) {
-				Map.Entry<Integer, Double> it = cpdIt.next();
-				tot += it.getValue() + alpha;
+			for (int s = 0; s < cpd.capacity(); ++s) {
+				if (cpd.keyAt(s) != IntDoubleMap.EMPTY) tot += vb ? cpd.valueAt(s) + alpha : cpd.valueAt(s);
 			}
-			for (Iterator<Map.Entry<Integer, Double>> cpdIt = cpd.entrySet().iterator(); cpdIt.hasNext(); ) {
-				Map.Entry<Integer, Double> it = cpdIt.next();	
-				it.setValue(Math.exp(Md.digamma(it.getValue() + alpha) - Md.digamma(tot)));
+			if (vb) {
+				final double digamma_tot = Md.digamma(tot);
+				for (int s = 0; s < cpd.capacity(); ++s) {
+					if (cpd.keyAt(s) != IntDoubleMap.EMPTY)
+						cpd.setValueAt(s, Math.exp(digamma.digamma(cpd.valueAt(s) + alpha) - digamma_tot));
+				}
+			} else {
+				for (int s = 0; s < cpd.capacity(); ++s) {
+					if (cpd.keyAt(s) != IntDoubleMap.EMPTY) cpd.setValueAt(s, cpd.valueAt(s) / tot);
+				}
+			}
+			if (single_precision) {
+				if (e < counts.length && counts[e] != null)
+					cpd.compactClearing(counts[e]);
+				else
+					cpd.compact();
 			}
-
 		}
-		counts.clear();
 	}
-	void Normalize() {
-		Map<Integer,Map<Integer,Double>> tmp = ttable;
-		ttable = counts;
-		counts = tmp;
-		for (Iterator<Map.Entry<Integer,Map<Integer,Double>>> ttableIt = ttable.entrySet().iterator();
-				ttableIt.hasNext(); ) {
-			Map.Entry<Integer,Map<Integer,Double>> cit = ttableIt.next();
+	/**
+	 * Stepwise EM update (Liang and Klein, 2009) of the running statistics:
+	 * stats = (1 - eta) * stats + eta * counts. The counts are then replaced
+	 * by a copy of the statistics, so that Normalize or NormalizeVB makes
+	 * them the new probability table. With eta = 0 this only restores the
+	 * counts from the statistics.
+	 */
+	void interpolate(final double eta) {
+		if (eta != 0) {
+			for (int e = 0; e < stats.length; ++e) {
+				final IntDoubleMap st = stats[e];
+				if (st == null) continue;
+				for (int s = 0; s < st.capacity(); ++s) {
+					if (st.keyAt(s) != IntDoubleMap.EMPTY) st.setValueAt(s, st.valueAt(s) * (1 - eta));
+				}
+			}
+			if (stats.length < counts.length) stats = Arrays.copyOf(stats, counts.length);
+			for (int e = 0; e < counts.length; ++e) {
+				final IntDoubleMap cpd = counts[e];
+				if (cpd == null || cpd.size() == 0) continue;
+				if (stats[e] == null) stats[e] = new IntDoubleMap(cpd.size());
+				final IntDoubleMap st = stats[e];
+				for (int s = 0; s < cpd.capacity(); ++s) {
+					if (cpd.keyAt(s) != IntDoubleMap.EMPTY) st.add(cpd.keyAt(s), eta * cpd.valueAt(s));
+				}
+			}
+		}
+		clearCounts();
+		for (int e = 0; e < stats.length; ++e) {
+			final IntDoubleMap st = stats[e];
+			if (st == null || st.size() == 0) continue;
+			final IntDoubleMap tgt = row(e);
+			for (int s = 0; s < st.capacity(); ++s) {
+				if (st.keyAt(s) != IntDoubleMap.EMPTY) tgt.put(st.keyAt(s), st.valueAt(s));
+			}
+		}
+	}
+	/**
+	 * Removes small entries from the probability table; lookups of removed
+	 * pairs fall back to the 1e-9 floor. Each row keeps the entries of at
+	 * least the threshold, among its top_k (0 for no limit), and among the
+	 * most probable entries that make up the given share of the row's mass.
+	 * Ties with the last kept value are kept. Pruned rows are reallocated at
+	 * their new size so the memory is released.
+	 * @return the total probability removed
+	 */
+	double prune(final double threshold, final int top_k, final double mass) {
+		thaw();
+		double removed = 0;
+		double[] sorted = new double[0];
+		for (int e = 0; e < ttable.length; ++e) {
+			final IntDoubleMap cpd = ttable[e];
+			if (cpd == null || cpd.size() == 0) continue;
+			final int n = cpd.size();
+			if (sorted.length < n) sorted = new double[Math.max(n, sorted.length * 2)];
 			double tot = 0;
-			Map<Integer,Double> cpd = cit.getValue();
-			for (Iterator<Map.Entry<Integer, Double>> cpdIt = cpd.entrySet().iterator(); cpdIt.hasNext(); ) {
-				Map.Entry<Integer, Double> it = cpdIt.next();
-				tot += it.getValue();
+			int k = 0;
+			for (int s = 0; s < cpd.capacity(); ++s) {
+				if (cpd.keyAt(s) != IntDoubleMap.EMPTY) {
+					sorted[k++] = cpd.valueAt(s);
+					tot += cpd.valueAt(s);
+				}
+			}
+			Arrays.sort(sorted, 0, n);
+			double cutoff = threshold;
+			if (top_k > 0 && top_k < n) cutoff = Math.max(cutoff, sorted[n - top_k]);
+			if (mass < 1) {
+				double cum = 0;
+				for (int i = n - 1; i >= 0; --i) {
+					cum += sorted[i];
+					if (cum >= mass * tot) {
+						cutoff = Math.max(cutoff, sorted[i]);
+						break;
+					}
+				}
+			}
+			if (sorted[0] >= cutoff) continue;
+			int kept = 0;
+			for (int i = 0; i < n; ++i) {
+				if (sorted[i] >= cutoff) ++kept;
+			}
+			final IntDoubleMap row = new IntDoubleMap(kept);
+			for (int s = 0; s < cpd.capacity(); ++s) {
+				if (cpd.keyAt(s) == IntDoubleMap.EMPTY) continue;
+				if (cpd.valueAt(s) >= cutoff)
+					row.put(cpd.keyAt(s), cpd.valueAt(s));
+				else
+					removed += cpd.valueAt(s);
 			}
-			for (Iterator<Map.Entry<Integer, Double>> cpdIt = cpd.entrySet().iterator(); cpdIt.hasNext(); ) {
-				Map.Entry<Integer, Double> it = cpdIt.next();	
-				it.setValue(it.getValue() / tot);
-			}			
+			if (single_precision) row.compact();
+			ttable[e] = row;
+		}
+		return removed;
+	}
+	/** discards accumulated counts, keeping row capacity for reuse */
+	public void clearCounts() {
+		for (int e = 0; e < counts.length; ++e) {
+			if (counts[e] != null) counts[e].clear();
 		}
-		counts.clear();
 	}
 	/** adds counts from another TTable - probabilities remain unchanged */
 	public TTable add(final TTable rhs) {
-		for (Iterator<Map.Entry<Integer,Map<Integer,Double>>> rhsCountsIt = rhs.counts.entrySet().iterator();
-				rhsCountsIt.hasNext(); ) {
-			Map.Entry<Integer,Map<Integer,Double>> it = rhsCountsIt.next();
-			final Map<Integer,Double> cpd = it.getValue();
-			Map<Integer,Double> tgt = counts.get(it.getKey());
-			for (Iterator<Map.Entry<Integer, Double>> jIt = cpd.entrySet().iterator(); jIt.hasNext(); ) {
-				Map.Entry<Integer, Double> j = jIt.next();
-				tgt.put(j.getKey(), tgt.get(j.getKey()) + j.getValue());
+		for (int e = 0; e < rhs.counts.length; ++e) {
+			final IntDoubleMap cpd = rhs.counts[e];
+			if (cpd == null || cpd.size() == 0) continue;
+			final IntDoubleMap tgt = row(e);
+			for (int s = 0; s < cpd.capacity(); ++s) {
+				if (cpd.keyAt(s) != IntDoubleMap.EMPTY) tgt.add(cpd.keyAt(s), cpd.valueAt(s));
 			}
 		}
 		return this;
 	}
+	/**
+	 * Copies a memory-mapped table (see {@link #ImportFromFile}) onto the
+	 * heap so that it can be modified or exported.
+	 */
+	private void thaw() {
+		if (partitions != null) {
+			ttable = new IntDoubleMap[0];
+			for (MappedTable part : partitions) {
+				final IntDoubleMap[] rows = part.thaw();
+				if (rows.length > ttable.length) ttable = Arrays.copyOf(ttable, rows.length);
+				for (int e = 0; e < rows.length; ++e) {
+					if (rows[e] != null) ttable[e] = rows[e];
+				}
+			}
+			partitions = null;
+		}
+		if (mapped != null) {
+			ttable = mapped.thaw();
+			mapped = null;
+		}
+		compact();
+	}
+	private void compact() {
+		if (!single_precision) return;
+		for (int e = 0; e < ttable.length; ++e) {
+			if (ttable[e] != null) ttable[e].compact();
+		}
+	}
+	/**
+	 * Replaces the whole table: probability rows, empty count rows of the
+	 * given capacities (0 for none) and stepwise statistics.
+	 */
+	void restore(IntDoubleMap[] table, int[] count_capacities, IntDoubleMap[] stats) {
+		mapped = null;
+		partitions = null;
+		ttable = table;
+		compact();
+		counts = new IntDoubleMap[count_capacities.length];
+		for (int e = 0; e < counts.length; ++e) {
+			if (count_capacities[e] > 0) counts[e] = IntDoubleMap.withCapacity(count_capacities[e]);
+		}
+		this.stats = stats;
+	}
+	/**
+	 * Uses binary tables written without a vocabulary, with ids of the
+	 * caller's dictionary, as the probability table: row e is looked up in
+	 * files[e % files.length]. A sharded run keeps its table this way.
+	 */
+	void mapPartitions(File[] files) throws IOException {
+		MappedTable[] parts = new MappedTable[files.length];
+		for (int p = 0; p < files.length; ++p) parts[p] = MappedTable.map(files[p], new Dict());
+		mapped = null;
+		ttable = new IntDoubleMap[0];
+		partitions = parts;
+	}
+	/** Number of source words with a probability row. */
+	public int rows() {
+		if (mapped != null) return mapped.rows();
+		int n = 0;
+		if (partitions != null) {
+			for (MappedTable part : partitions) n += part.rows();
+		}
+		for (int e = 0; e < ttable.length; ++e) {
+			if (ttable[e] != null && ttable[e].size() > 0) ++n;
+		}
+		return n;
+	}
+	/** Number of (e,f) entries in the probability table. */
+	public long size() {
+		if (mapped != null) return mapped.size();
+		long n = 0;
+		if (partitions != null) {
+			for (MappedTable part : partitions) n += part.size();
+		}
+		for (int e = 0; e < ttable.length; ++e) {
+			if (ttable[e] != null) n += ttable[e].size();
+		}
+		return n;
+	}
+	/** Approximate heap footprint of the probability, count and stepwise statistics tables, in bytes. */
+	public long bytes() {
+		long n = 16L + 4L * (ttable.length + counts.length + stats.length);
+		for (int e = 0; e < stats.length; ++e) {
+			if (stats[e] != null) n += stats[e].bytes();
+		}
+		for (int e = 0; e < ttable.length; ++e) {
+			if (ttable[e] != null) n += ttable[e].bytes();
+		}
+		for (int e = 0; e < counts.length; ++e) {
+			if (counts[e] != null) n += counts[e].bytes();
+		}
+		return n;
+	}
 	public void ExportToFile(final String filename, Dict d) {
+		thaw();
 		PrintStream file = null;
 		try {
 			file = new PrintStream(new FileOutputStream(filename), true, "UTF-8");
-			for (Iterator<Map.Entry<Integer,Map<Integer,Double>>> ttableIt = ttable.entrySet().iterator();
-					ttableIt.hasNext(); ) {
-				Map.Entry<Integer,Map<Integer,Double>> cit = ttableIt.next();
-				final String a = d.Convert(cit.getKey());
-				Map<Integer,Double> cpd = cit.getValue();
-				for (Iterator<Map.Entry<Integer, Double>> cpdIt = cpd.entrySet().iterator(); cpdIt.hasNext(); ) {
-					Map.Entry<Integer, Double> it = cpdIt.next();
-					final String b = d.Convert(it.getKey());
-					Double c = it.getValue();
-					file.println(a + '\t' + b + '\t' + c);
+			for (int e = 0; e < ttable.length; ++e) {
+				final IntDoubleMap cpd = ttable[e];
+				if (cpd == null || cpd.size() == 0) continue;
+				final String a = d.Convert(e);
+				for (int s = 0; s < cpd.capacity(); ++s) {
+					if (cpd.keyAt(s) == IntDoubleMap.EMPTY) continue;
+					final String b = d.Convert(cpd.keyAt(s));
+					if (single_precision)
+						file.println(a + '\t' + b + '\t' + IntDoubleMap.toFloat(cpd.valueAt(s)));
+					else
+						file.println(a + '\t' + b + '\t' + cpd.valueAt(s));
 				}
 			}
 		} catch (IOException e) {
@@ -146,7 +437,57 @@ public class TTable {
 			} catch (Exception ex) {}
 		}
 	}
+	/**
+	 * Writes the probability table in the binary format read by
+	 * {@link #ImportFromFile}, which maps it instead of parsing it.
+	 */
+	public void ExportToBinaryFile(final String filename, Dict d) throws IOException {
+		ExportToBinaryFile(filename, d, null);
+	}
+	/**
+	 * Writes the probability table in binary format together with the model
+	 * parameters needed to decode with it (see {@link ModelParams#read}).
+	 * A single-precision table is written with float values.
+	 */
+	public void ExportToBinaryFile(final String filename, Dict d, ModelParams params) throws IOException {
+		thaw();
+		MappedTable.write(new File(filename), ttable, d, params, 0, single_precision);
+	}
+	/**
+	 * Writes the running statistics of stepwise EM in binary format, with the
+	 * model parameters and the number of updates behind them.
+	 */
+	void ExportStatistics(final String filename, Dict d, ModelParams params, int steps) throws IOException {
+		MappedTable.write(new File(filename), stats, d, params, steps, false);
+	}
+	/**
+	 * Reads statistics written by {@link #ExportStatistics}.
+	 * @return the number of stepwise EM updates behind them
+	 */
+	int ImportStatistics(final String filename, Dict d) throws IOException {
+		final File file = new File(filename);
+		stats = MappedTable.map(file, d).thaw();
+		return MappedTable.readSteps(file);
+	}
+	/**
+	 * Reads a probability table written by {@link #ExportToFile} or
+	 * {@link #ExportToBinaryFile}. A binary table is memory-mapped and used
+	 * read-only for lookups until the next Normalize replaces it.
+	 */
 	boolean ImportFromFile(String filename, char delim, Dict d) {
+		final File binary = new File(filename);
+		if (MappedTable.isMapped(binary)) {
+			try {
+				mapped = MappedTable.map(binary, d);
+				partitions = null;
+				ttable = new IntDoubleMap[0];
+				return true;
+			} catch (IOException e) {
+				e.printStackTrace();
+				return false;
+			}
+		}
+		thaw();
 		Scanner in = null;
 		try {
 			in = new Scanner(new File(filename));
@@ -170,10 +511,13 @@ public class TTable {
 						int source = d.Convert(sourceWord);
 						int target = d.Convert(targetWord);
 						double value = Double.valueOf(valueString);
-						Map<Integer,Double> map = ttable.get(source);
+						if (source >= ttable.length) {
+							ttable = Arrays.copyOf(ttable, Math.max(source + 1, ttable.length * 2));
+						}
+						IntDoubleMap map = ttable[source];
 						if (map==null) {
-							map = new HashMap<Integer,Double>();
-							ttable.put(source, map);
+							map = new IntDoubleMap();
+							ttable[source] = map;
 						}
 						map.put(target, value);
 					} else {
@@ -181,6 +525,7 @@ public class TTable {
 					}
 				}
 			}
+			compact();
 			return true;
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
@@ -191,6 +536,15 @@ public class TTable {
 			} catch (Exception e) {}
 		}
 	}
-	public Map<Integer,Map<Integer,Double>> ttable = new HashMap<Integer,Map<Integer,Double>>();
-	public Map<Integer,Map<Integer,Double>> counts = new HashMap<Integer,Map<Integer,Double>>();	
+	// Rows are indexed by source word id; each row maps target word id to a value.
+	IntDoubleMap[] ttable = new IntDoubleMap[0];
+	IntDoubleMap[] counts = new IntDoubleMap[0];
+	// Running expected counts of stepwise EM; empty in batch EM.
+	IntDoubleMap[] stats = new IntDoubleMap[0];
+	// Probability rows are compacted to float values.
+	private boolean single_precision;
+	// Read-only table loaded from a binary file; takes precedence over ttable when set.
+	private MappedTable mapped;
+	// Read-only tables of a sharded run, by source id modulo their number.
+	private MappedTable[] partitions;
 }
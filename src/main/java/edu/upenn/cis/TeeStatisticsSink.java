@@ -0,0 +1,64 @@
+// Copyright 2013 by Chris Dyer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Ported to Java by Lane Schwartz
+// Modifications by John Hewitt
+//
+package edu.upenn.cis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Forwards every event to several sinks, in the order given. */
+public class TeeStatisticsSink implements StatisticsSink {
+
+	private final List<StatisticsSink> sinks;
+
+	public TeeStatisticsSink(StatisticsSink... sinks) {
+		this.sinks = new ArrayList<StatisticsSink>(Arrays.asList(sinks));
+	}
+
+	public void iterationStarted(int iteration, boolean finalIteration) {
+		for (StatisticsSink s : sinks) s.iterationStarted(iteration, finalIteration);
+	}
+
+	public void progress(int sentences) {
+		for (StatisticsSink s : sinks) s.progress(sentences);
+	}
+
+	public void iterationFinished(IterationStats stats) {
+		for (StatisticsSink s : sinks) s.iterationFinished(stats);
+	}
+
+	public void tensionStep(int step, double modelFeature, double tension) {
+		for (StatisticsSink s : sinks) s.tensionStep(step, modelFeature, tension);
+	}
+
+	public void tensionOptimized(double tension) {
+		for (StatisticsSink s : sinks) s.tensionOptimized(tension);
+	}
+
+	public void tablePruned(long entriesBefore, long entriesAfter, long bytesBefore, long bytesAfter, double removedMass) {
+		for (StatisticsSink s : sinks) s.tablePruned(entriesBefore, entriesAfter, bytesBefore, bytesAfter, removedMass);
+	}
+
+	public void iterationCompleted(IterationMetrics metrics) {
+		for (StatisticsSink s : sinks) s.iterationCompleted(metrics);
+	}
+
+	public void phaseFinished(String phase, long nanos) {
+		for (StatisticsSink s : sinks) s.phaseFinished(phase, nanos);
+	}
+}
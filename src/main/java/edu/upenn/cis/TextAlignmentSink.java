@@ -0,0 +1,44 @@
+// Copyright 2013 by Chris Dyer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Ported to Java by Lane Schwartz
+// Modifications by John Hewitt
+//
+package edu.upenn.cis;
+
+import java.io.PrintStream;
+
+/** Prints alignments in the usual "i-j i-j ..." text format, one line per sentence. */
+public class TextAlignmentSink implements AlignmentSink {
+
+	private final PrintStream out;
+	private final StringBuilder line = new StringBuilder();
+
+	public TextAlignmentSink(PrintStream out) {
+		this.out = out;
+	}
+
+	public void alignment(int[] links, int length) {
+		line.setLength(0);
+		for (int k = 0; k < length; k += 2) {
+			if (k > 0) line.append(' ');
+			line.append(links[k]).append('-').append(links[k + 1]);
+		}
+		out.println(line);
+	}
+
+	public void flush() {
+		out.flush();
+	}
+}
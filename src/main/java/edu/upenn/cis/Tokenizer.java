@@ -0,0 +1,81 @@
+// Copyright 2013 by Chris Dyer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Ported to Java by Lane Schwartz
+// Modifications by John Hewitt
+//
+package edu.upenn.cis;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Splits "source ||| target" lines into word ids, working directly on
+ * UTF-8 bytes. Tokens are runs of bytes other than space and tab; the
+ * first "|||" token separates the two sides and is recognized by its
+ * bytes. Every other token is looked up in the dictionary by its bytes,
+ * so words seen before cost no allocation. The ids of the last line are
+ * left in src[0..src_len) and trg[0..trg_len), which are reused.
+ */
+final class Tokenizer {
+
+	private final Dict d;
+	private final boolean frozen;
+	int[] src = new int[64];
+	int src_len;
+	int[] trg = new int[64];
+	int trg_len;
+
+	/** @param frozen  map unknown words to 0 instead of adding them to d */
+	Tokenizer(Dict d, boolean frozen) {
+		this.d = d;
+		this.frozen = frozen;
+		// The separator has always had a dictionary id, taken before any
+		// token; keep it so that word ids do not change.
+		d.Convert("|||", frozen);
+	}
+
+	/** Tokenizes the line buf[from, to). */
+	void parse(final byte[] buf, final int from, final int to) {
+		src_len = 0;
+		trg_len = 0;
+		boolean target = false;
+		int k = from;
+		while (k < to) {
+			if (buf[k] == ' ' || buf[k] == '\t') {
+				++k;
+				continue;
+			}
+			final int start = k;
+			while (k < to && buf[k] != ' ' && buf[k] != '\t') ++k;
+			if (!target && k - start == 3 && buf[start] == '|' && buf[start + 1] == '|' && buf[start + 2] == '|') {
+				target = true;
+				continue;
+			}
+			final int id = d.Convert(buf, start, k, frozen);
+			if (target) {
+				if (trg_len == trg.length) trg = Arrays.copyOf(trg, trg.length * 2);
+				trg[trg_len++] = id;
+			} else {
+				if (src_len == src.length) src = Arrays.copyOf(src, src.length * 2);
+				src[src_len++] = id;
+			}
+		}
+	}
+
+	void parse(String line) {
+		final byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+		parse(bytes, 0, bytes.length);
+	}
+}
@@ -0,0 +1,289 @@
+package edu.upenn.cis;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+public class AlignerTest {
+
+	/** Target word k translates source word k, in the same order, plus some noise words. */
+	static List<SentencePair> corpus(Dict d, int sentences) {
+		Random rnd = new Random(42);
+		List<SentencePair> pairs = new ArrayList<SentencePair>();
+		for (int s = 0; s < sentences; ++s) {
+			int n = 3 + rnd.nextInt(8);
+			int[] src = new int[n];
+			int[] trg = new int[n];
+			for (int k = 0; k < n; ++k) {
+				int w = rnd.nextInt(40);
+				src[k] = d.Convert("s" + w);
+				trg[k] = d.Convert("t" + w);
+			}
+			pairs.add(new SentencePair(src, trg));
+		}
+		return pairs;
+	}
+
+	static class Collect implements AlignmentSink {
+		final List<int[]> links = new ArrayList<int[]>();
+		public void alignment(int[] l, int length) {
+			links.add(Arrays.copyOf(l, length));
+		}
+	}
+
+	static class CollectPosteriors implements PosteriorSink {
+		final List<int[]> links = new ArrayList<int[]>();
+		final List<double[]> posteriors = new ArrayList<double[]>();
+		public void posteriors(int[] l, double[] p, int length) {
+			links.add(Arrays.copyOf(l, length));
+			posteriors.add(Arrays.copyOf(p, length / 2));
+		}
+	}
+
+	static class Stats implements StatisticsSink {
+		final List<IterationStats> iterations = new ArrayList<IterationStats>();
+		public void iterationFinished(IterationStats stats) {
+			iterations.add(stats);
+		}
+	}
+
+	@Test
+	public void testTrainFindsDiagonal() {
+		Aligner aligner = new Aligner(new AlignerConfig().setFavorDiagonal(true).setOptimizeTension(true));
+		List<SentencePair> pairs = corpus(aligner.dict(), 500);
+		Collect sink = new Collect();
+		aligner.setAlignmentSink(sink);
+		aligner.train(pairs);
+		assertEquals(500, sink.links.size());
+		int links = 0;
+		int diagonal = 0;
+		for (int[] l : sink.links) {
+			for (int k = 0; k < l.length; k += 2) {
+				++links;
+				if (l[k] == l[k + 1]) ++diagonal;
+			}
+		}
+		assertTrue(diagonal > 0.95 * links);
+		// aligning a single pair agrees with the final iteration
+		SentencePair p = pairs.get(7);
+		assertArrayEquals(sink.links.get(7), aligner.align(p.getSource(), p.getTarget()));
+	}
+
+	@Test
+	public void testReverseLinksUseInputOrientation() {
+		Aligner aligner = new Aligner(new AlignerConfig().setReverse(true).setFavorDiagonal(true));
+		List<SentencePair> pairs = corpus(aligner.dict(), 300);
+		aligner.train(pairs);
+		int[] src = {aligner.dict().Convert("s1"), aligner.dict().Convert("s2")};
+		int[] trg = {aligner.dict().Convert("t2")};
+		assertArrayEquals(new int[] {1, 0}, aligner.align(src, trg));
+	}
+
+	@Test
+	public void testPosteriorsIncludeViterbiLinks() {
+		Aligner aligner = new Aligner(new AlignerConfig().setFavorDiagonal(true).setPosteriorThreshold(0));
+		List<SentencePair> pairs = corpus(aligner.dict(), 300);
+		Collect sink = new Collect();
+		CollectPosteriors posteriors = new CollectPosteriors();
+		aligner.setAlignmentSink(sink);
+		aligner.setPosteriorSink(posteriors);
+		aligner.train(pairs);
+		assertEquals(300, posteriors.links.size());
+		for (int s = 0; s < 300; ++s) {
+			final int[] soft = posteriors.links.get(s);
+			final double[] p = posteriors.posteriors.get(s);
+			final int n = pairs.get(s).getSource().length;
+			// every link of every target word, whose posteriors leave the rest to the null word
+			assertEquals(2 * n * pairs.get(s).getTarget().length, soft.length);
+			double[] mass = new double[pairs.get(s).getTarget().length];
+			for (int k = 0; k < soft.length; k += 2) mass[soft[k + 1]] += p[k / 2];
+			for (double m : mass) assertTrue(m > 0 && m <= 1 + 1e-9);
+			final int[] viterbi = sink.links.get(s);
+			for (int k = 0; k < viterbi.length; k += 2) {
+				double best = 0;
+				double link = -1;
+				for (int q = 0; q < soft.length; q += 2) {
+					if (soft[q + 1] != viterbi[k + 1]) continue;
+					best = Math.max(best, p[q / 2]);
+					if (soft[q] == viterbi[k]) link = p[q / 2];
+				}
+				assertEquals(best, link, 0);
+			}
+		}
+	}
+
+	@Test
+	public void testTopPosteriorIsViterbiLink() {
+		Aligner aligner = new Aligner(new AlignerConfig().setReverse(true).setFavorDiagonal(true).setNoNullWord(true)
+				.setPosteriorThreshold(0).setPosteriorTopK(1));
+		List<SentencePair> pairs = corpus(aligner.dict(), 300);
+		Collect sink = new Collect();
+		CollectPosteriors posteriors = new CollectPosteriors();
+		aligner.setAlignmentSink(sink);
+		aligner.setPosteriorSink(posteriors);
+		aligner.train(pairs);
+		for (int s = 0; s < 300; ++s)
+			assertArrayEquals(sink.links.get(s), posteriors.links.get(s));
+	}
+
+	@Test
+	public void testThreadsMatchSerialStatistics() {
+		Stats serial = new Stats();
+		Stats parallel = new Stats();
+		Aligner a = new Aligner(new AlignerConfig().setFavorDiagonal(true).setVariationalBayes(true));
+		a.setStatisticsSink(serial);
+		a.train(corpus(a.dict(), 3000));
+		Aligner b = new Aligner(new AlignerConfig().setFavorDiagonal(true).setVariationalBayes(true).setThreads(3));
+		b.setStatisticsSink(parallel);
+		b.train(corpus(b.dict(), 3000));
+		assertEquals(serial.iterations.size(), parallel.iterations.size());
+		for (int k = 0; k < serial.iterations.size(); ++k) {
+			IterationStats x = serial.iterations.get(k);
+			IterationStats y = parallel.iterations.get(k);
+			assertEquals(x.getLikelihood(), y.getLikelihood(), 1e-9 * Math.abs(x.getLikelihood()));
+			assertEquals(x.getPosteriorNull(), y.getPosteriorNull(), 1e-12);
+			assertEquals(x.getPosteriorFeature(), y.getPosteriorFeature(), 1e-12);
+			assertEquals(x.getSizeCounts(), y.getSizeCounts());
+		}
+	}
+
+	@Test
+	public void testNoNullWord() {
+		Aligner aligner = new Aligner(new AlignerConfig().setNoNullWord(true).setFavorDiagonal(true));
+		Collect sink = new Collect();
+		aligner.setAlignmentSink(sink);
+		aligner.train(corpus(aligner.dict(), 200));
+		// without a null word every target word is aligned
+		for (int k = 0; k < sink.links.size(); ++k)
+			assertEquals(corpus(new Dict(), 200).get(k).getTarget().length * 2, sink.links.get(k).length);
+	}
+
+	@Test
+	public void testStepwiseFindsDiagonal() {
+		Aligner aligner = new Aligner(new AlignerConfig().setFavorDiagonal(true).setMiniBatch(50).setIterations(2));
+		Collect sink = new Collect();
+		aligner.setAlignmentSink(sink);
+		aligner.train(corpus(aligner.dict(), 500));
+		assertEquals(10, aligner.getSteps());
+		int links = 0;
+		int diagonal = 0;
+		for (int[] l : sink.links) {
+			for (int k = 0; k < l.length; k += 2) {
+				++links;
+				if (l[k] == l[k + 1]) ++diagonal;
+			}
+		}
+		assertTrue(diagonal > 0.95 * links);
+	}
+
+	@Test
+	public void testStepwiseResumesFromState() throws Exception {
+		AlignerConfig config = new AlignerConfig().setFavorDiagonal(true).setVariationalBayes(true)
+				.setMiniBatch(100).setIterations(2);
+		Aligner whole = new Aligner(config);
+		List<SentencePair> pairs = corpus(whole.dict(), 600);
+		whole.train(pairs);
+
+		java.io.File state = java.io.File.createTempFile("state", ".bin");
+		state.deleteOnExit();
+		Aligner first = new Aligner(config);
+		first.train(corpus(first.dict(), 600).subList(0, 300));
+		first.saveState(state.getPath());
+		// a fresh aligner with its own dictionary picks up where the first stopped
+		Aligner second = new Aligner(config);
+		second.dict().Convert("unrelated");
+		List<SentencePair> rest = corpus(second.dict(), 600).subList(300, 600);
+		second.loadState(state.getPath());
+		assertEquals(3, second.getSteps());
+		second.train(rest);
+		assertEquals(whole.getSteps(), second.getSteps());
+		for (int w = 0; w < 40; ++w) {
+			for (int v = 0; v < 40; v += 7) {
+				assertEquals(whole.table().prob(whole.dict().Convert("s" + w), whole.dict().Convert("t" + v)),
+						second.table().prob(second.dict().Convert("s" + w), second.dict().Convert("t" + v)), 1e-12);
+			}
+		}
+	}
+
+	@Test
+	public void testResumesFromCheckpoint() throws Exception {
+		AlignerConfig config = new AlignerConfig().setFavorDiagonal(true).setOptimizeTension(true)
+				.setVariationalBayes(true).setIterations(5);
+		Aligner whole = new Aligner(config);
+		whole.train(corpus(whole.dict(), 300));
+
+		java.io.File checkpoint = java.io.File.createTempFile("checkpoint", ".bin");
+		checkpoint.deleteOnExit();
+		// stops after iteration 2 of 5 (the third, which only aligns)
+		Aligner first = new Aligner(new AlignerConfig(config).setIterations(3));
+		first.setCheckpointFile(checkpoint.getPath());
+		first.train(corpus(first.dict(), 300));
+		Aligner second = new Aligner(config);
+		List<SentencePair> pairs = corpus(second.dict(), 300);
+		assertEquals(1, second.resume(checkpoint.getPath()));
+		second.train(pairs);
+		assertEquals(whole.getDiagonalTension(), second.getDiagonalTension(), 0);
+		for (int w = 0; w < 40; ++w) {
+			for (int v = 0; v < 40; v += 7) {
+				final int s = whole.dict().Convert("s" + w);
+				final int t = whole.dict().Convert("t" + v);
+				assertEquals(whole.table().prob(s, t), second.table().prob(s, t), 0);
+			}
+		}
+
+		Aligner other = new Aligner(config);
+		corpus(other.dict(), 300);
+		other.dict().Convert("unrelated");
+		try {
+			other.resume(checkpoint.getPath());
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().contains("vocabulary"));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsBadStepDecay() {
+		new Aligner(new AlignerConfig().setMiniBatch(10).setStepDecay(0.4));
+	}
+
+	/** Bytes allocated by the current thread while training with the given number of iterations. */
+	private static long trainingBytes(com.sun.management.ThreadMXBean mx, AlignerConfig config, Corpus corpus) {
+		Aligner aligner = new Aligner(config);
+		final long before = mx.getThreadAllocatedBytes(Thread.currentThread().getId());
+		aligner.train(corpus);
+		return mx.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+	}
+
+	@Test
+	public void testEStepDoesNotAllocatePerSentence() throws Exception {
+		Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(mx.isThreadAllocatedMemorySupported());
+		mx.setThreadAllocatedMemoryEnabled(true);
+		Corpus.Builder builder = new Corpus.Builder();
+		for (SentencePair p : corpus(new Dict(), 1500)) builder.add(p.getSource(), p.getTarget());
+		Corpus corpus = builder.build();
+		for (AlignerConfig config : Arrays.asList(new AlignerConfig(), new AlignerConfig().setFavorDiagonal(true))) {
+			// Both runs share the first iterations, where rows and caches grow;
+			// the extra ones may only allocate per-iteration bookkeeping.
+			trainingBytes(mx, new AlignerConfig(config).setIterations(3), corpus);
+			final long short_run = trainingBytes(mx, new AlignerConfig(config).setIterations(3), corpus);
+			final long long_run = trainingBytes(mx, new AlignerConfig(config).setIterations(8), corpus);
+			final long per_iteration = (long_run - short_run) / 5;
+			assertTrue(per_iteration + " bytes per iteration", per_iteration < corpus.size());
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsBadConfig() {
+		new Aligner(new AlignerConfig().setThreads(0));
+	}
+}
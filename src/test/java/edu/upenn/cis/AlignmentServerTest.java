@@ -0,0 +1,113 @@
+package edu.upenn.cis;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AlignmentServerTest {
+
+	private Aligner aligner;
+	private AlignmentServer server;
+
+	@Before
+	public void setUp() throws IOException {
+		aligner = new Aligner(new AlignerConfig().setFavorDiagonal(true));
+		aligner.dict().Convert("|||");
+		aligner.train(AlignerTest.corpus(aligner.dict(), 300));
+		server = new AlignmentServer(aligner, 0, 64);
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+	}
+
+	private String request(String method, String path, String body) throws IOException {
+		HttpURLConnection c = (HttpURLConnection) new URL("http://127.0.0.1:" + server.port() + path).openConnection();
+		c.setRequestMethod(method);
+		if (body != null) {
+			c.setDoOutput(true);
+			OutputStream out = c.getOutputStream();
+			out.write(body.getBytes(StandardCharsets.UTF_8));
+			out.close();
+		}
+		InputStream in = c.getResponseCode() < 400 ? c.getInputStream() : c.getErrorStream();
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		byte[] b = new byte[1024];
+		for (int n; (n = in.read(b)) > 0; ) buf.write(b, 0, n);
+		in.close();
+		return c.getResponseCode() + " " + new String(buf.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private String expected(String line) {
+		SentencePair p = SentencePair.parse(line, aligner.dict(), true);
+		int[] links = aligner.align(p.getSource(), p.getTarget());
+		StringBuilder b = new StringBuilder();
+		for (int k = 0; k < links.length; k += 2) {
+			if (k > 0) b.append(' ');
+			b.append(links[k]).append('-').append(links[k + 1]);
+		}
+		return b.toString();
+	}
+
+	@Test
+	public void testAlignMatchesAligner() throws IOException {
+		String a = "s1 s2 s3 ||| t1 t2 t3";
+		String b = "s5 unknown s7 ||| t7 t5";
+		assertEquals("200 " + expected(a) + "\n" + expected(b) + "\n", request("POST", "/align", a + "\n" + b + "\n"));
+	}
+
+	@Test
+	public void testConcurrentRequestsAreBatched() throws Exception {
+		final String body = "s1 s2 ||| t2 t1\ns3 s4 s5 ||| t3 t4 t5\n";
+		final String want = "200 " + expected("s1 s2 ||| t2 t1") + "\n" + expected("s3 s4 s5 ||| t3 t4 t5") + "\n";
+		final List<Throwable> failures = new ArrayList<Throwable>();
+		List<Thread> clients = new ArrayList<Thread>();
+		for (int t = 0; t < 8; ++t) {
+			clients.add(new Thread() {
+				public void run() {
+					try {
+						for (int k = 0; k < 10; ++k) assertEquals(want, request("POST", "/align", body));
+					} catch (Throwable e) {
+						synchronized (failures) { failures.add(e); }
+					}
+				}
+			});
+		}
+		for (Thread c : clients) c.start();
+		for (Thread c : clients) c.join();
+		assertTrue(failures.toString(), failures.isEmpty());
+		String stats = request("GET", "/stats", null);
+		assertTrue(stats, stats.startsWith("200 {\"requests\":80,\"sentences\":160,\"errors\":0,"));
+		assertTrue(stats, stats.contains("\"p99_ms\":"));
+	}
+
+	@Test
+	public void testRejectsLineWithoutTarget() throws IOException {
+		assertTrue(request("POST", "/align", "s1 ||| t1\ns1 s2\n").startsWith("400 Error in line 2"));
+	}
+
+	@Test(timeout = 10000)
+	public void testRequestsAfterStopAreRejected() throws Exception {
+		AlignmentServer stopped = new AlignmentServer(aligner, 0, 64);
+		stopped.start();
+		stopped.stop(0);
+		// a handler that finished parsing only now must not wait for the batcher
+		List<SentencePair> pairs = new ArrayList<SentencePair>();
+		pairs.add(SentencePair.parse("s1 s2 ||| t1 t2", aligner.dict(), true));
+		assertNull(stopped.align(pairs));
+	}
+}
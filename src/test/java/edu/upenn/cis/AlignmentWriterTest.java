@@ -0,0 +1,99 @@
+package edu.upenn.cis;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+public class AlignmentWriterTest {
+
+	/** Sends the same random alignments, one of them longer than a block, to both sinks. */
+	private static void feed(AlignmentSink a, AlignmentSink b) throws IOException {
+		Random r = new Random(3);
+		int[] links = new int[4000];
+		for (int s = 0; s < 2000; ++s) {
+			final int length = s == 700 ? links.length : 2 * r.nextInt(20);
+			for (int k = 0; k < length; ++k) links[k] = r.nextInt(k % 7 == 0 ? Integer.MAX_VALUE : 100);
+			a.alignment(links, length);
+			b.alignment(links, length);
+		}
+	}
+
+	@Test
+	public void testMatchesTextSink() throws IOException {
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		ByteArrayOutputStream actual = new ByteArrayOutputStream();
+		PrintStream text = new PrintStream(expected, false, "UTF-8");
+		AlignmentWriter writer = new AlignmentWriter(actual, 4096);
+		feed(new TextAlignmentSink(text), writer);
+		text.flush();
+		writer.flush();
+		assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+		writer.close();
+	}
+
+	@Test
+	public void testGzip() throws IOException {
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		PrintStream text = new PrintStream(expected, false, "UTF-8");
+		AlignmentWriter writer = AlignmentWriter.open(compressed, true);
+		feed(new TextAlignmentSink(text), writer);
+		text.flush();
+		writer.close();
+		GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()));
+		ByteArrayOutputStream actual = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		for (int n; (n = in.read(buf)) > 0; ) actual.write(buf, 0, n);
+		assertEquals(expected.toString("UTF-8"), new String(actual.toByteArray(), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testTextPosteriors() throws IOException {
+		ByteArrayOutputStream actual = new ByteArrayOutputStream();
+		AlignmentWriter writer = new AlignmentWriter(actual, 64);
+		writer.posteriors(new int[] {0, 0, 12, 0, 3, 1}, new double[] {0.99996, 0.5, 0.00123}, 6);
+		writer.posteriors(new int[0], new double[0], 0);
+		writer.posteriors(new int[] {7, 2}, new double[] {1}, 2);
+		writer.close();
+		assertEquals("0-0:1.0000 12-0:0.5000 3-1:0.0012\n\n7-2:1.0000\n", actual.toString("UTF-8"));
+	}
+
+	@Test
+	public void testBinaryPosteriors() throws IOException {
+		ByteArrayOutputStream actual = new ByteArrayOutputStream();
+		AlignmentWriter writer = new AlignmentWriter(actual, 64, true);
+		writer.posteriors(new int[] {0, 300, 5, 1}, new double[] {0.25, 1}, 4);
+		writer.posteriors(new int[0], new double[0], 0);
+		writer.close();
+		assertArrayEquals(new byte[] {
+				2,
+				0, (byte) 0xac, 0x02, 0x3e, (byte) 0x80, 0, 0,
+				5, 1, 0x3f, (byte) 0x80, 0, 0,
+				0}, actual.toByteArray());
+	}
+
+	@Test
+	public void testReportsWriteError() throws IOException {
+		AlignmentWriter writer = new AlignmentWriter(new OutputStream() {
+			public void write(int b) throws IOException {
+				throw new IOException("disk full");
+			}
+		}, 64);
+		try {
+			for (int s = 0; s < 100; ++s) writer.alignment(new int[] {1, 2}, 2);
+			writer.flush();
+			fail();
+		} catch (IOException e) {
+			assertEquals("disk full", e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package edu.upenn.cis;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+
+public class BidirectionalAlignerTest {
+
+	@Test
+	public void testMatchesSeparateRuns() {
+		AlignerConfig config = new AlignerConfig().setFavorDiagonal(true).setOptimizeTension(true);
+		BidirectionalAligner both = new BidirectionalAligner(config);
+		List<SentencePair> pairs = AlignerTest.corpus(both.dict(), 400);
+		AlignerTest.Collect fwd = new AlignerTest.Collect();
+		AlignerTest.Collect rev = new AlignerTest.Collect();
+		both.forward().setAlignmentSink(fwd);
+		both.reverse().setAlignmentSink(rev);
+		both.train(pairs);
+
+		Aligner forward = new Aligner(config);
+		AlignerTest.Collect f = new AlignerTest.Collect();
+		forward.setAlignmentSink(f);
+		forward.train(AlignerTest.corpus(forward.dict(), 400));
+		Aligner reverse = new Aligner(new AlignerConfig(config).setReverse(true));
+		AlignerTest.Collect r = new AlignerTest.Collect();
+		reverse.setAlignmentSink(r);
+		reverse.train(AlignerTest.corpus(reverse.dict(), 400));
+
+		assertEquals(400, fwd.links.size());
+		for (int k = 0; k < 400; ++k) {
+			assertArrayEquals(f.links.get(k), fwd.links.get(k));
+			assertArrayEquals(r.links.get(k), rev.links.get(k));
+		}
+		assertEquals(forward.getDiagonalTension(), both.forward().getDiagonalTension(), 0.0);
+		assertEquals(reverse.getDiagonalTension(), both.reverse().getDiagonalTension(), 0.0);
+		assertSame(both.forward().dict(), both.reverse().dict());
+	}
+
+	@Test(timeout = 60000)
+	public void testFailingOutputDoesNotHang() {
+		BidirectionalAligner both = new BidirectionalAligner(new AlignerConfig().setIterations(2));
+		List<SentencePair> pairs = AlignerTest.corpus(both.dict(), 200);
+		SymmetrizingSink sink = new SymmetrizingSink(Symmetrizer.Heuristic.GROW_DIAG, new AlignmentSink() {
+			public void alignment(int[] links, int length) throws IOException {
+				throw new IOException("broken pipe");
+			}
+		}, 4);
+		both.forward().setAlignmentSink(sink.forward());
+		both.reverse().setAlignmentSink(sink.reverse());
+		try {
+			both.train(pairs);
+			fail();
+		} catch (RuntimeException e) {
+			assertEquals("broken pipe", e.getCause().getMessage());
+		}
+		assertFalse(Thread.currentThread().isInterrupted());
+	}
+
+	@Test(timeout = 60000)
+	public void testReverseFailureStopsForward() {
+		BidirectionalAligner both = new BidirectionalAligner(new AlignerConfig().setIterations(2));
+		List<SentencePair> pairs = AlignerTest.corpus(both.dict(), 200);
+		SymmetrizingSink sink = new SymmetrizingSink(Symmetrizer.Heuristic.GROW_DIAG, new AlignerTest.Collect(), 4);
+		both.forward().setAlignmentSink(sink.forward());
+		both.reverse().setAlignmentSink(new AlignmentSink() {
+			public void alignment(int[] links, int length) {
+				throw new IllegalStateException("reverse failed");
+			}
+		});
+		try {
+			both.train(pairs);
+			fail();
+		} catch (IllegalStateException e) {
+			assertEquals("reverse failed", e.getMessage());
+		}
+		assertFalse(Thread.currentThread().isInterrupted());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testEmptySideFailsBeforeTraining() {
+		BidirectionalAligner both = new BidirectionalAligner(new AlignerConfig());
+		both.train(java.util.Arrays.asList(new SentencePair(new int[] {1}, new int[0])));
+	}
+}
@@ -0,0 +1,56 @@
+package edu.upenn.cis;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class ConcurrentDictTest {
+
+	@Test
+	public void testSeedKeepsIds() {
+		Dict seed = new Dict();
+		seed.Convert("|||");
+		seed.Convert("a");
+		ConcurrentDict d = new ConcurrentDict(seed);
+		assertEquals(2, d.max());
+		assertEquals(2, d.Convert("a"));
+		assertEquals(3, d.Convert("b"));
+		assertEquals("b", d.Convert(3));
+		assertEquals(0, d.Convert("c", true));
+	}
+
+	@Test
+	public void testConcurrentInsertsAreDense() throws InterruptedException {
+		final ConcurrentDict d = new ConcurrentDict();
+		final int words = 20000;
+		final int[][] ids = new int[4][words];
+		Thread[] threads = new Thread[ids.length];
+		for (int t = 0; t < threads.length; ++t) {
+			final int[] out = ids[t];
+			final int offset = t * 997;
+			threads[t] = new Thread() {
+				public void run() {
+					for (int k = 0; k < words; ++k) {
+						final int w = (k + offset) % words;
+						byte[] bytes = ("w" + w).getBytes(StandardCharsets.UTF_8);
+						out[w] = d.Convert(bytes, 0, bytes.length, false);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread t : threads) t.join();
+		assertEquals(words, d.max());
+		Set<Integer> seen = new HashSet<Integer>();
+		for (int w = 0; w < words; ++w) {
+			for (int t = 1; t < ids.length; ++t) assertEquals(ids[0][w], ids[t][w]);
+			assertTrue(ids[0][w] >= 1 && ids[0][w] <= words);
+			assertTrue(seen.add(ids[0][w]));
+			assertEquals("w" + w, d.Convert(ids[0][w]));
+		}
+	}
+}
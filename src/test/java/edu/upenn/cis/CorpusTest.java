@@ -0,0 +1,173 @@
+package edu.upenn.cis;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class CorpusTest {
+
+	private static Corpus build(long maxTokensInMemory) throws IOException {
+		Corpus.Builder b = new Corpus.Builder(maxTokensInMemory);
+		for (int s = 0; s < 100; ++s) {
+			b.add(Arrays.asList(s, s + 1, s + 2), Arrays.asList(-s, -s - 1));
+		}
+		return b.build();
+	}
+
+	private static void check(Corpus c) {
+		assertEquals(100, c.size());
+		assertEquals(500, c.tokens());
+		int[] src = new int[3];
+		int[] trg = new int[2];
+		for (int s = 0; s < 100; ++s) {
+			assertEquals(3, c.srcLength(s));
+			assertEquals(2, c.trgLength(s));
+			c.src(s, src);
+			c.trg(s, trg);
+			assertArrayEquals(new int[] {s, s + 1, s + 2}, src);
+			assertArrayEquals(new int[] {-s, -s - 1}, trg);
+		}
+	}
+
+	@Test
+	public void testInMemory() throws IOException {
+		Corpus.Builder b = new Corpus.Builder();
+		assertFalse(b.spilled());
+		check(build(Long.MAX_VALUE));
+	}
+
+	@Test
+	public void testSpilled() throws IOException {
+		check(build(37));
+	}
+
+	@Test
+	public void testWriteAndMap() throws IOException {
+		Dict d = new Dict();
+		for (int w = 0; w < 10; ++w) d.Convert("w" + w);
+		File file = File.createTempFile("corpus", ".bin");
+		file.deleteOnExit();
+		build(37).write(file, d);
+		assertTrue(Corpus.isCompiled(file));
+		Dict mapped = new Dict();
+		check(Corpus.map(file, mapped));
+		assertEquals(10, mapped.max());
+		assertEquals("w3", mapped.Convert(4));
+	}
+
+	@Test(expected = IOException.class)
+	public void testMapRejectsMismatchedDict() throws IOException {
+		Dict d = new Dict();
+		d.Convert("a");
+		File file = File.createTempFile("corpus", ".bin");
+		file.deleteOnExit();
+		build(Long.MAX_VALUE).write(file, d);
+		Dict other = new Dict();
+		other.Convert("b");
+		Corpus.map(file, other);
+	}
+
+	private static File text(String content) throws IOException {
+		File file = File.createTempFile("corpus", ".txt");
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(content.getBytes(StandardCharsets.UTF_8));
+		out.close();
+		return file;
+	}
+
+	@Test
+	public void testReadText() throws IOException {
+		// CRLF, lone CR, tabs, a second ||| on the target side, no final newline
+		Dict d = new Dict();
+		Corpus c = Corpus.read(text("a  b ||| x\r\nb\tä ||| ||| y\rä ||| x").getPath(), d, Long.MAX_VALUE);
+		assertEquals(3, c.size());
+		assertEquals("|||", d.Convert(1));
+		int[] buf = new int[2];
+		c.src(1, buf);
+		assertArrayEquals(new int[] {d.Convert("b"), d.Convert("ä")}, buf);
+		c.trg(1, buf);
+		assertArrayEquals(new int[] {1, d.Convert("y")}, buf);
+		c.trg(2, buf);
+		assertEquals(d.Convert("x"), buf[0]);
+		assertEquals(6, d.max());
+	}
+
+	@Test
+	public void testReadRejectsEmptySide() throws IOException {
+		try {
+			Corpus.read(text("a ||| b\nc |||\n").getPath(), new Dict(), Long.MAX_VALUE);
+			fail();
+		} catch (IOException e) {
+			assertEquals("Error in line 2\nc |||", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testReadLongLines() throws IOException {
+		StringBuilder b = new StringBuilder();
+		for (int k = 0; k < 30000; ++k) b.append(" s").append(k % 1000);
+		b.append(" |||");
+		for (int k = 0; k < 20000; ++k) b.append(" t").append(k % 500);
+		final String line = b.toString();
+		Dict d = new Dict();
+		Corpus c = Corpus.read(text(line + "\n" + line + "\n").getPath(), d, Long.MAX_VALUE);
+		assertEquals(2, c.size());
+		assertEquals(30000, c.srcLength(1));
+		assertEquals(20000, c.trgLength(1));
+		assertEquals(1 + 1000 + 500, d.max());
+	}
+
+	private static String bitext(int lines) {
+		StringBuilder b = new StringBuilder();
+		Random r = new Random(7);
+		for (int s = 0; s < lines; ++s) {
+			for (int k = 0; k < 1 + r.nextInt(8); ++k) b.append("s").append(r.nextInt(3000)).append(' ');
+			b.append("|||");
+			for (int k = 0; k < 1 + r.nextInt(8); ++k) b.append(' ').append("t").append(r.nextInt(2000));
+			b.append(s % 3 == 0 ? "\r\n" : "\n");
+		}
+		return b.toString();
+	}
+
+	@Test
+	public void testParallelReadMatchesSerial() throws IOException {
+		final String path = text(bitext(20000)).getPath();
+		Dict serial_dict = new Dict();
+		Corpus serial = Corpus.read(path, serial_dict, Long.MAX_VALUE);
+		Dict parallel_dict = new Dict();
+		Corpus parallel = Corpus.read(path, parallel_dict, 1000, 4);
+		assertEquals(serial.size(), parallel.size());
+		assertEquals(serial.tokens(), parallel.tokens());
+		int[] a = new int[8];
+		int[] b = new int[8];
+		for (int s = 0; s < serial.size(); ++s) {
+			assertEquals(serial.srcLength(s), parallel.srcLength(s));
+			serial.src(s, a);
+			parallel.src(s, b);
+			assertArrayEquals(a, b);
+			serial.trg(s, a);
+			parallel.trg(s, b);
+			assertArrayEquals(a, b);
+		}
+		assertEquals(serial_dict.max(), parallel_dict.max());
+		for (int w = 1; w <= serial_dict.max(); ++w) assertEquals(serial_dict.Convert(w), parallel_dict.Convert(w));
+	}
+
+	@Test
+	public void testParallelReadReportsLine() throws IOException {
+		try {
+			Corpus.read(text(bitext(20000) + "c |||\n" + bitext(10)).getPath(), new Dict(), Long.MAX_VALUE, 4);
+			fail();
+		} catch (IOException e) {
+			assertEquals("Error in line 20001\nc |||", e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package edu.upenn.cis;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class DiagonalPriorTest {
+
+	private static void assertMatchesUncached(DiagonalPrior cache, int m, int n, double tension, double not_null) {
+		cache.lookup(m, n);
+		for (int j = 0; j < m; ++j) {
+			final double az = DiagonalAlignment.computeZ(j+1, m, n, tension) / not_null;
+			for (int i = 1; i <= n; ++i) {
+				assertEquals(DiagonalAlignment.unnormalizedProb(j + 1, i, m, n, tension) / az, cache.prior[j*n + i-1], 0.0);
+				assertEquals(DiagonalAlignment.feature(j, i, m, n), cache.feature[j*n + i-1], 0.0);
+			}
+		}
+	}
+
+	@Test
+	public void testLookupIsExact() {
+		DiagonalPrior cache = new DiagonalPrior();
+		cache.reset(4.0, 0.92);
+		assertMatchesUncached(cache, 7, 5, 4.0, 0.92);
+		assertMatchesUncached(cache, 1, 1, 4.0, 0.92);
+		assertMatchesUncached(cache, 5, 7, 4.0, 0.92);
+	}
+
+	@Test
+	public void testRepeatedLengthsAreNotRecomputed() {
+		DiagonalPrior cache = new DiagonalPrior();
+		cache.reset(4.0, 0.92);
+		cache.lookup(12, 10);
+		final long calls = cache.exp_calls;
+		for (int k = 0; k < 100; ++k) cache.lookup(12, 10);
+		assertEquals(calls, cache.exp_calls);
+		assertEquals(DiagonalPrior.uncachedExpCalls(12, 10), calls);
+	}
+
+	@Test
+	public void testNewTensionRecomputesPrior() {
+		DiagonalPrior cache = new DiagonalPrior();
+		cache.reset(4.0, 0.92);
+		cache.lookup(9, 8);
+		cache.reset(6.5, 0.92);
+		assertMatchesUncached(cache, 9, 8, 6.5, 0.92);
+		cache.reset(6.5, 0.5);
+		assertMatchesUncached(cache, 9, 8, 6.5, 0.5);
+	}
+
+	@Test
+	public void testOversizedPairsAreComputedUncached() {
+		DiagonalPrior cache = new DiagonalPrior();
+		cache.reset(4.0, 0.92);
+		final int n = (int) Math.sqrt(DiagonalPrior.kMaxCells) + 1;
+		assertMatchesUncached(cache, n, n, 4.0, 0.92);
+		final long calls = cache.exp_calls;
+		cache.lookup(n, n);
+		assertTrue(cache.exp_calls > calls);
+		// smaller pairs still fit
+		assertMatchesUncached(cache, 3, 4, 4.0, 0.92);
+	}
+}
@@ -4,6 +4,7 @@ import static org.junit.Assert.*;
 
 import org.junit.Before;
 import org.junit.Test;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 
@@ -52,4 +53,45 @@ public class DictTest {
 		assertEquals(expected, out);
 		
 	}
+
+	@Test
+	public void testConvertWhitespaceDelimitedFrozen() {
+		ArrayList<Integer> out = new ArrayList<Integer>();
+		d.ConvertWhitespaceDelimitedLine("a b", out);
+		d.ConvertWhitespaceDelimitedLine("b c a", out, true);
+		ArrayList<Integer> expected = new ArrayList<Integer>(Arrays.asList(2, 0, 1));
+		assertEquals(expected, out);
+		assertEquals(2, d.max());
+	}
+
+	@Test
+	public void testConvertBytesMatchesString() {
+		byte[] line = " über a".getBytes(StandardCharsets.UTF_8);
+		assertEquals(1, d.Convert(line, 1, 6, false));
+		assertEquals(1, d.Convert("über"));
+		assertEquals(2, d.Convert("a"));
+		assertEquals(2, d.Convert(line, 7, 8, false));
+		assertEquals(0, d.Convert("zz".getBytes(StandardCharsets.UTF_8), 0, 2, true));
+		assertEquals(2, d.max());
+	}
+
+	@Test
+	public void testConvertMalformedBytes() {
+		// both decode to U+FFFD, so they are the same word
+		byte[] a = {(byte) 0xFF};
+		byte[] b = {(byte) 0xFE};
+		assertEquals(1, d.Convert(a, 0, 1, false));
+		assertEquals(1, d.Convert(b, 0, 1, false));
+		assertEquals(1, d.Convert(b, 0, 1, true));
+		assertEquals(1, d.max());
+	}
+
+	@Test
+	public void testConvertBytesManyWords() {
+		for (int w = 0; w < 5000; ++w) d.Convert("w" + w);
+		for (int w = 0; w < 5000; ++w) {
+			byte[] bytes = ("w" + w).getBytes(StandardCharsets.UTF_8);
+			assertEquals(w + 1, d.Convert(bytes, 0, bytes.length, true));
+		}
+	}
 }
@@ -0,0 +1,88 @@
+package edu.upenn.cis;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class IntDoubleMapTest {
+
+	@Test
+	public void testAddAndGrow() {
+		IntDoubleMap m = new IntDoubleMap();
+		for (int k = 0; k < 1000; ++k) {
+			m.add(k * 7, 1.0);
+			m.add(k * 7, 0.5);
+		}
+		assertEquals(1000, m.size());
+		for (int k = 0; k < 1000; ++k) {
+			assertEquals(1.5, m.get(k * 7, -1), 0);
+		}
+		assertEquals(-1, m.get(3, -1), 0);
+		assertFalse(m.containsKey(3));
+	}
+
+	@Test
+	public void testClearKeepsCapacity() {
+		IntDoubleMap m = new IntDoubleMap();
+		for (int k = 0; k < 100; ++k) m.put(k, k);
+		int cap = m.capacity();
+		m.clear();
+		assertEquals(0, m.size());
+		assertEquals(cap, m.capacity());
+		assertEquals(0.0, m.get(5, 0.0), 0);
+	}
+
+	@Test
+	public void testCompact() {
+		IntDoubleMap m = new IntDoubleMap();
+		for (int k = 0; k < 10; ++k) m.put(k, k + 0.1);
+		final long bytes = m.bytes();
+		m.compact();
+		assertTrue(m.isCompact());
+		assertTrue(m.bytes() < bytes);
+		assertEquals(3.1f, m.get(3, 0), 0);
+		// growing keeps float values
+		for (int k = 10; k < 100; ++k) m.put(k, k + 0.1);
+		assertTrue(m.isCompact());
+		assertEquals(3.1f, m.get(3, 0), 0);
+		assertEquals(99.1f, m.get(99, 0), 0);
+		// clearing goes back to double values
+		m.clear();
+		assertFalse(m.isCompact());
+		m.add(1, 0.1);
+		assertEquals(0.1, m.get(1, 0), 0);
+	}
+
+	@Test
+	public void testCompactClearing() {
+		IntDoubleMap spent = new IntDoubleMap();
+		IntDoubleMap m = new IntDoubleMap();
+		for (int k = 0; k < 10; ++k) {
+			spent.put(k, 1);
+			m.put(k, k + 0.1);
+		}
+		spent.compact();
+		m.compactClearing(spent);
+		assertTrue(m.isCompact());
+		assertEquals(3.1f, m.get(3, 0), 0);
+		assertEquals(10, m.size());
+		assertFalse(spent.isCompact());
+		assertEquals(0, spent.size());
+		assertEquals(m.capacity(), spent.capacity());
+		spent.add(4, 0.1);
+		spent.add(4, 1e-12);
+		assertEquals(0.1 + 1e-12, spent.get(4, 0), 0);
+		assertEquals(4.1f, m.get(4, 0), 0);
+		// rows of different capacities are compacted and cleared separately
+		IntDoubleMap big = new IntDoubleMap();
+		for (int k = 0; k < 100; ++k) big.put(k, k);
+		m.clear();
+		m.put(1, 0.5);
+		m.compact();
+		big.compactClearing(m);
+		assertTrue(big.isCompact());
+		assertEquals(99f, big.get(99, 0), 0);
+		assertFalse(m.isCompact());
+		assertEquals(0, m.size());
+	}
+}
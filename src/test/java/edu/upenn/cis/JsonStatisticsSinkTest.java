@@ -0,0 +1,62 @@
+package edu.upenn.cis;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class JsonStatisticsSinkTest {
+
+	@Test
+	public void testOneLinePerIterationAndPhase() throws Exception {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		Aligner aligner = new Aligner(new AlignerConfig().setFavorDiagonal(true).setIterations(3));
+		aligner.setStatisticsSink(new JsonStatisticsSink(new PrintStream(buf, true, "UTF-8")));
+		aligner.train(AlignerTest.corpus(aligner.dict(), 200));
+		aligner.save(java.io.File.createTempFile("ttable", ".txt").getPath(), false);
+		String[] lines = buf.toString("UTF-8").split("\n");
+		assertEquals(4, lines.length);
+		for (int k = 0; k < 3; ++k) {
+			assertTrue(lines[k], lines[k].startsWith("{\"event\":\"iteration\",\"iteration\":" + (k + 1) + ","));
+			assertTrue(lines[k], lines[k].contains("\"sentences\":200,"));
+			assertTrue(lines[k], lines[k].contains("\"dict_size\":" + aligner.dict().max() + ","));
+			assertTrue(lines[k], lines[k].contains("\"estep_s\":"));
+			assertTrue(lines[k], lines[k].endsWith("}"));
+		}
+		assertTrue(lines[2], lines[2].contains("\"final\":true,"));
+		assertTrue(lines[2], lines[2].contains("\"ttable_entries\":" + aligner.table().size() + ","));
+		assertTrue(lines[3], lines[3].startsWith("{\"event\":\"export\",\"seconds\":"));
+	}
+
+	@Test
+	public void testNonFiniteValuesAreNull() throws Exception {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		IterationStats stats = new IterationStats(0, true, 0, 0, 0, 0, Double.NaN, 0, 0);
+		new JsonStatisticsSink(new PrintStream(buf, true, "UTF-8"))
+				.iterationCompleted(new IterationMetrics(stats, 0, 0, 0, 4.0, 0, 0, 0, 0, 0));
+		String line = buf.toString("UTF-8");
+		assertTrue(line, line.contains("\"cross_entropy\":null,"));
+		assertTrue(line, line.contains("\"sentences_per_s\":null,"));
+	}
+
+	@Test
+	public void testJmxPublishesLastIteration() throws Exception {
+		JmxStatisticsSink jmx = new JmxStatisticsSink("edu.upenn.cis:type=Test");
+		try {
+			Aligner aligner = new Aligner(new AlignerConfig().setIterations(2));
+			aligner.setStatisticsSink(jmx);
+			aligner.train(AlignerTest.corpus(aligner.dict(), 100));
+			ObjectName name = new ObjectName("edu.upenn.cis:type=Test");
+			assertEquals(2, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Iteration"));
+			assertEquals(aligner.table().size(), ManagementFactory.getPlatformMBeanServer().getAttribute(name, "TTableEntries"));
+			assertEquals(100, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "SentencesDone"));
+		} finally {
+			jmx.unregister();
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package edu.upenn.cis;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+public class PosteriorKernelTest {
+
+	private static double[] random(Random rnd, int n) {
+		double[] a = new double[n];
+		for (int k = 0; k < n; ++k) a[k] = rnd.nextDouble();
+		return a;
+	}
+
+	@Test
+	public void testScalar() {
+		PosteriorKernel k = PosteriorKernel.kScalar;
+		double[] p = {9, 1, 2, 3};
+		double[] w = {0, 0.5, 0.5, 2};
+		assertEquals(1 + 0.5 + 1 + 6, k.weightedSum(p, 1, 3, w, 1, 1), 0);
+		assertArrayEquals(new double[] {9, 0.5, 1, 6}, p, 0);
+		assertEquals(3, k.argmax(p, 1, 3));
+		assertEquals(0, k.argmax(p, 0, 4));
+		assertEquals(-1, k.argmax(p, 0, 0));
+		k.divide(p, 1, 3, 2);
+		assertArrayEquals(new double[] {9, 0.25, 0.5, 3}, p, 0);
+		assertEquals(1 + 0.125 + 0.25 + 6, k.dot(w, 1, p, 1, 3, 1), 0);
+		assertEquals(4 + 0.75 + 1.5 + 9, k.scaledSum(p, 1, 3, 3, 4), 0);
+		// ties go to the first maximum
+		assertEquals(1, k.argmax(new double[] {0, 1, 1}, 0, 3));
+		assertSame(k, PosteriorKernel.get(false));
+	}
+
+	@Test
+	public void testVectorMatchesScalar() {
+		PosteriorKernel v = PosteriorKernel.vector();
+		Assume.assumeNotNull(v);
+		PosteriorKernel s = PosteriorKernel.kScalar;
+		Random rnd = new Random(42);
+		for (int n = 0; n <= 100; ++n) {
+			double[] p = random(rnd, n + 3);
+			double[] w = random(rnd, n + 5);
+			double[] q = p.clone();
+			assertEquals(s.weightedSum(p, 2, n, w, 3, 0.5), v.weightedSum(q, 2, n, w, 3, 0.5), 1e-12);
+			assertArrayEquals(p, q, 0);
+			assertEquals(s.scaledSum(p, 1, n, 0.3, 0), v.scaledSum(q, 1, n, 0.3, 0), 1e-12);
+			assertArrayEquals(p, q, 0);
+			s.divide(p, 1, n, 7);
+			v.divide(q, 1, n, 7);
+			assertArrayEquals(p, q, 0);
+			assertEquals(s.dot(w, 2, p, 1, n, 1), v.dot(w, 2, q, 1, n, 1), 1e-12);
+			if (n > 0) p[1 + rnd.nextInt(n)] = 2;
+			if (n > 1) p[1 + rnd.nextInt(n)] = 2;
+			assertEquals(s.argmax(p, 1, n), v.argmax(p, 1, n));
+			Arrays.fill(q, 0.25);
+			assertEquals(s.argmax(q, 0, n), v.argmax(q, 0, n));
+		}
+	}
+}
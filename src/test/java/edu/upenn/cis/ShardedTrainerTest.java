@@ -0,0 +1,78 @@
+package edu.upenn.cis;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ShardedTrainerTest {
+
+	/** Target word k translates source word k, written as a text bitext. */
+	private static File bitext(int sentences) throws Exception {
+		File f = File.createTempFile("bitext", ".txt");
+		f.deleteOnExit();
+		Random rnd = new Random(42);
+		PrintStream out = new PrintStream(f, "UTF-8");
+		for (int s = 0; s < sentences; ++s) {
+			StringBuilder src = new StringBuilder();
+			StringBuilder trg = new StringBuilder();
+			int n = 3 + rnd.nextInt(8);
+			for (int k = 0; k < n; ++k) {
+				int w = rnd.nextInt(40);
+				src.append(k == 0 ? "" : " ").append("s").append(w);
+				trg.append(k == 0 ? "" : " ").append("t").append(w);
+			}
+			out.println(src + " ||| " + trg);
+		}
+		out.close();
+		return f;
+	}
+
+	@Test
+	public void testMatchesSerialTraining() throws Exception {
+		File input = bitext(400);
+		File table = File.createTempFile("table", ".txt");
+		table.deleteOnExit();
+		String[] argv = {"-i", input.getPath(), "-d", "-o", "-v", "-X", "2"};
+		AlignerConfig config = FastAlign.initCommandLine(argv).config();
+
+		Aligner serial = new Aligner(config);
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		PrintStream expected_out = new PrintStream(expected, true, "UTF-8");
+		serial.setAlignmentSink(new TextAlignmentSink(expected_out));
+		serial.train(Corpus.read(input.getPath(), serial.dict(), Long.MAX_VALUE));
+		expected_out.flush();
+
+		final double[] tension = new double[1];
+		ByteArrayOutputStream actual = new ByteArrayOutputStream();
+		new ShardedTrainer(config, 2, argv, new StatisticsSink() {
+			public void tensionOptimized(double t) {
+				tension[0] = t;
+			}
+		}).train(input.getPath(), Long.MAX_VALUE, actual, table.getPath());
+
+		String[] want = new String(expected.toByteArray(), StandardCharsets.UTF_8).split("\n");
+		String[] got = new String(actual.toByteArray(), StandardCharsets.UTF_8).split("\n");
+		assertEquals(want.length, got.length);
+		int same = 0;
+		for (int k = 0; k < want.length; ++k) if (want[k].equals(got[k])) ++same;
+		// the shards sum their counts in another order, so only ties may differ
+		assertTrue(same >= want.length - 2);
+		assertEquals(serial.getDiagonalTension(), tension[0], 1e-9);
+
+		int entries = 0;
+		for (String line : Files.readAllLines(table.toPath(), StandardCharsets.UTF_8)) {
+			String[] f = line.split("\t");
+			double p = Double.parseDouble(f[2]);
+			assertEquals(serial.table().prob(serial.dict().Convert(f[0]), serial.dict().Convert(f[1])), p, 1e-9);
+			++entries;
+		}
+		assertEquals(serial.table().size(), entries);
+	}
+}
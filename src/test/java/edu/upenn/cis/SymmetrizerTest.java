@@ -0,0 +1,164 @@
+package edu.upenn.cis;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SymmetrizerTest {
+
+	static final String kForward = "0-0 1-2 2-1 3-3 4-3 5-6";
+	static final String kReverse = "0-0 1-1 2-1 3-3 3-4 5-5";
+
+	private static String symmetrize(String heuristic) {
+		return new Symmetrizer(Symmetrizer.Heuristic.forName(heuristic)).symmetrize(kForward, kReverse);
+	}
+
+	@Test
+	public void testHeuristics() {
+		assertEquals("0-0 2-1 3-3", symmetrize("intersect"));
+		assertEquals("0-0 1-1 1-2 2-1 3-3 3-4 4-3 5-5 5-6", symmetrize("union"));
+		assertEquals("0-0 1-1 1-2 2-1 3-3 3-4 4-3", symmetrize("grow-diag"));
+		assertEquals("0-0 1-1 1-2 2-1 3-3 3-4 4-3 5-5 5-6", symmetrize("grow-diag-final"));
+		assertEquals("0-0 1-1 1-2 2-1 3-3 3-4 4-3 5-6", symmetrize("grow-diag-final-and"));
+	}
+
+	@Test
+	public void testEmptyAndReusedBuffers() {
+		Symmetrizer s = new Symmetrizer(Symmetrizer.Heuristic.GROW_DIAG_FINAL_AND);
+		assertEquals("", s.symmetrize("", ""));
+		assertEquals("0-0", s.symmetrize("0-0", ""));
+		// target 3 is already aligned when 4-3 comes up
+		assertEquals("0-0 1-2 2-1 3-3 5-6", s.symmetrize(kForward, ""));
+		assertEquals("", s.symmetrize("", ""));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsMalformedLine() {
+		new Symmetrizer(Symmetrizer.Heuristic.UNION).symmetrize("0-1 2", "");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownHeuristic() {
+		Symmetrizer.Heuristic.forName("grow");
+	}
+
+	@Test
+	public void testStreamsInOrderAcrossThreads() throws IOException {
+		StringBuilder fwd = new StringBuilder();
+		StringBuilder rev = new StringBuilder();
+		StringBuilder expected = new StringBuilder();
+		Symmetrizer s = new Symmetrizer(Symmetrizer.Heuristic.GROW_DIAG);
+		for (int k = 0; k < 5000; ++k) {
+			String f = k % 3 == 0 ? kForward : "0-" + (k % 7);
+			String r = k % 2 == 0 ? kReverse : "1-" + (k % 5);
+			fwd.append(f).append('\n');
+			rev.append(r).append('\n');
+			expected.append(s.symmetrize(f, r)).append('\n');
+		}
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		int n = Symmetrizer.symmetrize(new BufferedReader(new StringReader(fwd.toString())),
+				new BufferedReader(new StringReader(rev.toString())),
+				new PrintStream(buf, false, "UTF-8"), Symmetrizer.Heuristic.GROW_DIAG, 3);
+		assertEquals(5000, n);
+		assertEquals(expected.toString(), buf.toString("UTF-8").replace("\r\n", "\n"));
+	}
+
+	@Test(expected = IOException.class)
+	public void testStreamsOfDifferentLength() throws IOException {
+		Symmetrizer.symmetrize(new BufferedReader(new StringReader("0-0\n0-1\n")),
+				new BufferedReader(new StringReader("0-0\n")),
+				new PrintStream(new ByteArrayOutputStream()), Symmetrizer.Heuristic.UNION, 1);
+	}
+
+	@Test
+	public void testSinkMatchesSeparateSymmetrization() {
+		AlignerConfig config = new AlignerConfig().setFavorDiagonal(true);
+		BidirectionalAligner both = new BidirectionalAligner(config);
+		List<SentencePair> pairs = AlignerTest.corpus(both.dict(), 6000);
+		AlignerTest.Collect fwd = new AlignerTest.Collect();
+		AlignerTest.Collect rev = new AlignerTest.Collect();
+		AlignerTest.Collect sym = new AlignerTest.Collect();
+		// small capacity so that the direction ahead has to wait
+		SymmetrizingSink sink = new SymmetrizingSink(Symmetrizer.Heuristic.GROW_DIAG_FINAL_AND, sym, 100);
+		both.forward().setAlignmentSink(sink.forward());
+		both.reverse().setAlignmentSink(sink.reverse());
+		both.train(pairs);
+		both.forward().setAlignmentSink(fwd);
+		both.reverse().setAlignmentSink(rev);
+		both.forward().align(corpus(pairs));
+		both.reverse().align(corpus(pairs));
+		Symmetrizer s = new Symmetrizer(Symmetrizer.Heuristic.GROW_DIAG_FINAL_AND);
+		assertEquals(6000, sym.links.size());
+		for (int k = 0; k < sym.links.size(); ++k) {
+			s.symmetrize(fwd.links.get(k), fwd.links.get(k).length, rev.links.get(k), rev.links.get(k).length);
+			assertArrayEquals(Arrays.copyOf(s.links(), s.length()), sym.links.get(k));
+		}
+	}
+
+	@Test
+	public void testSinkFailsOnceOutputFails() throws IOException {
+		SymmetrizingSink sink = new SymmetrizingSink(Symmetrizer.Heuristic.UNION, new AlignmentSink() {
+			public void alignment(int[] links, int length) throws IOException {
+				throw new IOException("broken pipe");
+			}
+		}, 1);
+		sink.forward().alignment(new int[] {0, 0}, 2);
+		try {
+			sink.reverse().alignment(new int[] {0, 0}, 2);
+			fail();
+		} catch (IOException e) {
+			assertEquals("broken pipe", e.getMessage());
+		}
+		// the forward side is a sentence ahead and would otherwise wait forever
+		try {
+			sink.forward().alignment(new int[] {0, 0}, 2);
+			fail();
+		} catch (InterruptedIOException e) {
+			// expected
+		}
+	}
+
+	@Test(expected = InterruptedIOException.class)
+	public void testInterruptWakesWaitingSide() throws Exception {
+		final SymmetrizingSink sink = new SymmetrizingSink(Symmetrizer.Heuristic.UNION, new AlignerTest.Collect(), 1);
+		sink.forward().alignment(new int[] {0, 0}, 2);
+		final Thread waiting = Thread.currentThread();
+		Thread t = new Thread(new Runnable() {
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					// interrupt anyway
+				}
+				waiting.interrupt();
+			}
+		});
+		t.start();
+		try {
+			sink.forward().alignment(new int[] {0, 0}, 2);
+		} finally {
+			// the sink keeps the interrupt status set
+			assertTrue(Thread.interrupted());
+			t.join();
+		}
+	}
+
+	private static Corpus corpus(List<SentencePair> pairs) {
+		Corpus.Builder builder = new Corpus.Builder();
+		try {
+			for (SentencePair p : pairs) builder.add(p.getSource(), p.getTarget());
+			return builder.build();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -2,6 +2,9 @@ package edu.upenn.cis;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
+import java.io.IOException;
+
 import org.junit.Test;
 
 public class TTableTest {
@@ -11,4 +14,295 @@ public class TTableTest {
 		//fail("Not yet implemented");
 	}
 
+	@Test
+	public void testProbUnseenIsFloor() {
+		TTable t = new TTable();
+		assertEquals(1e-9, t.prob(3, 4), 0);
+		t.Increment(3, 4, 2.0);
+		// counts are not visible until normalized
+		assertEquals(1e-9, t.prob(3, 4), 0);
+	}
+
+	@Test
+	public void testNormalize() {
+		TTable t = new TTable();
+		t.Increment(1, 2, 1.0);
+		t.Increment(1, 3, 3.0);
+		t.Increment(2, 3);
+		t.Normalize();
+		assertEquals(0.25, t.prob(1, 2), 1e-12);
+		assertEquals(0.75, t.prob(1, 3), 1e-12);
+		assertEquals(1.0, t.prob(2, 3), 1e-12);
+		assertEquals(1e-9, t.prob(2, 2), 0);
+		assertEquals(2, t.rows());
+		assertEquals(3, t.size());
+		// a second normalize without new counts empties the table
+		t.Normalize();
+		assertEquals(1e-9, t.prob(1, 2), 0);
+		assertEquals(0, t.size());
+	}
+
+	@Test
+	public void testNormalizeVBSumsBelowOne() {
+		TTable t = new TTable();
+		t.Increment(1, 2, 1.0);
+		t.Increment(1, 3, 3.0);
+		t.NormalizeVB(0.01);
+		double p2 = t.prob(1, 2);
+		double p3 = t.prob(1, 3);
+		assertTrue(p2 < p3);
+		assertTrue(p2 + p3 < 1.0);
+	}
+
+	/** Row 1 gets probabilities 0.5, 0.3, 0.15, 0.05 for words 10..13; row 2 a single entry. */
+	private static TTable pruneTable() {
+		TTable t = new TTable();
+		t.Increment(1, 10, 10);
+		t.Increment(1, 11, 6);
+		t.Increment(1, 12, 3);
+		t.Increment(1, 13, 1);
+		t.Increment(2, 10, 1);
+		t.Normalize();
+		return t;
+	}
+
+	@Test
+	public void testPrune() {
+		TTable t = pruneTable();
+		assertEquals(0.05, t.prune(0.1, 0, 1), 1e-12);
+		assertEquals(4, t.size());
+		// pruned pairs fall back to the floor
+		assertEquals(1e-9, t.prob(1, 13), 0);
+		assertEquals(0.15, t.prob(1, 12), 1e-12);
+
+		t = pruneTable();
+		assertEquals(0.2, t.prune(0, 2, 1), 1e-12);
+		assertEquals(3, t.size());
+		assertEquals(0.3, t.prob(1, 11), 1e-12);
+		assertEquals(1e-9, t.prob(1, 12), 0);
+
+		// 0.5 + 0.3 reaches 80% of the mass
+		t = pruneTable();
+		t.prune(0, 0, 0.8);
+		assertEquals(3, t.size());
+		assertEquals(1.0, t.prob(2, 10), 1e-12);
+
+		t = pruneTable();
+		assertEquals(0, t.prune(0, 0, 1), 0);
+		assertEquals(5, t.size());
+	}
+
+	@Test
+	public void testAddMissingRows() {
+		TTable a = new TTable();
+		TTable b = new TTable();
+		a.Increment(1, 2, 1.0);
+		b.Increment(1, 2, 1.0);
+		b.Increment(1, 3, 2.0);
+		b.Increment(7, 3, 5.0);
+		a.add(b);
+		a.Normalize();
+		assertEquals(0.5, a.prob(1, 2), 1e-12);
+		assertEquals(0.5, a.prob(1, 3), 1e-12);
+		assertEquals(1.0, a.prob(7, 3), 1e-12);
+	}
+
+	@Test
+	public void testBinaryRoundTrip() throws IOException {
+		Dict d = new Dict();
+		int a = d.Convert("a");
+		int b = d.Convert("b");
+		int c = d.Convert("c");
+		TTable t = new TTable();
+		t.Increment(a, b, 1.0);
+		t.Increment(a, c, 3.0);
+		t.Increment(c, a, 2.0);
+		t.Normalize();
+		File file = File.createTempFile("ttable", ".bin");
+		file.deleteOnExit();
+		t.ExportToBinaryFile(file.getPath(), d);
+
+		// a dictionary with different ids must still find the same entries
+		Dict other = new Dict();
+		other.Convert("z");
+		TTable u = new TTable();
+		assertTrue(u.ImportFromFile(file.getPath(), '\t', other));
+		assertEquals(3, u.size());
+		assertEquals(0.25, u.prob(other.Convert("a"), other.Convert("b")), 0);
+		assertEquals(0.75, u.prob(other.Convert("a"), other.Convert("c")), 0);
+		assertEquals(1.0, u.prob(other.Convert("c"), other.Convert("a")), 0);
+		assertEquals(1e-9, u.prob(other.Convert("b"), other.Convert("a")), 0);
+		assertEquals(1e-9, u.prob(other.Convert("z"), other.Convert("a")), 0);
+		assertEquals(2, u.rows());
+		assertEquals(0.75, u.prob(other.Convert("a"), other.Convert("c")), 0);
+	}
+
+	@Test(expected = IOException.class)
+	public void testBinaryExportReportsErrors() throws IOException {
+		TTable t = new TTable();
+		t.Increment(1, 2, 1.0);
+		t.Normalize();
+		// a path below a plain file can't be created
+		File file = File.createTempFile("ttable", ".bin");
+		file.deleteOnExit();
+		t.ExportToBinaryFile(new File(file, "m.bin").getPath(), new Dict());
+	}
+
+	@Test
+	public void testBinaryModelParams() throws IOException {
+		Dict d = new Dict();
+		TTable t = new TTable();
+		t.Increment(d.Convert("a"), d.Convert("b"), 1.0);
+		t.Normalize();
+		File file = File.createTempFile("model", ".bin");
+		file.deleteOnExit();
+		t.ExportToBinaryFile(file.getPath(), d);
+		assertNull(ModelParams.read(file.getPath()));
+		t.ExportToBinaryFile(file.getPath(), d, new ModelParams(5.5, 0.1, true, false, true));
+		ModelParams p = ModelParams.read(file.getPath());
+		assertEquals(5.5, p.diagonal_tension, 0);
+		assertEquals(0.1, p.prob_align_null, 0);
+		assertTrue(p.favor_diagonal);
+		assertFalse(p.no_null_word);
+		assertTrue(p.is_reverse);
+		TTable u = new TTable();
+		assertTrue(u.ImportFromFile(file.getPath(), '\t', new Dict()));
+		assertEquals(1, u.size());
+	}
+
+	@Test
+	public void testSinglePrecision() throws IOException {
+		Dict d = new Dict();
+		int a = d.Convert("a");
+		int b = d.Convert("b");
+		int c = d.Convert("c");
+		TTable t = new TTable();
+		t.setSinglePrecision(true);
+		t.Increment(a, b, 1.0);
+		t.Increment(a, c, 2.0);
+		t.Increment(c, a, 1e-60);
+		t.Increment(c, b, 1.0);
+		final long before = t.bytes();
+		t.Normalize();
+		assertTrue(t.bytes() < before);
+		assertEquals((float) (1.0 / 3), t.prob(a, b), 0);
+		assertEquals((float) (2.0 / 3), t.prob(a, c), 0);
+		// too small for a float, but still above 0
+		assertEquals(Float.MIN_NORMAL, t.prob(c, a), 0);
+		// counts are still accumulated in double
+		t.Increment(a, b, 1.0);
+		t.Increment(a, b, 1e-12);
+		t.Increment(a, c, 1.0);
+		assertEquals(1.0 + 1e-12, t.counts[a].get(b, 0), 0);
+
+		File file = File.createTempFile("ttable", ".bin");
+		file.deleteOnExit();
+		t.ExportToBinaryFile(file.getPath(), d);
+		File doubles = File.createTempFile("ttable", ".bin");
+		doubles.deleteOnExit();
+		t.setSinglePrecision(false);
+		t.ExportToBinaryFile(doubles.getPath(), d);
+		assertEquals(doubles.length() - 4 * t.size(), file.length());
+		TTable u = new TTable();
+		assertTrue(u.ImportFromFile(file.getPath(), '\t', new Dict()));
+		assertEquals((float) (2.0 / 3), u.prob(a, c), 0);
+		assertEquals(Float.MIN_NORMAL, u.prob(c, a), 0);
+	}
+
+	/** Many rows of fractional counts, some of them repeated. */
+	private static TTable fractionalCounts(long seed) {
+		java.util.Random rnd = new java.util.Random(seed);
+		TTable t = new TTable();
+		for (int e = 0; e < 2000; ++e) {
+			final int n = rnd.nextInt(e % 100 == 0 ? 500 : 20);
+			for (int k = 0; k < n; ++k)
+				t.Increment(e, rnd.nextInt(3000), rnd.nextBoolean() ? 1.0 : rnd.nextDouble() * 3);
+		}
+		return t;
+	}
+
+	@Test
+	public void testParallelNormalizeMatchesSerial() {
+		java.util.concurrent.ExecutorService pool = java.util.concurrent.Executors.newFixedThreadPool(4);
+		try {
+			for (int vb = 0; vb < 2; ++vb) {
+				TTable serial = fractionalCounts(7);
+				TTable parallel = fractionalCounts(7);
+				if (vb == 1) {
+					serial.NormalizeVB(0.01);
+					parallel.NormalizeVB(0.01, pool, 4);
+				} else {
+					serial.Normalize();
+					parallel.Normalize(pool, 4);
+				}
+				assertEquals(serial.size(), parallel.size());
+				for (int e = 0; e < serial.ttable.length; ++e) {
+					final IntDoubleMap row = serial.ttable[e];
+					if (row == null) continue;
+					for (int s = 0; s < row.capacity(); ++s) {
+						if (row.keyAt(s) == IntDoubleMap.EMPTY) continue;
+						assertEquals(Double.doubleToLongBits(row.valueAt(s)),
+								Double.doubleToLongBits(parallel.prob(e, row.keyAt(s))));
+					}
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/** The digamma of the original implementation, without a cache. */
+	private static double digamma(double x) {
+		double result = 0, xx, xx2, xx4;
+		for ( ; x < 7; ++x)
+			result -= 1/x;
+		x -= 1.0/2.0;
+		xx = 1.0/x;
+		xx2 = xx*xx;
+		xx4 = xx2*xx2;
+		result += Math.log(x)+(1./24.)*xx2-(7.0/960.0)*xx4+(31.0/8064.0)*xx4*xx2-(127.0/30720.0)*xx4*xx4;
+		return result;
+	}
+
+	@Test
+	public void testNormalizeVBMatchesUncachedDigamma() {
+		TTable counts = fractionalCounts(11);
+		TTable t = fractionalCounts(11);
+		t.NormalizeVB(0.01);
+		for (int e = 0; e < counts.counts.length; ++e) {
+			final IntDoubleMap row = counts.counts[e];
+			if (row == null) continue;
+			double tot = 0;
+			for (int s = 0; s < row.capacity(); ++s) {
+				if (row.keyAt(s) != IntDoubleMap.EMPTY) tot += row.valueAt(s) + 0.01;
+			}
+			for (int s = 0; s < row.capacity(); ++s) {
+				if (row.keyAt(s) == IntDoubleMap.EMPTY) continue;
+				final double expected = Math.exp(digamma(row.valueAt(s) + 0.01) - digamma(tot));
+				assertEquals(Double.doubleToLongBits(expected), Double.doubleToLongBits(t.prob(e, row.keyAt(s))));
+			}
+		}
+	}
+
+	@Test
+	public void testSinglePrecisionRecyclesRows() {
+		com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+		org.junit.Assume.assumeTrue(mx.isThreadAllocatedMemorySupported());
+		TTable t = new TTable();
+		t.setSinglePrecision(true);
+		long garbage = 0;
+		for (int round = 0; round < 4; ++round) {
+			for (int e = 0; e < 200; ++e) {
+				for (int f = 0; f < 100; ++f) t.Increment(e, f, 1 + (e + f + round) % 7);
+			}
+			final long start = mx.getThreadAllocatedBytes(Thread.currentThread().getId());
+			t.Normalize();
+			garbage = mx.getThreadAllocatedBytes(Thread.currentThread().getId()) - start;
+		}
+		// once both tables have grown, normalizing trades row arrays instead of reallocating them
+		assertTrue("normalization allocated " + garbage + " bytes", garbage < t.bytes() / 20);
+		double sum = 0;
+		for (int f = 0; f < 100; ++f) sum += t.prob(3, f);
+		assertEquals(1.0, sum, 1e-5);
+	}
 }
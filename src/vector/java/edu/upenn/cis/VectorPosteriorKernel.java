@@ -0,0 +1,119 @@
+// Copyright 2013 by Chris Dyer
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Ported to Java by Lane Schwartz
+// Modifications by John Hewitt
+//
+package edu.upenn.cis;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link PosteriorKernel} on the Java Vector API. Sums are accumulated
+ * lane-wise and reduced at the end, so they may differ from the scalar
+ * kernel's in the last bits; products, quotients and the argmax are the
+ * same. Loaded reflectively by {@link PosteriorKernel#vector()}.
+ */
+final class VectorPosteriorKernel extends PosteriorKernel {
+
+	private static final VectorSpecies<Double> kSpecies = DoubleVector.SPECIES_PREFERRED;
+	private static final int kLanes = kSpecies.length();
+	// Shorter rows are left to the scalar loops, which were faster up to
+	// about 6 vectors per row (PosteriorKernelBenchmark).
+	private static final int kMinLength = 6 * kLanes;
+
+	@Override
+	String name() { return "vector (" + kLanes + " lanes)"; }
+
+	@Override
+	double weightedSum(double[] p, int from, int n, double[] w, int w_from, double sum) {
+		if (n < kMinLength) return super.weightedSum(p, from, n, w, w_from, sum);
+		DoubleVector acc = DoubleVector.zero(kSpecies);
+		int k = 0;
+		for (final int bound = kSpecies.loopBound(n); k < bound; k += kLanes) {
+			final DoubleVector v = DoubleVector.fromArray(kSpecies, p, from + k)
+					.mul(DoubleVector.fromArray(kSpecies, w, w_from + k));
+			v.intoArray(p, from + k);
+			acc = acc.add(v);
+		}
+		sum += acc.reduceLanes(VectorOperators.ADD);
+		for (; k < n; ++k) {
+			p[from + k] *= w[w_from + k];
+			sum += p[from + k];
+		}
+		return sum;
+	}
+
+	@Override
+	double scaledSum(double[] p, int from, int n, double w, double sum) {
+		if (n < kMinLength) return super.scaledSum(p, from, n, w, sum);
+		DoubleVector acc = DoubleVector.zero(kSpecies);
+		int k = 0;
+		for (final int bound = kSpecies.loopBound(n); k < bound; k += kLanes) {
+			final DoubleVector v = DoubleVector.fromArray(kSpecies, p, from + k).mul(w);
+			v.intoArray(p, from + k);
+			acc = acc.add(v);
+		}
+		sum += acc.reduceLanes(VectorOperators.ADD);
+		for (; k < n; ++k) {
+			p[from + k] *= w;
+			sum += p[from + k];
+		}
+		return sum;
+	}
+
+	@Override
+	void divide(double[] p, int from, int n, double d) {
+		if (n < kMinLength) {
+			super.divide(p, from, n, d);
+			return;
+		}
+		int k = 0;
+		for (final int bound = kSpecies.loopBound(n); k < bound; k += kLanes)
+			DoubleVector.fromArray(kSpecies, p, from + k).div(d).intoArray(p, from + k);
+		for (; k < n; ++k) p[from + k] /= d;
+	}
+
+	@Override
+	double dot(double[] a, int a_from, double[] b, int b_from, int n, double sum) {
+		if (n < kMinLength) return super.dot(a, a_from, b, b_from, n, sum);
+		DoubleVector acc = DoubleVector.zero(kSpecies);
+		int k = 0;
+		for (final int bound = kSpecies.loopBound(n); k < bound; k += kLanes) {
+			acc = DoubleVector.fromArray(kSpecies, a, a_from + k)
+					.fma(DoubleVector.fromArray(kSpecies, b, b_from + k), acc);
+		}
+		sum += acc.reduceLanes(VectorOperators.ADD);
+		for (; k < n; ++k) sum += a[a_from + k] * b[b_from + k];
+		return sum;
+	}
+
+	@Override
+	int argmax(double[] p, int from, int n) {
+		if (n < kMinLength) return super.argmax(p, from, n);
+		DoubleVector max = DoubleVector.fromArray(kSpecies, p, from);
+		int k = kLanes;
+		for (final int bound = kSpecies.loopBound(n); k < bound; k += kLanes)
+			max = max.max(DoubleVector.fromArray(kSpecies, p, from + k));
+		double max_p = max.reduceLanes(VectorOperators.MAX);
+		for (; k < n; ++k) max_p = Math.max(max_p, p[from + k]);
+		// the first index holding the maximum, as in the scalar kernel
+		for (k = from; k < from + n; ++k) {
+			if (p[k] == max_p) return k;
+		}
+		return super.argmax(p, from, n);
+	}
+}